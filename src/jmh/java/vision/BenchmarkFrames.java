@@ -0,0 +1,80 @@
+package vision;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.*;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.*;
+
+/**
+* BenchmarkFrames class.
+*
+* <p>Loads the recorded frames the benchmarks run against. Frames are read from the
+* directory named by the "vision.frames" system property and scaled to 640x480 if
+* needed. When no directory is given a synthetic frame with four lit tape strips is
+* used instead so the benchmarks can still be run.
+*/
+final class BenchmarkFrames {
+
+	static final String FRAMES_PROPERTY = "vision.frames";
+	static final int WIDTH = 640;
+	static final int HEIGHT = 480;
+
+	static {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+	}
+
+	private BenchmarkFrames() {
+	}
+
+	/**
+	 * Loads every readable image in the frames directory, sorted by file name.
+	 * @return the frames, never empty.
+	 */
+	static List<Mat> load() {
+		List<Mat> frames = new ArrayList<Mat>();
+		String dir = System.getProperty(FRAMES_PROPERTY, "");
+		if (!dir.isEmpty()) {
+			File[] files = new File(dir).listFiles();
+			if (files == null) {
+				throw new IllegalArgumentException("could not list frames directory '" + dir + "'");
+			}
+			Arrays.sort(files);
+			for (File file : files) {
+				Mat frame = Imgcodecs.imread(file.getPath());
+				if (frame.empty()) {
+					continue;
+				}
+				if (frame.cols() != WIDTH || frame.rows() != HEIGHT) {
+					Imgproc.resize(frame, frame, new Size(WIDTH, HEIGHT));
+				}
+				frames.add(frame);
+			}
+			if (frames.isEmpty()) {
+				throw new IllegalArgumentException("no images found in '" + dir + "'");
+			}
+		}
+		else {
+			frames.add(synthetic());
+		}
+		return frames;
+	}
+
+	/**
+	 * Builds a dark, noisy frame with four green tape strips along an arc.
+	 */
+	private static Mat synthetic() {
+		Mat frame = new Mat(HEIGHT, WIDTH, CvType.CV_8UC3);
+		Core.randu(frame, 0, 40);
+		Scalar tape = new Scalar(0, 255, 0);
+		for (int i = 0; i < 4; i++) {
+			int x = 230 + i * 50;
+			int y = 200 + Math.abs(i * 2 - 3) * 6;
+			Imgproc.rectangle(frame, new Point(x, y), new Point(x + 30, y + 12), tape, -1);
+		}
+		return frame;
+	}
+}
@@ -0,0 +1,147 @@
+package vision;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* GripPipelineBenchmark class.
+*
+* <p>Times every GripPipeline stage in isolation against precomputed inputs, plus the
+* full process and aggregate path the vision thread runs. Each invocation moves on to
+* the next recorded frame.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GripPipelineBenchmark {
+
+	private static final double[] HUE = {44, 91};
+	private static final double[] SATURATION = {204, 255.0};
+	private static final double[] LUMINANCE = {28, 193};
+
+	private GripPipeline pipeline;
+	private GripPipeline trackingPipeline;
+	private GripPipeline lookupPipeline;
+	private GripPipeline componentsPipeline;
+	private HubAggregator aggregator;
+	private List<Mat> frames;
+	private List<Mat> thresholded;
+	private List<ArrayList<MatOfPoint>> contours;
+	private List<BlobList> filtered;
+	private final Mat output = new Mat();
+	private final ArrayList<MatOfPoint> contourOutput = new ArrayList<MatOfPoint>();
+	private final ComponentFinder componentOutput = new ComponentFinder();
+	private int next;
+
+	@Setup
+	public void setup() {
+		pipeline = new GripPipeline(HUE, SATURATION, LUMINANCE);
+		aggregator = new HubAggregator(Orientation.NONE, BenchmarkFrames.WIDTH, BenchmarkFrames.HEIGHT);
+		frames = BenchmarkFrames.load();
+		trackingPipeline = new GripPipeline(HUE, SATURATION, LUMINANCE);
+		trackingPipeline.setTrackingWindow(new TrackingWindow());
+		lookupPipeline = new GripPipeline(HUE, SATURATION, LUMINANCE);
+		lookupPipeline.setThresholdMode(GripPipeline.ThresholdMode.LOOKUP_TABLE);
+		componentsPipeline = new GripPipeline(HUE, SATURATION, LUMINANCE);
+		componentsPipeline.setBlobEngine(GripPipeline.BlobEngine.COMPONENTS);
+		thresholded = new ArrayList<Mat>();
+		contours = new ArrayList<ArrayList<MatOfPoint>>();
+		filtered = new ArrayList<BlobList>();
+		for (Mat frame : frames) {
+			Mat mask = new Mat();
+			pipeline.hslThreshold(frame, HUE, SATURATION, LUMINANCE, mask);
+			thresholded.add(mask);
+
+			ArrayList<MatOfPoint> found = new ArrayList<MatOfPoint>();
+			pipeline.findContours(mask, false, found);
+			contours.add(found);
+
+			filter(found, new ArrayList<MatOfPoint>());
+			BlobList kept = new BlobList();
+			kept.copyFrom(pipeline.filterContoursBlobs());
+			filtered.add(kept);
+		}
+	}
+
+	private int nextFrame() {
+		int i = next;
+		next = (i + 1) % frames.size();
+		return i;
+	}
+
+	/**
+	 * Mirrors the Filter_Contours0 step in GripPipeline.process.
+	 */
+	private void filter(List<MatOfPoint> input, List<MatOfPoint> out) {
+		pipeline.filterContours(input, 3, 0, 0.0, 1000, 0, 1000, new double[] {0, 100}, 1000000, 0, 0,
+			1000.0, out);
+	}
+
+	@Benchmark
+	public Mat orientation() {
+		Orientation.ROTATE_90_CLOCKWISE.apply(frames.get(nextFrame()), output);
+		return output;
+	}
+
+	@Benchmark
+	public Mat hslThreshold() {
+		pipeline.hslThreshold(frames.get(nextFrame()), HUE, SATURATION, LUMINANCE, output);
+		return output;
+	}
+
+	@Benchmark
+	public Mat hslThresholdLookup() {
+		lookupPipeline.hslThreshold(frames.get(nextFrame()), HUE, SATURATION, LUMINANCE, output);
+		return output;
+	}
+
+	@Benchmark
+	public List<MatOfPoint> findContours() {
+		pipeline.findContours(thresholded.get(nextFrame()), false, contourOutput);
+		return contourOutput;
+	}
+
+	@Benchmark
+	public ComponentFinder findComponents() {
+		componentOutput.clear();
+		pipeline.findComponents(thresholded.get(nextFrame()), 0, 0, componentOutput);
+		return componentOutput;
+	}
+
+	@Benchmark
+	public List<MatOfPoint> filterContours() {
+		filter(contours.get(nextFrame()), contourOutput);
+		return contourOutput;
+	}
+
+	@Benchmark
+	public HubAggregator aggregate() {
+		aggregator.aggregate(filtered.get(nextFrame()));
+		return aggregator;
+	}
+
+	@Benchmark
+	public HubAggregator processAndAggregate() {
+		pipeline.process(frames.get(nextFrame()));
+		aggregator.aggregate(pipeline.filterContoursBlobs());
+		return aggregator;
+	}
+
+	@Benchmark
+	public HubAggregator processAndAggregateComponents() {
+		componentsPipeline.process(frames.get(nextFrame()));
+		aggregator.aggregate(componentsPipeline.filterContoursBlobs());
+		return aggregator;
+	}
+
+	@Benchmark
+	public HubAggregator processAndAggregateTracking() {
+		trackingPipeline.process(frames.get(nextFrame()));
+		aggregator.aggregate(trackingPipeline.filterContoursBlobs());
+		return aggregator;
+	}
+}
@@ -0,0 +1,85 @@
+package vision;
+
+import java.util.List;
+
+import org.opencv.core.*;
+
+/**
+* PyramidAccuracy class.
+*
+* <p>Runs every recorded frame through the pipeline at each pyramid level and reports
+* how the results differ from the full-resolution search: how often the hub was found
+* at one level but not the other, the mean and worst hub box edge error, and the mean
+* per-frame time.
+*/
+public final class PyramidAccuracy {
+
+	static final double[] HUE = {44, 91};
+	static final double[] SATURATION = {204, 255.0};
+	static final double[] LUMINANCE = {28, 193};
+
+	private static final int WARMUP_PASSES = 3;
+
+	private PyramidAccuracy() {
+	}
+
+	public static void main(String... args) {
+		List<Mat> frames = BenchmarkFrames.load();
+		int[][] reference = run(0, frames, new long[1]);
+
+		System.out.println("level  missed  extra  meanErrPx  maxErrPx  meanMs");
+		for (int level = 0; level <= GripPipeline.MAX_PYRAMID_LEVEL; level++) {
+			long[] nanos = new long[1];
+			int[][] boxes = run(level, frames, nanos);
+			int missed = 0;
+			int extra = 0;
+			int compared = 0;
+			double errorSum = 0;
+			int errorMax = 0;
+			for (int f = 0; f < frames.size(); f++) {
+				if (reference[f] == null || boxes[f] == null) {
+					if (reference[f] != null) {
+						missed++;
+					}
+					else if (boxes[f] != null) {
+						extra++;
+					}
+					continue;
+				}
+				for (int e = 0; e < 4; e++) {
+					int error = Math.abs(reference[f][e] - boxes[f][e]);
+					errorSum += error;
+					errorMax = Math.max(errorMax, error);
+				}
+				compared++;
+			}
+			System.out.println(String.format("%5d  %6d  %5d  %9.2f  %8d  %6.3f", level, missed, extra,
+				compared == 0 ? 0.0 : errorSum / (compared * 4), errorMax, nanos[0] / 1e6 / frames.size()));
+		}
+	}
+
+	/**
+	 * Processes every frame at one level.
+	 * @return the hub box {x0, y0, x1, y1} per frame, or null where nothing was found.
+	 */
+	private static int[][] run(int level, List<Mat> frames, long[] nanos) {
+		GripPipeline pipeline = new GripPipeline(HUE, SATURATION, LUMINANCE);
+		pipeline.setPyramidLevel(level);
+		for (int pass = 0; pass < WARMUP_PASSES; pass++) {
+			for (Mat frame : frames) {
+				pipeline.process(frame);
+			}
+		}
+		int[][] boxes = new int[frames.size()][];
+		long start = System.nanoTime();
+		for (int f = 0; f < frames.size(); f++) {
+			pipeline.process(frames.get(f));
+			Rect hub = pipeline.filterContoursBounds();
+			if (hub.width > 0) {
+				boxes[f] = new int[] {hub.x, hub.y, hub.x + hub.width - 1, hub.y + hub.height - 1};
+			}
+		}
+		nanos[0] = System.nanoTime() - start;
+		return boxes;
+	}
+}
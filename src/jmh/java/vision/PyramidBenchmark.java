@@ -0,0 +1,43 @@
+package vision;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* PyramidBenchmark class.
+*
+* <p>Times the full-frame process and aggregate path at each pyramid level. Run
+* PyramidAccuracy on the same frames to see what each level costs in accuracy.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PyramidBenchmark {
+
+	@Param({"0", "1", "2"})
+	public int pyramidLevel;
+
+	private GripPipeline pipeline;
+	private HubAggregator aggregator;
+	private List<Mat> frames;
+	private int next;
+
+	@Setup
+	public void setup() {
+		pipeline = new GripPipeline(PyramidAccuracy.HUE, PyramidAccuracy.SATURATION, PyramidAccuracy.LUMINANCE);
+		pipeline.setPyramidLevel(pyramidLevel);
+		aggregator = new HubAggregator(Orientation.NONE, BenchmarkFrames.WIDTH, BenchmarkFrames.HEIGHT);
+		frames = BenchmarkFrames.load();
+	}
+
+	@Benchmark
+	public HubAggregator processAndAggregate() {
+		pipeline.process(frames.get(next));
+		next = (next + 1) % frames.size();
+		aggregator.aggregate(pipeline.filterContoursBlobs());
+		return aggregator;
+	}
+}
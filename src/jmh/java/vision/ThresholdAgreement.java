@@ -0,0 +1,44 @@
+package vision;
+
+import java.util.List;
+
+import org.opencv.core.*;
+
+/**
+* ThresholdAgreement class.
+*
+* <p>Thresholds every recorded frame with both HSL_Threshold engines and reports the
+* share of pixels on which the masks disagree, per frame and overall.
+*/
+public final class ThresholdAgreement {
+
+	private ThresholdAgreement() {
+	}
+
+	public static void main(String... args) {
+		List<Mat> frames = BenchmarkFrames.load();
+		GripPipeline pipeline = new GripPipeline(PyramidAccuracy.HUE, PyramidAccuracy.SATURATION,
+			PyramidAccuracy.LUMINANCE);
+		Mat opencv = new Mat();
+		Mat lookup = new Mat();
+		Mat diff = new Mat();
+		long differing = 0;
+		long total = 0;
+		for (int f = 0; f < frames.size(); f++) {
+			Mat frame = frames.get(f);
+			pipeline.setThresholdMode(GripPipeline.ThresholdMode.OPENCV);
+			pipeline.hslThreshold(frame, PyramidAccuracy.HUE, PyramidAccuracy.SATURATION,
+				PyramidAccuracy.LUMINANCE, opencv);
+			pipeline.setThresholdMode(GripPipeline.ThresholdMode.LOOKUP_TABLE);
+			pipeline.hslThreshold(frame, PyramidAccuracy.HUE, PyramidAccuracy.SATURATION,
+				PyramidAccuracy.LUMINANCE, lookup);
+			Core.compare(opencv, lookup, diff, Core.CMP_NE);
+			int count = Core.countNonZero(diff);
+			System.out.println(String.format("frame %4d: %6d pixels differ (%.4f%%)", f, count,
+				100.0 * count / diff.total()));
+			differing += count;
+			total += diff.total();
+		}
+		System.out.println(String.format("overall: %.4f%% of pixels differ", 100.0 * differing / total));
+	}
+}
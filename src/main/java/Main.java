@@ -6,12 +6,13 @@
 /* the project.                                                               */
 /*----------------------------------------------------------------------------*/
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.function.Consumer;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -22,14 +23,9 @@ import com.google.gson.JsonParser;
 
 import org.opencv.core.Core;
 import org.opencv.core.KeyPoint;
-import org.opencv.core.Mat;
 import org.opencv.core.MatOfKeyPoint;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.RotatedRect;
-import org.opencv.core.Scalar;
-import org.opencv.imgproc.Imgproc;
 
 import edu.wpi.cscore.MjpegServer;
 import edu.wpi.cscore.UsbCamera;
@@ -40,12 +36,26 @@ import edu.wpi.cscore.CvSink;
 import edu.wpi.cscore.VideoMode.PixelFormat;
 import edu.wpi.first.cameraserver.CameraServer;
 import edu.wpi.first.networktables.NetworkTableInstance;
-import edu.wpi.first.networktables.ConnectionNotification;
-import edu.wpi.first.networktables.EntryNotification;
 import edu.wpi.first.networktables.NetworkTable;
 import edu.wpi.first.networktables.NetworkTableEntry;
-import edu.wpi.first.vision.VisionThread;
+import edu.wpi.first.networktables.EntryListenerFlags;
 import vision.GripPipeline;
+import vision.Frame;
+import vision.FrameRecorder;
+import vision.FrameSource;
+import vision.HubAggregator;
+import vision.HubPublisher;
+import vision.HubTracker;
+import vision.LoadGovernor;
+import vision.MetricsServer;
+import vision.Orientation;
+import vision.OverlayStream;
+import vision.PipelineParameters;
+import vision.StagedVisionRunner;
+import vision.TrackingWindow;
+import vision.VisionWatchdog;
+import vision.VisionWorkerPool;
+import vision.VisionStats;
 
 // **************************************************************************
 // * 
@@ -57,6 +67,11 @@ public final class Main {
   public static final double IMAGE_WIDTH_PIXELS = 640.0;
   public static final double IMAGE_HEIGHT_PIXELS = 480.0;
   public static final int DEFAULT_FRAME_RATE = 30;
+  public static final long STATS_PUBLISH_PERIOD_MS = 1000;
+  public static final String SHOOTER_CAMERA = "Shooter";
+  public static final int DEFAULT_SHOOTER_EXPOSURE = 20;
+  public static final long STOP_TIMEOUT_MS = 500;
+  public static final String DEFAULT_RECORDING_DIRECTORY = "/home/pi/recordings";
   public static final double HALF_IMAGE_WIDTH_IN_PIXELS = IMAGE_WIDTH_PIXELS / 2.0;
   private static String configFile = "/boot/frc.json";
 
@@ -65,10 +80,21 @@ public final class Main {
     public String path;
     public JsonObject config;
     public JsonElement streamConfig;
+    public Orientation orientation = Orientation.NONE;
+    public JsonObject tracking;
+    public int pyramidLevel;
+    public GripPipeline.ThresholdMode thresholdMode = GripPipeline.ThresholdMode.OPENCV;
+    public GripPipeline.BlobEngine blobEngine = GripPipeline.BlobEngine.CONTOURS;
+    public JsonObject pipeline;
   }
 
   public static int team;
   public static boolean server;
+  public static boolean statsEnabled = true;
+  public static JsonObject hubResultConfig;
+  public static JsonObject watchdogConfig = new JsonObject();
+  public static int metricsPort = MetricsServer.DEFAULT_PORT;
+  public static int workerThreads = Runtime.getRuntime().availableProcessors();
   public static List<CameraConfig> cameraConfigs = new ArrayList<>();
 
   // This will be the list of targets that we'll use to determine whether or not
@@ -78,42 +104,18 @@ public final class Main {
 
   static List<VideoCamera> cameras = new ArrayList<>();
 
-  public static NetworkTableEntry hubTopLeftX;
-  public static NetworkTableEntry hubTopLeftY;
-  public static NetworkTableEntry hubBottomRightX;
-  public static NetworkTableEntry hubBottomRightY;
-  public static NetworkTableEntry shapesMinX;
-  public static NetworkTableEntry shapesMinY;
-  public static NetworkTableEntry shapesMaxX;
-  public static NetworkTableEntry shapesMaxY;
-  public static NetworkTableEntry shapesAreas;
-  public static NetworkTableEntry boundsX;
-  public static NetworkTableEntry boundsY;
   public static NetworkTableEntry center;
   public static NetworkTableEntry distanceFt;
-  public static NetworkTableEntry quadraticABC;
-  public static NetworkTableEntry width;
-  public static NetworkTableEntry averageHeight;
-  public static NetworkTableEntry deviationFromCenter;
   public static NetworkTableEntry activeCameraNT;
-  public static NetworkTableEntry hslThresholdHueNT;
-  public static NetworkTableEntry hslThresholdSaturationNT;
-  public static NetworkTableEntry hslThresholdLuminanceNT;
   public static NetworkTableEntry shooterCameraExposureNT;
 
   static MjpegServer mjpegServer = null;
   // static VideoCamera acquirerCamera = null;
   static VideoCamera shooterCamera = null;
-  static int shooterCameraExposure;
+  static volatile int shooterCameraExposure = DEFAULT_SHOOTER_EXPOSURE;
 
-  private static double[] hslThresholdHue = {44, 91};
-	private	static double[] hslThresholdSaturation = {204, 255.0};
-	private	static double[] hslThresholdLuminance = {28, 193};
-  private static boolean ntReady = false;
-
-  public static CvSource cvOutputStream;
-  public static Scalar greenColor;
-  public static Scalar redColor;
+  static VisionWorkerPool workerPool;
+  static List<CameraVision> cameraVisions = new ArrayList<>();
 
   // **************************************************************************
   // *
@@ -148,6 +150,77 @@ public final class Main {
     }
     cam.path = pathElement.getAsString();
 
+    // orientation (optional)
+    JsonElement orientationElement = config.get("orientation");
+    if (orientationElement != null) {
+      Orientation orientation = Orientation.fromName(orientationElement.getAsString());
+      if (orientation == null) {
+        parseError("camera '" + cam.name + "': could not understand orientation value '"
+            + orientationElement.getAsString() + "'");
+      } else {
+        cam.orientation = orientation;
+      }
+    }
+
+    // region-of-interest tracking (optional)
+    JsonElement trackingElement = config.get("tracking");
+    if (trackingElement != null) {
+      if (trackingElement.isJsonObject()) {
+        cam.tracking = trackingElement.getAsJsonObject();
+      } else if (trackingElement.getAsBoolean()) {
+        cam.tracking = new JsonObject();
+      }
+    }
+
+    // coarse-to-fine pyramid level (optional)
+    JsonElement pyramidElement = config.get("pyramidLevel");
+    if (pyramidElement != null) {
+      int level = pyramidElement.getAsInt();
+      if (level < 0 || level > GripPipeline.MAX_PYRAMID_LEVEL) {
+        parseError("camera '" + cam.name + "': pyramidLevel must be 0 to " + GripPipeline.MAX_PYRAMID_LEVEL);
+      } else {
+        cam.pyramidLevel = level;
+      }
+    }
+
+    // threshold engine (optional)
+    JsonElement thresholdElement = config.get("threshold");
+    if (thresholdElement != null) {
+      String str = thresholdElement.getAsString();
+      if ("opencv".equalsIgnoreCase(str)) {
+        cam.thresholdMode = GripPipeline.ThresholdMode.OPENCV;
+      } else if ("lookup".equalsIgnoreCase(str)) {
+        cam.thresholdMode = GripPipeline.ThresholdMode.LOOKUP_TABLE;
+      } else {
+        parseError("camera '" + cam.name + "': could not understand threshold value '" + str + "'");
+      }
+    }
+
+    // blob engine (optional)
+    JsonElement blobsElement = config.get("blobs");
+    if (blobsElement != null) {
+      String str = blobsElement.getAsString();
+      if ("contours".equalsIgnoreCase(str)) {
+        cam.blobEngine = GripPipeline.BlobEngine.CONTOURS;
+      } else if ("components".equalsIgnoreCase(str)) {
+        cam.blobEngine = GripPipeline.BlobEngine.COMPONENTS;
+      } else {
+        parseError("camera '" + cam.name + "': could not understand blobs value '" + str + "'");
+      }
+    }
+
+    // vision pipeline (optional; on by default for the shooter camera)
+    JsonElement pipelineElement = config.get("pipeline");
+    if (pipelineElement != null) {
+      if (pipelineElement.isJsonObject()) {
+        cam.pipeline = pipelineElement.getAsJsonObject();
+      } else if (pipelineElement.getAsBoolean()) {
+        cam.pipeline = new JsonObject();
+      }
+    } else if (SHOOTER_CAMERA.equals(cam.name)) {
+      cam.pipeline = new JsonObject();
+    }
+
     // stream properties
     cam.streamConfig = config.get("stream");
     cam.config = config;
@@ -203,6 +276,62 @@ public final class Main {
       }
     }
 
+    // vision stats (optional)
+    if (obj.has("stats")) {
+      statsEnabled = obj.get("stats").getAsBoolean();
+    }
+
+    // process stage worker threads (optional)
+    if (obj.has("workers")) {
+      int workers = obj.get("workers").getAsInt();
+      if (workers < 1) {
+        parseError("workers must be at least 1");
+      } else {
+        workerThreads = workers;
+      }
+    }
+
+    // shooter camera exposure until NetworkTables says otherwise (optional)
+    if (obj.has("shooterExposure")) {
+      shooterCameraExposure = obj.get("shooterExposure").getAsInt();
+    }
+
+    // stall watchdog (optional; on by default)
+    if (obj.has("watchdog")) {
+      JsonElement watchdog = obj.get("watchdog");
+      if (watchdog.isJsonObject()) {
+        watchdogConfig = watchdog.getAsJsonObject();
+      } else if (watchdog.isJsonPrimitive() && watchdog.getAsJsonPrimitive().isBoolean()) {
+        watchdogConfig = watchdog.getAsBoolean() ? new JsonObject() : null;
+      } else {
+        parseError("could not understand watchdog value '" + watchdog + "'");
+      }
+    }
+
+    // HTTP metrics and health (optional; on by default)
+    if (obj.has("metrics")) {
+      JsonElement metrics = obj.get("metrics");
+      if (metrics.isJsonObject()) {
+        if (metrics.getAsJsonObject().has("port")) {
+          metricsPort = metrics.getAsJsonObject().get("port").getAsInt();
+        }
+      } else if (metrics.isJsonPrimitive() && metrics.getAsJsonPrimitive().isBoolean()) {
+        metricsPort = metrics.getAsBoolean() ? MetricsServer.DEFAULT_PORT : 0;
+      } else {
+        parseError("could not understand metrics value '" + metrics + "'");
+      }
+    }
+
+    // hub result publishing (optional)
+    if (obj.has("hubResult")) {
+      JsonElement hubResult = obj.get("hubResult");
+      if (hubResult.isJsonObject()) {
+        hubResultConfig = hubResult.getAsJsonObject();
+      } else {
+        parseError("could not understand hubResult value '" + hubResult + "'");
+      }
+    }
+
     JsonElement camerasElement = obj.get("cameras");
 
     if (camerasElement == null) {
@@ -242,49 +371,34 @@ public final class Main {
     return camera;
   }
 
-  private static void initCamera() {
+  private static void initCamera(NetworkTableInstance ntinst) {
     System.out.println("initCamera()");
     // Start cameras
     for (CameraConfig cameraConfig : cameraConfigs) {
-      cameras.add(startCamera(cameraConfig));
+      VideoCamera camera = startCamera(cameraConfig);
+      cameras.add(camera);
+      if (cameraConfig.name.equals(SHOOTER_CAMERA)) {
+        shooterCamera = camera;
+        setShooterCameraExposure(shooterCameraExposure);
+      }
     }
 
-    CvSink cvSink = new CvSink("openCV Camera");
-
-    // Mat openCVOverlay = new Mat();
-
-    // Start image processing on camera 0 if present
-    if (cameras.size() >= 1) {
+    if (cameras.isEmpty()) {
+      System.out.println("No cameras found");
+      return;
+    }
 
-      // For OpenCV processing, you need a "source" which will be our camera and
-      // a "sink" or "destination" which will be an ouputStream that is fed into
-      // an MJPEG Server.
-      for(VideoCamera camera : cameras){
-        if(camera.getName().equals("Shooter")){
-          shooterCamera = camera;
-          setShooterCameraExposure(shooterCameraExposure);
-        }
-        // else if (camera.getName().equals("Acquirer")) {
-        //   acquirerCamera = camera;
-        // }
+    // Every camera with a pipeline gets its own runner, output table and overlay
+    // stream; their process stages share one pool of worker threads.
+    workerPool = new VisionWorkerPool(workerThreads);
+    for (int i = 0; i < cameraConfigs.size(); i++) {
+      CameraConfig cameraConfig = cameraConfigs.get(i);
+      if (cameraConfig.pipeline != null) {
+        cameraVisions.add(new CameraVision(cameraConfig, cameras.get(i), ntinst, workerPool));
       }
-
-      cvSink.setSource(shooterCamera);
-      cvOutputStream = new CvSource("2228_OpenCV", PixelFormat.kMJPEG, (int) IMAGE_WIDTH_PIXELS,
-          (int) IMAGE_HEIGHT_PIXELS, DEFAULT_FRAME_RATE);
-
-      // This is MJPEG server used to create an overlaid image of what the OpenCV
-      // processing is
-      // coming up with on top of the live streamed image from the robot's front
-      // camera.
-      // MjpegServer mjpegServer2 = new MjpegServer("serve_openCV", MJPEG_OPENCV_SERVER_PORT);
-      // mjpegServer2.setCompression(40);
-      // mjpegServer2.setSource(outputStream);
-
-    } else {
-      System.out.println("No cameras found");
     }
   }
+
   public static void main(String... args) {
     if (args.length > 0) {
       configFile = args[0];
@@ -308,283 +422,461 @@ public final class Main {
 
     NetworkTable hubsettingstable =  ntinst.getTable("Hub Settings");
 
-    hslThresholdHueNT = hubsettingstable.getEntry("Hue");
-    hslThresholdSaturationNT = hubsettingstable.getEntry("Saturation");
-    hslThresholdLuminanceNT = hubsettingstable.getEntry("Luminance");
     shooterCameraExposureNT = hubsettingstable.getEntry("Exposure");
 
-    greenColor = new Scalar(0.0, 255.0, 0.0);
-    redColor = new Scalar(0.0, 0.0, 255.0);
-
     NetworkTable table = ntinst.getTable("Hub");
 
-    hubTopLeftX = table.getEntry("hubTopLeftX");
-    hubTopLeftY = table.getEntry("hubTopLeftY");
-    hubBottomRightX = table.getEntry("hubBottomRightX");
-    hubBottomRightY = table.getEntry("hubBottomRightY");
-
-    shapesMinX = table.getEntry("shapesMinX");
-    shapesMinY = table.getEntry("shapesMinY");
-    shapesMaxX = table.getEntry("shapesMaxX");
-    shapesMaxY = table.getEntry("shapesMaxY");
-    shapesAreas = table.getEntry("shapesAreas");
-
-    boundsX = table.getEntry("totalWidth");
-    boundsY = table.getEntry("totalHeight");
     center = table.getEntry("center");
     distanceFt = table.getEntry("distanceFeet");
-    quadraticABC = table.getEntry("quadraticABC");
-    width = table.getEntry("width");
-    deviationFromCenter = table.getEntry("deviationFromCenter");
     activeCameraNT = table.getEntry("currentCamera");
-    averageHeight = table.getEntry("averageHeight");
-
-    ntinst.addConnectionListener(new Consumer<ConnectionNotification>() {
-
-      @Override
-      public void accept(ConnectionNotification event) {
-        if (event.connected) {
-          System.out.println("NT Connected!!!");
-          if(!shooterCameraExposureNT.exists()){
-            shooterCameraExposure = 20;
-            System.out.println("exposure default");
-            shooterCameraExposureNT.setNumber(shooterCameraExposure);
-          }
-          else{
-            shooterCameraExposure = shooterCameraExposureNT.getNumber(-1).intValue();
-            System.out.println("read from NT: " + shooterCameraExposure);
-          }
-          shooterCameraExposureNT.addListener(new Consumer<EntryNotification>() {
-
-            @Override
-            public void accept(EntryNotification event) {
-              System.out.println("shooterCameraExposureNT on Change -- Name: " + event.name + ", Value: " + event.value.getDouble());
-              setShooterCameraExposure((int)event.value.getDouble());
-            }
-          }, 0xFFFF);
-
-          if(!hslThresholdHueNT.exists()){
-            hslThresholdHue = new double[] {44, 91};
-            System.out.println("hue default");
-            hslThresholdHueNT.setDoubleArray(hslThresholdHue);
-          }
-          else{
-            hslThresholdHue = hslThresholdHueNT.getDoubleArray(new double[] {44, 91});
-          }
-
-          if(!hslThresholdSaturationNT.exists()){
-            hslThresholdSaturation = new double[] {204, 255.0};
-            System.out.println("Saturation default");
-            hslThresholdSaturationNT.setDoubleArray(hslThresholdSaturation);
-          }
-          else{
-            hslThresholdSaturationNT.getDoubleArray(hslThresholdSaturation);
-          }
-
-          if(!hslThresholdLuminanceNT.exists()){
-            hslThresholdLuminance = new double[] {28, 193};
-            System.out.println("Luminance default");
-            hslThresholdLuminanceNT.setDoubleArray(hslThresholdLuminance);
-          }
-          else{
-            hslThresholdLuminanceNT.getDoubleArray(hslThresholdLuminance);
-          }
-
-          hslThresholdHueNT.getDoubleArray(hslThresholdHue);
-          hslThresholdSaturationNT.getDoubleArray(hslThresholdSaturation);
-          hslThresholdLuminanceNT.getDoubleArray(hslThresholdLuminance);
-
-          // activeCameraNT.addListener(new Consumer<EntryNotification>() {
-          //   @Override
-          //   public void accept(EntryNotification event) {
-          //     String activeCamera = activeCameraNT.getString("");
-          //     System.out.println("Active Camera Switched to " + activeCamera);
-          //     if (mjpegServer != null) {
-          //       if (activeCamera.equals("Ball")) {
-          //         mjpegServer.setSource(acquirerCamera);
-          //       } else if (activeCamera.equals("Target")) {
-          //         mjpegServer.setSource(cvOutputStream);
-          //       } else if (activeCamera.equals("Settings")){
-          //         mjpegServer.setSource(shooterCamera);
-          //       }
-          //     }
-          //   }
-          // }, 0xfff);
-
-          ntReady = true;
-        }
+
+    // Vision starts at once with the settings in /boot/frc.json. Settings kept in
+    // NetworkTables are applied by their entry listeners whenever the connection
+    // brings them in, so nothing waits for the robot.
+    shooterCameraExposureNT.setDefaultNumber(shooterCameraExposure);
+    shooterCameraExposureNT.addListener(event -> {
+      setShooterCameraExposure((int) event.value.getDouble());
+    }, EntryListenerFlags.kNew | EntryListenerFlags.kUpdate);
+
+    ntinst.addConnectionListener(event -> {
+      if (event.connected) {
+        System.out.println("NT Connected!!! after " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms");
+      } else {
+        System.out.println("NT Disconnected");
       }
     }, true);
 
-    // **************************************************************************
-    // *
-    // * Main "Forever" Loop
-    // *
-    // **************************************************************************
-    String previousSelected = null;
-    Thread currentVisionThread = null;
-    String visionMode = "Hub";
-    for (;;) {
+    initCamera(ntinst);
+
+    // The 2228_OpenCV server streams the shooter's overlay; the others have their own servers
+    if (!cameraVisions.isEmpty()) {
+      CameraVision streamed = cameraVisions.get(0);
+      for (CameraVision cameraVision : cameraVisions) {
+        if (SHOOTER_CAMERA.equals(cameraVision.name)) {
+          streamed = cameraVision;
+          break;
+        }
+      }
+      mjpegServer.setSource(streamed.output);
+    }
+    for (CameraVision cameraVision : cameraVisions) {
+      cameraVision.start();
+    }
+    System.out.println("Starting Vision Stages on " + cameraVisions.size() + " camera(s), "
+        + workerThreads + " worker thread(s) after " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms");
+
+    // Rebuild any camera whose frames stop coming
+    long stallMillis = watchdogConfig != null && watchdogConfig.has("stallMs")
+        ? watchdogConfig.get("stallMs").getAsLong() : VisionWatchdog.DEFAULT_STALL_MILLIS;
+    VisionWatchdog watchdog = null;
+    if (watchdogConfig != null && !cameraVisions.isEmpty()) {
+      watchdog = new VisionWatchdog(stallMillis,
+          watchdogConfig.has("periodMs") ? watchdogConfig.get("periodMs").getAsLong()
+              : VisionWatchdog.DEFAULT_PERIOD_MILLIS);
+      for (CameraVision cameraVision : cameraVisions) {
+        watchdog.watch(cameraVision, cameraVision.outputTable);
+      }
+      watchdog.start();
+    }
+
+    // Metrics and health over HTTP
+    if (metricsPort > 0) {
+      MetricsServer metrics = new MetricsServer(metricsPort, stallMillis);
+      for (CameraVision cameraVision : cameraVisions) {
+        metrics.addCamera(cameraVision.name, cameraVision.stats, cameraVision);
+        metrics.addCameraMetric("vision_parameter_updates_total", "Settings table updates applied to the pipeline.",
+            "counter", cameraVision.name, () -> cameraVision.parameterUpdates);
+        metrics.addCameraMetric("vision_parameter_updates_rejected_total",
+            "Settings table updates ignored because a value was invalid.", "counter", cameraVision.name,
+            () -> cameraVision.rejectedParameterUpdates);
+        if (cameraVision.governor != null) {
+          LoadGovernor governor = cameraVision.governor;
+          metrics.addCameraMetric("vision_load_level", "LoadGovernor level, 0 for full quality.", "gauge",
+              cameraVision.name, () -> governor.level().ordinal());
+          metrics.addCameraMetric("vision_load_level_changes_total", "Times the LoadGovernor changed level.",
+              "counter", cameraVision.name, governor::levelChanges);
+        }
+      }
+      metrics.setNetworkTables(ntinst);
+      metrics.setWatchdog(watchdog);
+      metrics.addGauge("vision_shooter_exposure", "Manual exposure of the shooter camera.",
+          () -> shooterCameraExposure);
+      try {
+        metrics.start();
+        System.out.println("Serving metrics on port " + metricsPort);
+      } catch (IOException ex) {
+        System.err.println("could not serve metrics on port " + metricsPort + ": " + ex);
+      }
+    }
+
+    // Everything runs on daemon threads and listeners from here on
+    try {
+      Thread.currentThread().join();
+    } catch (InterruptedException ex) {
+      return;
+    }
+  }
+
+  // **************************************************************************
+  // *
+  // * One camera's vision: capture -> process -> publish -> overlay, with its own
+  // * pipeline settings table, output table and overlay stream
+  // *
+  // **************************************************************************
+  static class CameraVision implements VisionWatchdog.Watched {
+    final String name;
+    final CameraConfig config;
+    final Orientation orientation;
+    final NetworkTable settingsTable;
+    final OverlayStream overlay;
+    final CvSource output;
+    final HubPublisher publisher;
+    final VisionStats stats;
+    final VisionWorkerPool pool;
+    final double maxFps;
+    final LoadGovernor governor;
+    final FrameRecorder recorder;
+    final NetworkTable outputTable;
+    // replaced when the watchdog rebuilds the camera
+    private volatile VideoCamera camera;
+    private CvSink sink;
+    private volatile GripPipeline pipeline;
+    private volatile StagedVisionRunner runner;
+    private PipelineParameters parameters;
+    private volatile long parameterUpdates;
+    private volatile long rejectedParameterUpdates;
+    private boolean reportedFirstResult;
+    private boolean reportedFirstTarget;
+
+    CameraVision(CameraConfig config, VideoCamera camera, NetworkTableInstance ntinst, VisionWorkerPool pool) {
+      JsonObject settings = config.pipeline;
+      boolean shooter = SHOOTER_CAMERA.equals(config.name);
+      name = config.name;
+      this.config = config;
+      this.camera = camera;
+      this.pool = pool;
+      orientation = config.orientation;
+      String tableName = settings.has("table") ? settings.get("table").getAsString() : shooter ? "Hub" : name;
+      settingsTable = ntinst.getTable(settings.has("settingsTable") ? settings.get("settingsTable").getAsString()
+          : tableName + " Settings");
+
+      if (statsEnabled) {
+        NetworkTable statsTable = ntinst.getTable("Vision Stats");
+        stats = new VisionStats();
+        stats.startPublishing(shooter ? statsTable : statsTable.getSubTable(name), STATS_PUBLISH_PERIOD_MS);
+      } else {
+        stats = VisionStats.DISABLED;
+      }
+
+      parameters = PipelineParameters.DEFAULTS;
+      if (settings.has("hue") || settings.has("saturation") || settings.has("luminance")) {
+        try {
+          parameters = parameters.withHsl(readRange(settings, "hue", parameters.hue(), name),
+              readRange(settings, "saturation", parameters.saturation(), name),
+              readRange(settings, "luminance", parameters.luminance(), name));
+        } catch (IllegalArgumentException ex) {
+          parseError("camera '" + name + "': " + ex.getMessage());
+        }
+      }
+
+      pipeline = makePipeline();
+      listenForSettings();
+
+      outputTable = ntinst.getTable(tableName);
+      publisher = new HubPublisher(outputTable,
+          new HubAggregator(orientation, (int) IMAGE_WIDTH_PIXELS, (int) IMAGE_HEIGHT_PIXELS),
+          makeHubTracker(hubResultConfig), stats);
+      if (hubResultConfig != null) {
+        configureHubPublisher(publisher, hubResultConfig);
+      }
+
+      // The driver view is only drawn and encoded while someone is watching it
+      overlay = new OverlayStream(shooter ? "2228_OpenCV" : name + "_OpenCV", orientation,
+          (int) IMAGE_WIDTH_PIXELS, (int) IMAGE_HEIGHT_PIXELS,
+          settings.has("streamWidth") ? settings.get("streamWidth").getAsInt() : OverlayStream.DEFAULT_WIDTH,
+          settings.has("streamFps") ? settings.get("streamFps").getAsDouble() : OverlayStream.DEFAULT_FPS);
+      output = overlay.source();
+      if (!shooter) {
+        CameraServer.getInstance().startAutomaticCapture(output);
+      }
+
+      maxFps = settings.has("maxFps") ? settings.get("maxFps").getAsDouble() : 0;
+
+      // Under load, trade overlay, resolution and then rate for latency, if a budget is set
+      double budget = settings.has("latencyBudgetMs") ? settings.get("latencyBudgetMs").getAsDouble() : 0;
+      if (budget > 0) {
+        governor = new LoadGovernor(budget, DEFAULT_FRAME_RATE);
+        governor.publishTo(ntinst.getTable(tableName));
+      } else {
+        governor = null;
+      }
+
+      // Recording is switched on and off from the settings table
+      recorder = settings.has("record") ? makeRecorder(name, settings.getAsJsonObject("record")) : null;
+      runner = makeRunner();
+      if (recorder != null) {
+        listenForRecord(settings.getAsJsonObject("record"));
+      }
+    }
+
+    private GripPipeline makePipeline() {
+      GripPipeline pipeline = new GripPipeline(parameters);
+      pipeline.setOrientation(orientation);
+      pipeline.setPyramidLevel(config.pyramidLevel);
+      pipeline.setThresholdMode(config.thresholdMode);
+      pipeline.setBlobEngine(config.blobEngine);
+      if (config.tracking != null) {
+        pipeline.setTrackingWindow(makeTrackingWindow(config.tracking));
+      }
+      pipeline.setStats(stats);
+      return pipeline;
+    }
+
+    private StagedVisionRunner makeRunner() {
+      sink = new CvSink(name + " openCV Camera");
+      sink.setSource(camera);
+      StagedVisionRunner runner = new StagedVisionRunner(name, FrameSource.of(sink), pipeline, this::publish,
+          overlay, stats);
+      runner.setWorkerPool(pool);
+      runner.setMaxFps(maxFps);
+      runner.setGovernor(governor);
+      runner.setRecorder(recorder);
+      return runner;
+    }
+
+    void start() {
+      runner.start();
+    }
+
+    // Called by the watchdog when frames stop: stop the stages, then replace the
+    // camera, sink, pipeline and runner. The publisher, overlay stream, recorder and
+    // settings listeners carry on with the new ones.
+    @Override
+    public void restart() throws InterruptedException {
+      // The publisher, overlay stream and recorder are not thread safe, so the new runner
+      // only starts once every stage of the old one has exited. Closing the sink wakes a
+      // capture stage stuck in a grab; after that, wait for as long as it takes. The wait
+      // is outside the lock so settings changes still reach the old pipeline.
+      boolean stopped = runner.stop(STOP_TIMEOUT_MS);
+      sink.close();
+      if (!stopped) {
+        runner.stop(0);
+      }
+      synchronized (this) {
+        // nothing can still be using the old pipeline's Mats
+        pipeline.release();
+        // close() zeroes the handle that equals() compares, so find it first
+        int index = cameras.indexOf(camera);
+        camera.close();
+        camera = startCamera(config);
+        cameras.set(index, camera);
+        if (SHOOTER_CAMERA.equals(name)) {
+          shooterCamera = camera;
+          setShooterCameraExposure(shooterCameraExposure);
+        }
+        pipeline = makePipeline();
+        runner = makeRunner();
+        runner.start();
+      }
+    }
+
+    @Override
+    public String name() {
+      return name;
+    }
+
+    @Override
+    public long lastProcessedNanos() {
+      return runner.lastProcessedNanos();
+    }
+
+    @Override
+    public long lastPublishedNanos() {
+      return runner.lastPublishedNanos();
+    }
 
+    // Publish a frame, logging how long after launch the first result and the first
+    // sighting of the hub went out. Only called on the publish stage's thread.
+    private void publish(Frame frame) {
+      publisher.publish(frame);
+      if (!reportedFirstResult) {
+        reportedFirstResult = true;
+        reportStartup("result", "firstResultMs");
+      }
+      if (!reportedFirstTarget && publisher.aggregator().shapeCount() > 0) {
+        reportedFirstTarget = true;
+        reportStartup("target", "firstTargetMs");
+      }
+    }
+
+    private void reportStartup(String what, String key) {
+      long launchMs = ManagementFactory.getRuntimeMXBean().getUptime();
+      String boot = "";
       try {
-        Thread.sleep(300);
+        // seconds since the Pi booted, which includes the OS and service start
+        String uptime = new String(Files.readAllBytes(Paths.get("/proc/uptime"))).split(" ")[0];
+        boot = ", " + uptime + " s after boot";
+      } catch (IOException | RuntimeException ex) {
+        // not on Linux
+      }
+      System.out.println(name + ": first " + what + " published " + launchMs + " ms after launch" + boot);
+      outputTable.getEntry(key).setDouble(launchMs);
+    }
+
+    private void listenForRecord(JsonObject config) {
+      NetworkTableEntry record = settingsTable.getEntry("Record");
+      record.setDefaultBoolean(config.has("enabled") && config.get("enabled").getAsBoolean());
+      setRecording(record.getBoolean(false));
+      record.addListener(notification -> setRecording(notification.value.getBoolean()),
+          EntryListenerFlags.kNew | EntryListenerFlags.kUpdate);
+    }
+
+    private synchronized void setRecording(boolean on) {
+      try {
+        if (on) {
+          recorder.start();
+        } else if (recorder.isRecording()) {
+          recorder.stop();
+          System.out.println(name + ": recorded " + recorder.recordedFrames() + " frames, dropped "
+              + recorder.droppedFrames());
+        }
+      } catch (IOException ex) {
+        System.err.println(name + ": could not start recording: " + ex);
       } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    // Fill in any missing settings, then apply every threshold or filter change to
+    // the running pipeline from the next frame on; the vision threads are not rebuilt.
+    private void listenForSettings() {
+      double[] filter = parameters.filter();
+      settingsTable.getEntry("Hue").setDefaultDoubleArray(parameters.hue());
+      settingsTable.getEntry("Saturation").setDefaultDoubleArray(parameters.saturation());
+      settingsTable.getEntry("Luminance").setDefaultDoubleArray(parameters.luminance());
+      settingsTable.getEntry("Min Area").setDefaultDouble(filter[0]);
+      settingsTable.getEntry("Min Perimeter").setDefaultDouble(filter[1]);
+      settingsTable.getEntry("Width").setDefaultDoubleArray(new double[] {filter[2], filter[3]});
+      settingsTable.getEntry("Height").setDefaultDoubleArray(new double[] {filter[4], filter[5]});
+      settingsTable.getEntry("Solidity").setDefaultDoubleArray(new double[] {filter[6], filter[7]});
+      settingsTable.getEntry("Vertices").setDefaultDoubleArray(new double[] {filter[8], filter[9]});
+      settingsTable.getEntry("Ratio").setDefaultDoubleArray(new double[] {filter[10], filter[11]});
+      updateParameters();
+      settingsTable.addEntryListener((table, key, entry, value, flags) -> {
+        if (!"Exposure".equals(key) && !"Record".equals(key)) {
+          updateParameters();
+        }
+      }, EntryListenerFlags.kNew | EntryListenerFlags.kUpdate);
+    }
+
+    // Read every threshold and filter setting into a new snapshot and hand it to
+    // the running pipeline
+    private synchronized void updateParameters() {
+      PipelineParameters current = parameters;
+      double[] filter = current.filter();
+      PipelineParameters updated;
+      try {
+        updated = current
+            .withHsl(settingsTable.getEntry("Hue").getDoubleArray(current.hue()),
+                settingsTable.getEntry("Saturation").getDoubleArray(current.saturation()),
+                settingsTable.getEntry("Luminance").getDoubleArray(current.luminance()))
+            .withMinArea(settingsTable.getEntry("Min Area").getDouble(filter[0]))
+            .withMinPerimeter(settingsTable.getEntry("Min Perimeter").getDouble(filter[1]))
+            .withWidth(settingsTable.getEntry("Width").getDoubleArray(new double[] {filter[2], filter[3]}))
+            .withHeight(settingsTable.getEntry("Height").getDoubleArray(new double[] {filter[4], filter[5]}))
+            .withSolidity(settingsTable.getEntry("Solidity").getDoubleArray(new double[] {filter[6], filter[7]}))
+            .withVertices(settingsTable.getEntry("Vertices").getDoubleArray(new double[] {filter[8], filter[9]}))
+            .withRatio(settingsTable.getEntry("Ratio").getDoubleArray(new double[] {filter[10], filter[11]}));
+      } catch (IllegalArgumentException ex) {
+        System.err.println("ignoring " + settingsTable.getPath() + ": " + ex.getMessage());
+        rejectedParameterUpdates++;
         return;
       }
+      parameters = updated;
+      pipeline.setParameters(updated);
+      parameterUpdates++;
+    }
+  }
 
-      if (ntReady && !visionMode.equals(previousSelected)) {
-        initCamera();
+  // **************************************************************************
+  // *
+  // * Build a camera's frame recorder from its "record" settings
+  // *
+  // **************************************************************************
+
+  private static FrameRecorder makeRecorder(String name, JsonObject config) {
+    File directory = new File(config.has("directory") ? config.get("directory").getAsString()
+        : DEFAULT_RECORDING_DIRECTORY);
+    int buffers = config.has("buffers") ? config.get("buffers").getAsInt() : FrameRecorder.DEFAULT_BUFFERS;
+    boolean overlay = config.has("overlay") && config.get("overlay").getAsBoolean();
+    return new FrameRecorder(name, directory, (int) IMAGE_WIDTH_PIXELS, (int) IMAGE_HEIGHT_PIXELS, buffers,
+        overlay);
+  }
 
-        mjpegServer.setSource(cvOutputStream);
-        //setCameraExposure(PT_CAMERA_EXPOSURE);
-        currentVisionThread = makeVisionThread();
-        currentVisionThread.start();
-        System.out.println("Starting Vision Thread");
-        previousSelected = visionMode;
+  private static double[] readRange(JsonObject config, String key, double[] fallback, String camera) {
+    if (!config.has(key)) {
+      return fallback;
+    }
+    JsonElement element = config.get(key);
+    if (element.isJsonArray() && element.getAsJsonArray().size() == 2) {
+      JsonArray range = element.getAsJsonArray();
+      if (isNumber(range.get(0)) && isNumber(range.get(1))) {
+        return new double[] {range.get(0).getAsDouble(), range.get(1).getAsDouble()};
       }
     }
+    parseError("camera '" + camera + "': " + key + " must be an array of two numbers, not '" + element + "'");
+    return fallback;
   }
 
-  static ArrayList<Double> distances = new ArrayList<Double>();
-  private static VisionThread makeVisionThread() {
-    return new VisionThread(shooterCamera, new GripPipeline(hslThresholdHue, hslThresholdSaturation, hslThresholdLuminance), pipeline -> {
-      // This grabs a snapshot of the live image currently being streamed
-      //cvSink.grabFrame(openCVOverlay);
-      Mat openCVOverlay = pipeline.cvFlipOutput();
-      
-      double xOff = deviationFromCenter.getDouble(0.0);
-
-      Core.rotate(openCVOverlay, openCVOverlay, Core.ROTATE_90_CLOCKWISE);
-
-      Imgproc.line(openCVOverlay, new Point((IMAGE_WIDTH_PIXELS / 2), IMAGE_HEIGHT_PIXELS),
-          new Point((IMAGE_WIDTH_PIXELS / 2), 0), greenColor, 3, 4);
-      // double greenX = (IMAGE_HEIGHT_PIXELS / 2);
-      
-      Imgproc.line(openCVOverlay, new Point((xOff + IMAGE_WIDTH_PIXELS / 2), IMAGE_HEIGHT_PIXELS),
-      new Point((xOff + IMAGE_WIDTH_PIXELS / 2), 0), redColor, 3, 4);
-      //double greenX = (IMAGE_HEIGHT_PIXELS / 2);
-
-      // Imgproc.line(openCVOverlay, new Point((IMAGE_HEIGHT_PIXELS / 2) + xOff, 25),
-      //     new Point((IMAGE_HEIGHT_PIXELS / 2) + xOff, IMAGE_WIDTH_PIXELS - 10), greenColor, 3, 4);
-      // double greenX = (IMAGE_HEIGHT_PIXELS / 2) + xOff;
-
-      cvOutputStream.putFrame(openCVOverlay);
-
-      ArrayList<MatOfPoint> filterContoursOutput = pipeline.filterContoursOutput();
-
-      double minx = 99999;
-      double miny = 99999;
-      double maxx = 0;
-      double maxy = 0;
-      // double width;
-      // double height;
-      double[] minX = new double[filterContoursOutput.size()];
-      double[] minY = new double[filterContoursOutput.size()];
-      double[] maxX = new double[filterContoursOutput.size()];
-      double[] maxY = new double[filterContoursOutput.size()];
-      double[] areas = new double[filterContoursOutput.size()];
-      double[] centerX = new double[filterContoursOutput.size()];
-      double[] centerY = new double[filterContoursOutput.size()];
-      int count = 0;
-      
-      
-      for (MatOfPoint points : filterContoursOutput) {
-        areas[count] = Imgproc.contourArea(points);
-        // double current_min_x = minx;
-        // double current_min_y = miny;
-        // double current_max_x = maxx;
-        // double current_max_y = maxy; 
-        double shape_min_x = 99999;
-        double shape_min_y = 99999;
-        double shape_max_x = 0;
-        double shape_max_y = 0;
-        // boolean isValid = true;
-        for(Point point : points.toArray()) {
-
-          if (point.x < minx) {
-            minx = point.x;
-          }
-          if (point.x > maxx) {
-            maxx = point.x;
-          }
-          if (point.y < miny) {
-            miny = point.y;
-          }
-          if (point.y > maxy) {
-            maxy = point.y;
-          }
-
-          if (point.x < shape_min_x) {
-            shape_min_x = point.x;
-          }
-          if (point.x > shape_max_x) {
-            shape_max_x = point.x;
-          }
-          if (point.y < shape_min_y) {
-            shape_min_y = point.y;
-          }
-          if (point.y > shape_max_y) {
-            shape_max_y = point.y;
-          }
-        }
-        minX[count] = shape_min_x;
-        minY[count] = shape_min_y;
-        maxX[count] = shape_max_x;
-        maxY[count] = shape_max_y;
-        centerX[count] = shape_min_x + (shape_max_x - shape_min_x) / 2;
-        centerY[count] = shape_min_y + (shape_max_y - shape_min_y) / 2;
-        count++;
-
-      }
-      
-      // width = maxx - minx;
-      // height = maxy - miny;
-
-      // System.out.println("X: " + minx);
-      double yAve = 0;
-      double xAve = 0;
-      for(int i = 0; i < centerX.length; i++){
-        xAve += centerX[i];
-        yAve += centerY[i];
-      }
-      xAve /= centerX.length;
-      yAve /= centerY.length;
-      double dist = -1.2033 * yAve + 23.176;
-      if(distances.size() < 10){
-        distances.add(dist);
-      }
-      else{
-        distances.remove(0);
-        distances.add(dist);
-      }
-      dist = 0;
-      for(double distance : distances){
-        dist += distance;
-      }
-      dist /= distances.size();
-
-      shapesMinX.setDoubleArray(minX);
-      shapesMinY.setDoubleArray(minY);
-      shapesMaxX.setDoubleArray(maxX);
-      shapesMaxY.setDoubleArray(maxY);
-      shapesAreas.setDoubleArray(areas);
-      boundsX.setDouble(xAve);
-      boundsY.setDouble(yAve);
-      
-      width.setDouble(dist);
-      averageHeight.setDouble(yAve);
-      hubTopLeftX.setNumber(minx);
-      hubTopLeftY.setNumber(miny);
-      hubBottomRightX.setNumber(maxx);
-      hubBottomRightY.setNumber(maxy);      
-      deviationFromCenter.setNumber(xAve - IMAGE_WIDTH_PIXELS / 2);
-    });
+  private static boolean isNumber(JsonElement element) {
+    return element.isJsonPrimitive() && element.getAsJsonPrimitive().isNumber();
+  }
+
+  // **************************************************************************
+  // *
+  // * Build the region-of-interest tracker from a camera's "tracking" settings
+  // *
+  // **************************************************************************
+  private static TrackingWindow makeTrackingWindow(JsonObject config) {
+    int padding = config.has("padding") ? config.get("padding").getAsInt() : TrackingWindow.DEFAULT_PADDING;
+    double growth = config.has("growth") ? config.get("growth").getAsDouble() : TrackingWindow.DEFAULT_GROWTH;
+    int maxMisses = config.has("maxMisses") ? config.get("maxMisses").getAsInt() : TrackingWindow.DEFAULT_MAX_MISSES;
+    int refreshFrames = config.has("refreshFrames") ? config.get("refreshFrames").getAsInt()
+        : TrackingWindow.DEFAULT_REFRESH_FRAMES;
+    return new TrackingWindow(padding, growth, maxMisses, refreshFrames);
+  }
+
+  private static HubTracker makeHubTracker(JsonObject config) {
+    if (config == null || !config.has("tracker")) {
+      return new HubTracker();
+    }
+    JsonObject tracker = config.getAsJsonObject("tracker");
+    double alpha = tracker.has("alpha") ? tracker.get("alpha").getAsDouble() : HubTracker.DEFAULT_ALPHA;
+    double beta = tracker.has("beta") ? tracker.get("beta").getAsDouble() : HubTracker.DEFAULT_BETA;
+    int maxMisses = tracker.has("maxMisses") ? tracker.get("maxMisses").getAsInt() : HubTracker.DEFAULT_MAX_MISSES;
+    return new HubTracker(alpha, beta, maxMisses);
+  }
+
+  private static void configureHubPublisher(HubPublisher publisher, JsonObject config) {
+    if (config.has("legacyEntries")) {
+      publisher.setLegacyEntries(config.get("legacyEntries").getAsBoolean());
+    }
+    double positionDelta = config.has("positionDelta") ? config.get("positionDelta").getAsDouble()
+        : HubPublisher.DEFAULT_POSITION_DELTA;
+    double distanceDelta = config.has("distanceDelta") ? config.get("distanceDelta").getAsDouble()
+        : HubPublisher.DEFAULT_DISTANCE_DELTA;
+    long keepAliveMicros = config.has("keepAliveMs") ? config.get("keepAliveMs").getAsLong() * 1000
+        : HubPublisher.DEFAULT_KEEP_ALIVE_MICROS;
+    publisher.setDeltas(positionDelta, distanceDelta, keepAliveMicros);
   }
 
   private static void setShooterCameraExposure(int value) {
+    boolean changed = value != shooterCameraExposure;
     shooterCameraExposure = value;
     if(shooterCamera != null) {
-      System.out.println("setting shooter cam exposure to " + shooterCameraExposure);
+      if (changed) {
+        System.out.println("setting shooter cam exposure to " + shooterCameraExposure);
+      }
       shooterCamera.setExposureManual(shooterCameraExposure);
     }
   }
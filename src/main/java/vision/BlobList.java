@@ -0,0 +1,108 @@
+package vision;
+
+import java.util.Arrays;
+
+/**
+* BlobList class.
+*
+* <p>Struct-of-arrays holding the bounding box and area of every blob kept in a frame.
+* The arrays grow as needed and never shrink, so once warmed up, filling a BlobList
+* allocates nothing. Box edges are inclusive pixel coordinates in the frame as captured.
+*/
+public class BlobList {
+
+	private int size;
+	private int[] minX = new int[16];
+	private int[] minY = new int[16];
+	private int[] maxX = new int[16];
+	private int[] maxY = new int[16];
+	private double[] area = new double[16];
+
+	/**
+	 * Empties the list, keeping its storage.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Appends a blob.
+	 */
+	public void add(int minX, int minY, int maxX, int maxY, double area) {
+		if (size == this.minX.length) {
+			grow(size + 1);
+		}
+		this.minX[size] = minX;
+		this.minY[size] = minY;
+		this.maxX[size] = maxX;
+		this.maxY[size] = maxY;
+		this.area[size] = area;
+		size++;
+	}
+
+	/**
+	 * Replaces the contents of this list with those of another.
+	 */
+	public void copyFrom(BlobList other) {
+		if (minX.length < other.size) {
+			grow(other.size);
+		}
+		System.arraycopy(other.minX, 0, minX, 0, other.size);
+		System.arraycopy(other.minY, 0, minY, 0, other.size);
+		System.arraycopy(other.maxX, 0, maxX, 0, other.size);
+		System.arraycopy(other.maxY, 0, maxY, 0, other.size);
+		System.arraycopy(other.area, 0, area, 0, other.size);
+		size = other.size;
+	}
+
+	private void grow(int capacity) {
+		final int length = Math.max(capacity, minX.length * 2);
+		minX = Arrays.copyOf(minX, length);
+		minY = Arrays.copyOf(minY, length);
+		maxX = Arrays.copyOf(maxX, length);
+		maxY = Arrays.copyOf(maxY, length);
+		area = Arrays.copyOf(area, length);
+	}
+
+	/**
+	 * @return the number of blobs.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the left edge of blob i.
+	 */
+	public int minX(int i) {
+		return minX[i];
+	}
+
+	/**
+	 * @return the top edge of blob i.
+	 */
+	public int minY(int i) {
+		return minY[i];
+	}
+
+	/**
+	 * @return the right edge of blob i.
+	 */
+	public int maxX(int i) {
+		return maxX[i];
+	}
+
+	/**
+	 * @return the bottom edge of blob i.
+	 */
+	public int maxY(int i) {
+		return maxY[i];
+	}
+
+	/**
+	 * @return the contour area of blob i.
+	 */
+	public double area(int i) {
+		return area[i];
+	}
+}
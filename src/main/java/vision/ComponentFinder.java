@@ -0,0 +1,165 @@
+package vision;
+
+import java.util.Arrays;
+
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+/**
+* ComponentFinder class.
+*
+* <p>Finds the blobs in a binary mask with one connectedComponentsWithStats call and
+* keeps the bounding box, pixel count and centroid of each in primitive arrays. Unlike
+* findContours, no MatOfPoint is made per blob and no hierarchy is built; the stats and
+* centroids come back in two Mats that are read with one bulk copy each. Blobs are
+* 8-connected, like contours. Only foreground blobs are found, so the holes that
+* RETR_LIST reports as contours of their own are not.
+*
+* <p>Results from several masks, such as the regions searched while tracking, can be
+* collected by calling find once per mask. The Mats and arrays grow as needed and are
+* reused, so finding blobs allocates nothing once warmed up. The Mats come from a
+* MatPool, which frees them when it is closed.
+*/
+public class ComponentFinder {
+
+	private final Mat labels;
+	private final Mat stats;
+	private final Mat centroids;
+	private int[] statsBuffer = new int[16 * Imgproc.CC_STAT_MAX];
+	private double[] centroidsBuffer = new double[16 * 2];
+
+	private int size;
+	private int[] minX = new int[16];
+	private int[] minY = new int[16];
+	private int[] maxX = new int[16];
+	private int[] maxY = new int[16];
+	private double[] area = new double[16];
+	private double[] centroidX = new double[16];
+	private double[] centroidY = new double[16];
+
+	public ComponentFinder() {
+		this(new MatPool());
+	}
+
+	/**
+	 * @param mats where the labels, stats and centroids Mats come from.
+	 */
+	public ComponentFinder(MatPool mats) {
+		labels = mats.acquire();
+		stats = mats.acquire();
+		centroids = mats.acquire();
+	}
+
+	/**
+	 * Empties the results, keeping their storage.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Appends the blobs in a mask.
+	 * @param mask a single channel binary image.
+	 * @param offsetX added to every x, for a mask of a region of a larger frame.
+	 * @param offsetY added to every y.
+	 */
+	public void find(Mat mask, int offsetX, int offsetY) {
+		// label 0 is the background
+		final int labelCount = Imgproc.connectedComponentsWithStats(mask, labels, stats, centroids, 8,
+			CvType.CV_32S);
+		final int found = labelCount - 1;
+		if (found <= 0) {
+			return;
+		}
+		if (statsBuffer.length < labelCount * Imgproc.CC_STAT_MAX) {
+			statsBuffer = new int[Math.max(labelCount, statsBuffer.length / Imgproc.CC_STAT_MAX * 2)
+				* Imgproc.CC_STAT_MAX];
+			centroidsBuffer = new double[statsBuffer.length / Imgproc.CC_STAT_MAX * 2];
+		}
+		stats.get(0, 0, statsBuffer);
+		centroids.get(0, 0, centroidsBuffer);
+		if (minX.length < size + found) {
+			grow(size + found);
+		}
+		for (int label = 1; label < labelCount; label++) {
+			final int s = label * Imgproc.CC_STAT_MAX;
+			final int left = statsBuffer[s + Imgproc.CC_STAT_LEFT] + offsetX;
+			final int top = statsBuffer[s + Imgproc.CC_STAT_TOP] + offsetY;
+			minX[size] = left;
+			minY[size] = top;
+			maxX[size] = left + statsBuffer[s + Imgproc.CC_STAT_WIDTH] - 1;
+			maxY[size] = top + statsBuffer[s + Imgproc.CC_STAT_HEIGHT] - 1;
+			area[size] = statsBuffer[s + Imgproc.CC_STAT_AREA];
+			centroidX[size] = centroidsBuffer[label * 2] + offsetX;
+			centroidY[size] = centroidsBuffer[label * 2 + 1] + offsetY;
+			size++;
+		}
+	}
+
+	private void grow(int capacity) {
+		final int length = Math.max(capacity, minX.length * 2);
+		minX = Arrays.copyOf(minX, length);
+		minY = Arrays.copyOf(minY, length);
+		maxX = Arrays.copyOf(maxX, length);
+		maxY = Arrays.copyOf(maxY, length);
+		area = Arrays.copyOf(area, length);
+		centroidX = Arrays.copyOf(centroidX, length);
+		centroidY = Arrays.copyOf(centroidY, length);
+	}
+
+	/**
+	 * @return the number of blobs found since the last clear.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the left edge of blob i.
+	 */
+	public int minX(int i) {
+		return minX[i];
+	}
+
+	/**
+	 * @return the top edge of blob i.
+	 */
+	public int minY(int i) {
+		return minY[i];
+	}
+
+	/**
+	 * @return the right edge of blob i.
+	 */
+	public int maxX(int i) {
+		return maxX[i];
+	}
+
+	/**
+	 * @return the bottom edge of blob i.
+	 */
+	public int maxY(int i) {
+		return maxY[i];
+	}
+
+	/**
+	 * @return the number of pixels in blob i.
+	 */
+	public double area(int i) {
+		return area[i];
+	}
+
+	/**
+	 * @return the x of blob i's centroid.
+	 */
+	public double centroidX(int i) {
+		return centroidX[i];
+	}
+
+	/**
+	 * @return the y of blob i's centroid.
+	 */
+	public double centroidY(int i) {
+		return centroidY[i];
+	}
+}
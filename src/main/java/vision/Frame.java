@@ -0,0 +1,29 @@
+package vision;
+
+import org.opencv.core.*;
+
+/**
+* Frame class.
+*
+* <p>One captured image and everything worked out from it as it moves through the
+* stages of a StagedVisionRunner. Frames are preallocated and recycled; at any time a
+* frame is owned by exactly one stage or hand-off slot.
+*/
+public class Frame {
+
+	/** The image as captured. The overlay stage draws on it. */
+	public final Mat image = new Mat();
+	/** The contours kept by the pipeline. */
+	public final BlobList blobs = new BlobList();
+	/** Capture order, starting from 1. */
+	public long sequence;
+	/** Capture timestamp from CvSink.grabFrame, in microseconds on the wpiutil clock. */
+	public long captureMicros;
+	/** Horizontal offset of the hub from the middle of the output frame, set when published. */
+	public double deviationFromCenter;
+	/**
+	 * The settings to process the image with, if its source carries them, as a recording
+	 * does; otherwise null at capture. Once processed, the settings it was processed with.
+	 */
+	public PipelineParameters parameters;
+}
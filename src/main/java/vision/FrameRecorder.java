@@ -0,0 +1,383 @@
+package vision;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.*;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+/**
+* FrameRecorder class.
+*
+* <p>Records frames, with the pipeline parameters they were processed with and the
+* results they produced, for tuning and replay after a match. Recording a frame only
+* copies it into one of a fixed number of preallocated buffers; if none is free
+* because the disk has fallen behind, the frame is dropped rather than waited for. A
+* background thread JPEG-encodes waiting frames in batches and appends them to a
+* recording file, with a fixed-size entry per frame in a separate index file.
+*
+* <p>Each call to start opens a new pair of files named after the camera and the time.
+* The recording (.vrec) is a sequence of big-endian records:
+*
+* <pre>
+* int     magic 'VREC'
+* short   version (1)
+* short   flags: 1 if an image with the blob boxes drawn follows the raw one
+* long    frame sequence number
+* long    capture time in microseconds
+* double  hue, saturation and luminance {min, max}, 6 values
+* double  the 12 Filter_Contours values, in PipelineParameters.filter() order
+* double  deviationFromCenter
+* int     blob count N
+* N x     int minX, minY, maxX, maxY, double area
+* int     raw JPEG length, then the JPEG
+* int     overlay JPEG length, then the JPEG, if flagged
+* </pre>
+*
+* <p>The index (.vidx) holds a 32-byte entry per record: long sequence, long capture
+* time, long offset of the record in the recording, int record length, int flags.
+* RecordingReader reads both.
+*/
+public class FrameRecorder {
+
+	public static final int MAGIC = 0x56524543;
+	public static final int VERSION = 1;
+	public static final int FLAG_OVERLAY = 1;
+	public static final int INDEX_ENTRY_BYTES = 32;
+	public static final int DEFAULT_BUFFERS = 16;
+	public static final int DEFAULT_JPEG_QUALITY = 90;
+
+	private static final int MAX_BATCH = 8;
+	private static final Scalar RED = new Scalar(0.0, 0.0, 255.0);
+
+	/**
+	 * A preallocated buffer holding one frame waiting to be written.
+	 */
+	private static final class Slot {
+		final Mat image;
+		final BlobList blobs = new BlobList();
+		long sequence;
+		long captureMicros;
+		double deviationFromCenter;
+		PipelineParameters parameters;
+
+		Slot(int width, int height) {
+			image = new Mat(height, width, CvType.CV_8UC3);
+		}
+	}
+
+	private final String name;
+	private final File directory;
+	private final boolean overlay;
+	private final ArrayBlockingQueue<Slot> free;
+	private final ArrayBlockingQueue<Slot> pending;
+	private final AtomicLong recorded = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final MatOfInt jpegParams;
+	private final MatOfByte jpeg = new MatOfByte();
+	private final Mat overlayImage = new Mat();
+	private final Point top = new Point();
+	private final Point bottom = new Point();
+	private final ArrayList<Slot> batch = new ArrayList<Slot>(MAX_BATCH);
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+	private final ByteBuffer indexBuffer = ByteBuffer.allocateDirect(MAX_BATCH * INDEX_ENTRY_BYTES);
+	private byte[] jpegBytes = new byte[1 << 16];
+	private volatile boolean recording;
+	private volatile boolean writing;
+	private FileChannel data;
+	private FileChannel index;
+	private Thread writer;
+
+	/**
+	 * @param name the camera name, used in the file names.
+	 * @param directory where recordings are written.
+	 * @param width the width of the frames that will be recorded.
+	 * @param height the height of the frames that will be recorded.
+	 * @param buffers how many frames may wait to be written at once.
+	 * @param overlay true to also store an overlay image drawn from each frame's results.
+	 */
+	public FrameRecorder(String name, File directory, int width, int height, int buffers, boolean overlay) {
+		if (buffers < 1) {
+			throw new IllegalArgumentException("a recorder needs at least one buffer");
+		}
+		this.name = name;
+		this.directory = directory;
+		this.overlay = overlay;
+		free = new ArrayBlockingQueue<Slot>(buffers);
+		pending = new ArrayBlockingQueue<Slot>(buffers);
+		for (int i = 0; i < buffers; i++) {
+			free.add(new Slot(width, height));
+		}
+		jpegParams = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, DEFAULT_JPEG_QUALITY);
+	}
+
+	/**
+	 * Opens a new recording and starts writing frames to it. Does nothing if already
+	 * recording.
+	 */
+	public synchronized void start() throws IOException, InterruptedException {
+		if (recording) {
+			return;
+		}
+		// the writer of a recording ended by a write error
+		stop();
+		directory.mkdirs();
+		final String base = name + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		data = FileChannel.open(new File(directory, base + ".vrec").toPath(), StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		index = FileChannel.open(new File(directory, base + ".vidx").toPath(), StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		recording = true;
+		writing = true;
+		writer = new Thread(this::write, name + "-recorder");
+		writer.setDaemon(true);
+		writer.setPriority(Thread.MIN_PRIORITY);
+		writer.start();
+		System.out.println(name + ": recording to " + base);
+	}
+
+	/**
+	 * Stops recording once the frames already waiting are written, and closes the files.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (writer == null) {
+			return;
+		}
+		recording = false;
+		writer.join();
+		writer = null;
+		closeFiles();
+	}
+
+	/**
+	 * Closes the recording and index files, if open.
+	 */
+	private void closeFiles() {
+		try {
+			if (data != null) {
+				data.close();
+			}
+			if (index != null) {
+				index.close();
+			}
+		} catch (IOException ex) {
+			System.err.println(name + ": closing recording: " + ex);
+		} finally {
+			data = null;
+			index = null;
+		}
+	}
+
+	/**
+	 * @return true while frames are being recorded.
+	 */
+	public boolean isRecording() {
+		return recording;
+	}
+
+	/**
+	 * Copies a published frame into a free buffer for the writer. Never blocks.
+	 * @param frame the frame, with its results.
+	 * @return false if the frame was dropped because no buffer was free or the recorder
+	 *     is stopped.
+	 */
+	public boolean record(Frame frame) {
+		if (!recording) {
+			return false;
+		}
+		final Slot slot = free.poll();
+		if (slot == null) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		frame.image.copyTo(slot.image);
+		slot.blobs.copyFrom(frame.blobs);
+		slot.sequence = frame.sequence;
+		slot.captureMicros = frame.captureMicros;
+		slot.deviationFromCenter = frame.deviationFromCenter;
+		slot.parameters = frame.parameters;
+		pending.add(slot);
+		// The writer may have finished since recording was checked; it would never take
+		// the slot, so it goes straight back. The writer does the same after it finishes.
+		if (!writing) {
+			reclaimPending();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns every waiting slot to the free buffers unwritten.
+	 */
+	private void reclaimPending() {
+		Slot slot;
+		while ((slot = pending.poll()) != null) {
+			slot.parameters = null;
+			free.add(slot);
+		}
+	}
+
+	/**
+	 * @return the number of frames written.
+	 */
+	public long recordedFrames() {
+		return recorded.get();
+	}
+
+	/**
+	 * @return the number of frames dropped because the writer had fallen behind.
+	 */
+	public long droppedFrames() {
+		return dropped.get();
+	}
+
+	private void write() {
+		boolean failed = false;
+		try {
+			while (recording || !pending.isEmpty()) {
+				final Slot first = pending.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				pending.drainTo(batch, MAX_BATCH - 1);
+				if (!failed) {
+					try {
+						writeBatch();
+					} catch (IOException ex) {
+						System.err.println(name + ": recording stopped: " + ex);
+						recording = false;
+						failed = true;
+						closeFiles();
+					}
+				}
+				for (Slot slot : batch) {
+					slot.parameters = null;
+					free.add(slot);
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException ex) {
+			// stopping
+		} finally {
+			writing = false;
+			reclaimPending();
+		}
+	}
+
+	/**
+	 * Encodes every frame in the batch, then appends the records and their index
+	 * entries with one write each.
+	 */
+	private void writeBatch() throws IOException {
+		long offset = data.size();
+		buffer.clear();
+		indexBuffer.clear();
+		for (Slot slot : batch) {
+			final int start = buffer.position();
+			final PipelineParameters parameters = slot.parameters == null ? PipelineParameters.DEFAULTS
+				: slot.parameters;
+			final int flags = overlay ? FLAG_OVERLAY : 0;
+			final int blobs = slot.blobs.size();
+			ensureCapacity(4 + 2 + 2 + 8 + 8 + 19 * 8 + 4 + blobs * 24);
+			buffer.putInt(MAGIC);
+			buffer.putShort((short) VERSION);
+			buffer.putShort((short) flags);
+			buffer.putLong(slot.sequence);
+			buffer.putLong(slot.captureMicros);
+			putRange(parameters.hueBounds());
+			putRange(parameters.saturationBounds());
+			putRange(parameters.luminanceBounds());
+			for (double value : parameters.filterValues()) {
+				buffer.putDouble(value);
+			}
+			buffer.putDouble(slot.deviationFromCenter);
+			buffer.putInt(blobs);
+			for (int i = 0; i < blobs; i++) {
+				buffer.putInt(slot.blobs.minX(i));
+				buffer.putInt(slot.blobs.minY(i));
+				buffer.putInt(slot.blobs.maxX(i));
+				buffer.putInt(slot.blobs.maxY(i));
+				buffer.putDouble(slot.blobs.area(i));
+			}
+			putJpeg(slot.image);
+			if (overlay) {
+				drawOverlay(slot);
+				putJpeg(overlayImage);
+			}
+			final int length = buffer.position() - start;
+			indexBuffer.putLong(slot.sequence);
+			indexBuffer.putLong(slot.captureMicros);
+			indexBuffer.putLong(offset);
+			indexBuffer.putInt(length);
+			indexBuffer.putInt(flags);
+			offset += length;
+		}
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			data.write(buffer);
+		}
+		indexBuffer.flip();
+		while (indexBuffer.hasRemaining()) {
+			index.write(indexBuffer);
+		}
+		recorded.addAndGet(batch.size());
+	}
+
+	private void putRange(double[] range) {
+		buffer.putDouble(range[0]);
+		buffer.putDouble(range[1]);
+	}
+
+	private void putJpeg(Mat image) {
+		Imgcodecs.imencode(".jpg", image, jpeg, jpegParams);
+		final int length = (int) jpeg.total();
+		if (jpegBytes.length < length) {
+			jpegBytes = new byte[Math.max(length, jpegBytes.length * 2)];
+		}
+		jpeg.get(0, 0, jpegBytes);
+		ensureCapacity(4 + length);
+		buffer.putInt(length);
+		buffer.put(jpegBytes, 0, length);
+	}
+
+	/**
+	 * Draws the kept blobs' boxes on a copy of the frame. The boxes are in the frame's
+	 * captured coordinates, so unlike the stream overlay this is correct whatever the
+	 * camera's orientation.
+	 */
+	private void drawOverlay(Slot slot) {
+		slot.image.copyTo(overlayImage);
+		for (int i = 0; i < slot.blobs.size(); i++) {
+			top.x = slot.blobs.minX(i);
+			top.y = slot.blobs.minY(i);
+			bottom.x = slot.blobs.maxX(i);
+			bottom.y = slot.blobs.maxY(i);
+			Imgproc.rectangle(overlayImage, top, bottom, RED, 2);
+		}
+	}
+
+	/**
+	 * Grows the batch buffer, keeping what has been written to it, if fewer than
+	 * needed bytes are left.
+	 */
+	private void ensureCapacity(int needed) {
+		if (buffer.remaining() < needed) {
+			final ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2,
+				buffer.position() + needed));
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+	}
+}
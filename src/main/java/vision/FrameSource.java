@@ -0,0 +1,58 @@
+package vision;
+
+import org.opencv.core.*;
+
+import edu.wpi.cscore.CvSink;
+
+/**
+* FrameSource interface.
+*
+* <p>Where a StagedVisionRunner gets its frames: a live camera through a CvSink, or a
+* recording through a ReplaySource.
+*/
+public interface FrameSource {
+
+	/**
+	 * Waits for the next frame and copies it into image.
+	 * @param image the Mat to fill.
+	 * @return the capture timestamp in microseconds on the wpiutil clock, or 0 on error.
+	 */
+	long grabFrame(Mat image);
+
+	/**
+	 * @return a description of the last error.
+	 */
+	String getError();
+
+	/**
+	 * @return true once the source has no more frames to give; live sources never end.
+	 */
+	default boolean isExhausted() {
+		return false;
+	}
+
+	/**
+	 * @return the settings the last frame grabbed was processed with when it was
+	 *     recorded, or null if the source does not carry them, as live sources do not.
+	 */
+	default PipelineParameters parameters() {
+		return null;
+	}
+
+	/**
+	 * Adapts a CvSink whose source has already been set.
+	 */
+	static FrameSource of(CvSink sink) {
+		return new FrameSource() {
+			@Override
+			public long grabFrame(Mat image) {
+				return sink.grabFrame(image);
+			}
+
+			@Override
+			public String getError() {
+				return sink.getError();
+			}
+		};
+	}
+}
@@ -1,6 +1,7 @@
 package vision;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import edu.wpi.first.vision.VisionPipeline;
 
@@ -16,66 +17,330 @@ import org.opencv.imgproc.*;
 */
 public class GripPipeline implements VisionPipeline {
 
+	// Every Mat the pipeline keeps comes from here, so its native memory is counted and
+	// can be freed at once.
+	private final MatPool mats = new MatPool();
+
 	//Outputs
-	private Mat cvTransposeOutput = new Mat();
-	private Mat cvFlipOutput = new Mat();
-	private Mat hslThresholdOutput = new Mat();
+	private Mat orientationOutput = mats.acquire();
+	private Mat hslThresholdOutput = mats.acquire();
 	private ArrayList<MatOfPoint> findContoursOutput = new ArrayList<MatOfPoint>();
 	private ArrayList<MatOfPoint> filterContoursOutput = new ArrayList<MatOfPoint>();
-	private double[] hslThresholdHue;
-	private	double[] hslThresholdSaturation;
-	private	double[] hslThresholdLuminance;
+	private volatile Prepared prepared;
+	private Prepared frameParameters;
+	private Orientation orientation = Orientation.NONE;
+	private Mat lastSource;
+	private boolean orientationOutputValid;
+	private TrackingWindow trackingWindow;
+	private HubAggregator trackingAggregator;
+	private Orientation trackingOrientation;
+	private int trackingFrameWidth;
+	private int trackingFrameHeight;
+	private final Rect trackingBounds = new Rect();
+	private final Point findContoursOffset = new Point();
+	private final ArrayList<MatOfPoint> regionContours = new ArrayList<MatOfPoint>();
+	private int pyramidLevel;
+	private VisionStats stats = VisionStats.DISABLED;
+	private long thresholdNanos;
+	private long contoursNanos;
+	private final HslLookupTable hslLookupTable = new HslLookupTable();
+	private final HslLookupTable.Buffers lookupBuffers = new HslLookupTable.Buffers(mats);
+	private final Rect filterContoursBounds = new Rect();
+	private final BlobList filterContoursBlobs = new BlobList();
+	private final ComponentFinder componentFinder = new ComponentFinder(mats);
+	private volatile BlobEngine blobEngine = BlobEngine.CONTOURS;
+	private boolean useComponents;
+
+	//Coarse-to-fine scratch, reused across frames
+	private final Mat[] pyramid = {mats.acquire(), mats.acquire()};
+	private final Mat refineMask = mats.acquire();
+	private final ArrayList<MatOfPoint> coarseContours = new ArrayList<MatOfPoint>();
+	private final ComponentFinder coarseComponents = new ComponentFinder(mats);
+	private final Rect refineRect = new Rect();
+	private int[] refineRegions = new int[64];
+	private int refineCount;
+
+	//HSL_Threshold bounds, refilled for each call
+	private final Scalar thresholdLower = new Scalar(0, 0, 0);
+	private final Scalar thresholdUpper = new Scalar(0, 0, 0);
+
+	//Filter_Contours scratch, reused across frames
+	private final MatOfInt filterHull = new MatOfInt();
+	private int[] filterPoints = new int[256];
+	private int[] filterHullIndices = new int[128];
+
+	/** The coarsest pyramid level supported, a 4x downscale. */
+	public static final int MAX_PYRAMID_LEVEL = 2;
+
+	private static final Point ORIGIN = new Point();
 
 	static {
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
 	}
 
 	public GripPipeline(double[] hslThresholdHue, double[] hslThresholdSaturation, double[] hslThresholdLuminance){
-		this.hslThresholdHue = hslThresholdHue;
-		this.hslThresholdLuminance = hslThresholdLuminance;
-		this.hslThresholdSaturation = hslThresholdSaturation;
+		this(PipelineParameters.DEFAULTS.withHsl(hslThresholdHue, hslThresholdSaturation, hslThresholdLuminance));
+	}
+
+	public GripPipeline(PipelineParameters parameters) {
+		prepared = new Prepared(parameters, ThresholdMode.OPENCV, null);
+	}
+
+	/**
+	 * The parameters and threshold engine in use, along with anything precomputed from
+	 * them. Swapped as a whole so a frame always sees a consistent set.
+	 */
+	private static final class Prepared {
+		final PipelineParameters parameters;
+		final ThresholdMode thresholdMode;
+		final HslLookupTable lookupTable;
+
+		Prepared(PipelineParameters parameters, ThresholdMode thresholdMode, HslLookupTable lookupTable) {
+			this.parameters = parameters;
+			this.thresholdMode = thresholdMode;
+			this.lookupTable = lookupTable;
+		}
 	}
 
 	/**
 	 * This is the primary method that runs the entire pipeline and updates the outputs.
 	 */
 	public void process(Mat source0) {
-		// Step CV_transpose0:
-		Mat cvTransposeSrc1 = source0;
-		cvTranspose(cvTransposeSrc1, cvTransposeOutput);
-
-		// Step CV_flip0:
-		Mat cvFlipSrc = cvTransposeOutput;
-		FlipCode cvFlipFlipcode = FlipCode.X_AXIS;
-		cvFlip(cvFlipSrc, cvFlipFlipcode, cvFlipOutput);
-		// Step HSL_Threshold0:
-		Mat hslThresholdInput = source0;
-		hslThreshold(hslThresholdInput, hslThresholdHue, hslThresholdSaturation, hslThresholdLuminance, hslThresholdOutput);
-
-		// Step Find_Contours0:
-		Mat findContoursInput = hslThresholdOutput;
-		boolean findContoursExternalOnly = false;
-		findContours(findContoursInput, findContoursExternalOnly, findContoursOutput);
+		// The oriented frame is only built if someone asks for it.
+		lastSource = source0;
+		orientationOutputValid = false;
+		thresholdNanos = 0;
+		contoursNanos = 0;
+		// Settings changed while a frame is in flight take effect on the next one.
+		frameParameters = prepared;
+		final PipelineParameters parameters = frameParameters.parameters;
+		// Blobs only need contours when a filter looks at their outline.
+		useComponents = blobEngine == BlobEngine.COMPONENTS && !parameters.needsContours();
+		// Last frame's contours are freed now rather than whenever finalization runs.
+		filterContoursOutput.clear();
+		NativeMemory.release(findContoursOutput);
+		componentFinder.clear();
+
+		// While tracking, only the window around the last hub box is searched.
+		final Rect window = trackingWindow == null ? null : trackingWindow.window(source0.cols(), source0.rows());
+		if (window != null) {
+			searchRegion(source0, window, hslThresholdOutput, findContoursOutput);
+		}
+		else if (pyramidLevel > 0) {
+			coarseToFine(source0, findContoursOutput);
+		}
+		else {
+			// Step HSL_Threshold0:
+			Mat hslThresholdInput = source0;
+			hslThreshold(hslThresholdInput, hslThresholdOutput);
+
+			// Step Find_Contours0:
+			Mat findContoursInput = hslThresholdOutput;
+			if (useComponents) {
+				findComponents(findContoursInput, 0, 0, componentFinder);
+			}
+			else {
+				boolean findContoursExternalOnly = false;
+				findContours(findContoursInput, findContoursExternalOnly, findContoursOutput);
+			}
+		}
+
+		stats.record(VisionStats.Stage.THRESHOLD, thresholdNanos);
+		stats.record(VisionStats.Stage.CONTOURS, contoursNanos);
 
 		// Step Filter_Contours0:
-		ArrayList<MatOfPoint> filterContoursContours = findContoursOutput;
-		double filterContoursMinArea = 3;
-		double filterContoursMinPerimeter = 0;
-		double filterContoursMinWidth = 0.0;
-		double filterContoursMaxWidth = 1000;
-		double filterContoursMinHeight = 0;
-		double filterContoursMaxHeight = 1000;
-		double[] filterContoursSolidity = {0, 100};
-		double filterContoursMaxVertices = 1000000;
-		double filterContoursMinVertices = 0;
-		double filterContoursMinRatio = 0;
-		double filterContoursMaxRatio = 1000.0;
-		filterContours(filterContoursContours, filterContoursMinArea, filterContoursMinPerimeter, filterContoursMinWidth, filterContoursMaxWidth, filterContoursMinHeight, filterContoursMaxHeight, filterContoursSolidity, filterContoursMaxVertices, filterContoursMinVertices, filterContoursMinRatio, filterContoursMaxRatio, filterContoursOutput);
+		final long filterStart = stats.start();
+		if (useComponents) {
+			filterComponents(parameters);
+		}
+		else {
+			ArrayList<MatOfPoint> filterContoursContours = findContoursOutput;
+			double filterContoursMinArea = parameters.minArea();
+			double filterContoursMinPerimeter = parameters.minPerimeter();
+			double filterContoursMinWidth = parameters.minWidth();
+			double filterContoursMaxWidth = parameters.maxWidth();
+			double filterContoursMinHeight = parameters.minHeight();
+			double filterContoursMaxHeight = parameters.maxHeight();
+			double[] filterContoursSolidity = parameters.solidityBounds();
+			double filterContoursMaxVertices = parameters.maxVertices();
+			double filterContoursMinVertices = parameters.minVertices();
+			double filterContoursMinRatio = parameters.minRatio();
+			double filterContoursMaxRatio = parameters.maxRatio();
+			filterContours(filterContoursContours, filterContoursMinArea, filterContoursMinPerimeter, filterContoursMinWidth, filterContoursMaxWidth, filterContoursMinHeight, filterContoursMaxHeight, filterContoursSolidity, filterContoursMaxVertices, filterContoursMinVertices, filterContoursMinRatio, filterContoursMaxRatio, filterContoursOutput);
+		}
+		stats.stop(VisionStats.Stage.FILTER, filterStart);
+
+		if (trackingWindow != null) {
+			updateTrackingWindow(source0.cols(), source0.rows());
+		}
+		mats.account();
+
+	}
+
+	/**
+	 * Moves the tracking window to the hub cluster HubSelector picks from the kept blobs,
+	 * the same one that is published, rather than the box around every kept blob.
+	 */
+	private void updateTrackingWindow(int frameWidth, int frameHeight) {
+		if (trackingAggregator == null || trackingOrientation != orientation
+				|| trackingFrameWidth != frameWidth || trackingFrameHeight != frameHeight) {
+			trackingAggregator = new HubAggregator(orientation, frameWidth, frameHeight);
+			trackingOrientation = orientation;
+			trackingFrameWidth = frameWidth;
+			trackingFrameHeight = frameHeight;
+		}
+		trackingAggregator.aggregate(filterContoursBlobs);
+		final Rect hub = trackingBounds;
+		final int count = trackingAggregator.captureBounds(filterContoursBlobs, hub);
+		trackingWindow.update(count >= TrackingWindow.MIN_HUB_SHAPES, hub.x, hub.y, hub.x + hub.width - 1,
+			hub.y + hub.height - 1);
+	}
+
+	/**
+	 * Enables or disables region-of-interest tracking.
+	 * @param trackingWindow the tracking state to use, or null to always search the full frame.
+	 */
+	public void setTrackingWindow(TrackingWindow trackingWindow) {
+		this.trackingWindow = trackingWindow;
+	}
+
+	/**
+	 * @return the tracking state, or null if tracking is disabled.
+	 */
+	public TrackingWindow trackingWindow() {
+		return trackingWindow;
+	}
 
+	/**
+	 * Sets how far the frame is downscaled before the full-frame search. At level 0 the
+	 * whole frame is thresholded at full resolution. At level 1 or 2 the threshold and
+	 * contour search run on a 2x or 4x pyrDown of the frame, and only the regions
+	 * around the blobs found there are searched again at full resolution. Strips
+	 * narrower than about 2^level pixels can vanish in the downscale.
+	 * @param pyramidLevel 0 to MAX_PYRAMID_LEVEL.
+	 */
+	public void setPyramidLevel(int pyramidLevel) {
+		if (pyramidLevel < 0 || pyramidLevel > MAX_PYRAMID_LEVEL) {
+			throw new IllegalArgumentException("pyramid level must be 0 to " + MAX_PYRAMID_LEVEL);
+		}
+		this.pyramidLevel = pyramidLevel;
 	}
 
 	/**
-	 * This method is a generated getter for the output of a HSL_Threshold.
+	 * @return the pyramid level used for full-frame searches.
+	 */
+	public int pyramidLevel() {
+		return pyramidLevel;
+	}
+
+	/**
+	 * Sets where the per-step timings of process are recorded.
+	 * @param stats the stats to record into, or VisionStats.DISABLED.
+	 */
+	public void setStats(VisionStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * Engines available for the HSL_Threshold step.
+	 */
+	public enum ThresholdMode {
+		/** cvtColor to HLS followed by inRange. */
+		OPENCV,
+		/** A quantized colour table lookup through an HslLookupTable. */
+		LOOKUP_TABLE
+	}
+
+	/**
+	 * Selects the engine used for the HSL_Threshold step. Like setParameters, this may be
+	 * called from any thread and the lookup table is built on the calling thread.
+	 * @param thresholdMode the engine.
+	 */
+	public synchronized void setThresholdMode(ThresholdMode thresholdMode) {
+		prepared = prepare(prepared.parameters, thresholdMode);
+	}
+
+	/**
+	 * @return the engine used for the HSL_Threshold step.
+	 */
+	public ThresholdMode thresholdMode() {
+		return prepared.thresholdMode;
+	}
+
+	/**
+	 * Engines available for finding blobs in the thresholded mask.
+	 */
+	public enum BlobEngine {
+		/** findContours, then Filter_Contours on the contour points. */
+		CONTOURS,
+		/**
+		 * connectedComponentsWithStats, filtered on box and pixel count. Frames whose
+		 * settings filter on perimeter, solidity or vertex count still use contours.
+		 */
+		COMPONENTS
+	}
+
+	/**
+	 * Selects the engine used to find blobs, from the next frame on.
+	 * @param blobEngine the engine.
+	 */
+	public void setBlobEngine(BlobEngine blobEngine) {
+		this.blobEngine = blobEngine;
+	}
+
+	/**
+	 * @return the engine used to find blobs.
+	 */
+	public BlobEngine blobEngine() {
+		return blobEngine;
+	}
+
+	/**
+	 * Replaces every threshold and filter setting. May be called from any thread, such as
+	 * a NetworkTables listener; the next frame processed picks the new settings up. Any
+	 * lookup table the new bounds need is built here, before the swap, so the vision
+	 * thread never waits for it.
+	 * @param parameters the new settings.
+	 */
+	public synchronized void setParameters(PipelineParameters parameters) {
+		prepared = prepare(parameters, prepared.thresholdMode);
+	}
+
+	/**
+	 * @return the settings the next frame will be processed with.
+	 */
+	public PipelineParameters parameters() {
+		return prepared.parameters;
+	}
+
+	/**
+	 * @return the settings the last frame was processed with.
+	 */
+	public PipelineParameters processedParameters() {
+		return frameParameters == null ? prepared.parameters : frameParameters.parameters;
+	}
+
+	private Prepared prepare(PipelineParameters parameters, ThresholdMode thresholdMode) {
+		HslLookupTable lookupTable = null;
+		if (thresholdMode == ThresholdMode.LOOKUP_TABLE) {
+			final Prepared current = prepared;
+			if (current.lookupTable != null && current.parameters.sameHsl(parameters)) {
+				lookupTable = current.lookupTable;
+			}
+			else {
+				// A new table, since the one in use may be mid-frame on the vision thread.
+				lookupTable = new HslLookupTable();
+				lookupTable.build(parameters.hueBounds(), parameters.saturationBounds(),
+					parameters.luminanceBounds());
+			}
+		}
+		return new Prepared(parameters, thresholdMode, lookupTable);
+	}
+
+	/**
+	 * This method is a generated getter for the output of a HSL_Threshold. While tracking,
+	 * this only covers the searched window, and with a pyramid level set it is the
+	 * downscaled mask.
 	 * @return Mat output from HSL_Threshold.
 	 */
 	public Mat hslThresholdOutput() {
@@ -83,7 +348,9 @@ public class GripPipeline implements VisionPipeline {
 	}
 
 	/**
-	 * This method is a generated getter for the output of a Find_Contours.
+	 * This method is a generated getter for the output of a Find_Contours. Empty for
+	 * frames searched with the components engine. The contours are freed when the next
+	 * frame is processed.
 	 * @return ArrayList<MatOfPoint> output from Find_Contours.
 	 */
 	public ArrayList<MatOfPoint> findContoursOutput() {
@@ -91,16 +358,38 @@ public class GripPipeline implements VisionPipeline {
 	}
 
 	/**
-	 * This method is a generated getter for the output of a Filter_Contours.
+	 * This method is a generated getter for the output of a Filter_Contours. Empty for
+	 * frames searched with the components engine; filterContoursBlobs always holds
+	 * what was kept.
 	 * @return ArrayList<MatOfPoint> output from Filter_Contours.
 	 */
 	public ArrayList<MatOfPoint> filterContoursOutput() {
 		return filterContoursOutput;
 	}
 
+	/**
+	 * The bounding box and area of every contour kept by Filter_Contours, in the same
+	 * order as filterContoursOutput(). With the components engine the area is the
+	 * blob's pixel count.
+	 * @return BlobList describing the Filter_Contours output.
+	 */
+	public BlobList filterContoursBlobs() {
+		return filterContoursBlobs;
+	}
+
+	/**
+	 * The box enclosing every contour kept by Filter_Contours, in full-frame coordinates.
+	 * Empty when nothing was kept.
+	 * @return Rect bounding the Filter_Contours output.
+	 */
+	public Rect filterContoursBounds() {
+		return filterContoursBounds;
+	}
+
 
 	/**
-	 * Segment an image based on hue, saturation, and luminance ranges.
+	 * Segment an image based on hue, saturation, and luminance ranges. With the lookup
+	 * table engine, bounds other than the current parameters' get a table built here.
 	 *
 	 * @param input The image on which to perform the HSL threshold.
 	 * @param hue The min and max hue
@@ -108,11 +397,164 @@ public class GripPipeline implements VisionPipeline {
 	 * @param lum The min and max luminance
 	 * @param output The image in which to store the output.
 	 */
-	private void hslThreshold(Mat input, double[] hue, double[] sat, double[] lum,
+	void hslThreshold(Mat input, double[] hue, double[] sat, double[] lum,
 		Mat out) {
-		Imgproc.cvtColor(input, out, Imgproc.COLOR_BGR2HLS);
-		Core.inRange(out, new Scalar(hue[0], lum[0], sat[0]),
-			new Scalar(hue[1], lum[1], sat[1]), out);
+		final Prepared current = prepared;
+		HslLookupTable lookupTable = current.lookupTable;
+		if (current.thresholdMode == ThresholdMode.LOOKUP_TABLE
+			&& (lookupTable == null || !lookupTable.matches(hue, sat, lum))) {
+			if (!hslLookupTable.matches(hue, sat, lum)) {
+				hslLookupTable.build(hue, sat, lum);
+			}
+			lookupTable = hslLookupTable;
+		}
+		hslThreshold(input, hue, sat, lum, current.thresholdMode, lookupTable, out);
+	}
+
+	/**
+	 * Thresholds with the settings of the frame being processed.
+	 */
+	private void hslThreshold(Mat input, Mat out) {
+		final PipelineParameters parameters = frameParameters.parameters;
+		hslThreshold(input, parameters.hueBounds(), parameters.saturationBounds(), parameters.luminanceBounds(),
+			frameParameters.thresholdMode, frameParameters.lookupTable, out);
+	}
+
+	private void hslThreshold(Mat input, double[] hue, double[] sat, double[] lum, ThresholdMode mode,
+		HslLookupTable lookupTable, Mat out) {
+		final long start = stats.start();
+		if (mode == ThresholdMode.LOOKUP_TABLE) {
+			lookupTable.apply(input, out, lookupBuffers);
+		}
+		else {
+			Imgproc.cvtColor(input, out, Imgproc.COLOR_BGR2HLS);
+			thresholdLower.val[0] = hue[0];
+			thresholdLower.val[1] = lum[0];
+			thresholdLower.val[2] = sat[0];
+			thresholdUpper.val[0] = hue[1];
+			thresholdUpper.val[1] = lum[1];
+			thresholdUpper.val[2] = sat[1];
+			Core.inRange(out, thresholdLower, thresholdUpper, out);
+		}
+		thresholdNanos += stats.elapsed(start);
+	}
+
+	/**
+	 * Thresholds and contours one region of the frame, appending the contours found in
+	 * full-frame coordinates, or the components found to componentFinder.
+	 * @param source the full frame.
+	 * @param region the region to search.
+	 * @param mask the Mat to threshold the region into.
+	 * @param found the list to append contours to.
+	 */
+	private void searchRegion(Mat source, Rect region, Mat mask, List<MatOfPoint> found) {
+		final Mat view = source.submat(region);
+		hslThreshold(view, mask);
+		view.release();
+		if (useComponents) {
+			findComponents(mask, region.x, region.y, componentFinder);
+			return;
+		}
+		findContoursOffset.x = region.x;
+		findContoursOffset.y = region.y;
+		findContours(mask, false, findContoursOffset, regionContours);
+		// the contours now belong to found, which frees them
+		found.addAll(regionContours);
+		regionContours.clear();
+	}
+
+	/**
+	 * Finds blobs on a downscaled copy of the frame, then searches only the regions
+	 * around them at full resolution.
+	 * @param source the full frame.
+	 * @param found the list to fill with full-resolution contours.
+	 */
+	private void coarseToFine(Mat source, List<MatOfPoint> found) {
+		found.clear();
+		final long pyramidStart = stats.start();
+		Mat coarse = source;
+		for (int i = 0; i < pyramidLevel; i++) {
+			Imgproc.pyrDown(coarse, pyramid[i]);
+			coarse = pyramid[i];
+		}
+		thresholdNanos += stats.elapsed(pyramidStart);
+		hslThreshold(coarse, hslThresholdOutput);
+
+		final int scale = 1 << pyramidLevel;
+		final int pad = 2 * scale;
+		refineCount = 0;
+		if (useComponents) {
+			coarseComponents.clear();
+			findComponents(hslThresholdOutput, 0, 0, coarseComponents);
+			for (int i = 0; i < coarseComponents.size(); i++) {
+				addRefineRegion(Math.max(0, coarseComponents.minX(i) * scale - pad),
+					Math.max(0, coarseComponents.minY(i) * scale - pad),
+					Math.min(source.cols(), (coarseComponents.maxX(i) + 1) * scale + pad),
+					Math.min(source.rows(), (coarseComponents.maxY(i) + 1) * scale + pad));
+			}
+		}
+		else {
+			findContours(hslThresholdOutput, true, coarseContours);
+			for (MatOfPoint blob : coarseContours) {
+				final int vertices = blob.rows();
+				final int[] points = contourPoints(blob, vertices);
+				int minX = points[0];
+				int maxX = points[0];
+				int minY = points[1];
+				int maxY = points[1];
+				for (int j = 2; j < vertices * 2; j += 2) {
+					minX = Math.min(minX, points[j]);
+					maxX = Math.max(maxX, points[j]);
+					minY = Math.min(minY, points[j + 1]);
+					maxY = Math.max(maxY, points[j + 1]);
+				}
+				addRefineRegion(Math.max(0, minX * scale - pad), Math.max(0, minY * scale - pad),
+					Math.min(source.cols(), (maxX + 1) * scale + pad), Math.min(source.rows(), (maxY + 1) * scale + pad));
+			}
+		}
+
+		for (int r = 0; r < refineCount; r++) {
+			final int o = r * 4;
+			refineRect.x = refineRegions[o];
+			refineRect.y = refineRegions[o + 1];
+			refineRect.width = refineRegions[o + 2] - refineRegions[o];
+			refineRect.height = refineRegions[o + 3] - refineRegions[o + 1];
+			searchRegion(source, refineRect, refineMask, found);
+		}
+	}
+
+	/**
+	 * Queues a full-resolution region for refinement, merging it with any queued region
+	 * it touches so no contour is found twice.
+	 */
+	private void addRefineRegion(int x0, int y0, int x1, int y1) {
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			for (int r = 0; r < refineCount; r++) {
+				final int o = r * 4;
+				if (x0 <= refineRegions[o + 2] && refineRegions[o] <= x1
+					&& y0 <= refineRegions[o + 3] && refineRegions[o + 1] <= y1) {
+					x0 = Math.min(x0, refineRegions[o]);
+					y0 = Math.min(y0, refineRegions[o + 1]);
+					x1 = Math.max(x1, refineRegions[o + 2]);
+					y1 = Math.max(y1, refineRegions[o + 3]);
+					refineCount--;
+					System.arraycopy(refineRegions, refineCount * 4, refineRegions, o, 4);
+					merged = true;
+					break;
+				}
+			}
+		}
+		if (refineRegions.length < (refineCount + 1) * 4) {
+			refineRegions = Arrays.copyOf(refineRegions, refineRegions.length * 2);
+		}
+		final int o = refineCount * 4;
+		refineRegions[o] = x0;
+		refineRegions[o + 1] = y0;
+		refineRegions[o + 2] = x1;
+		refineRegions[o + 3] = y1;
+		refineCount++;
 	}
 
 	/**
@@ -122,10 +564,24 @@ public class GripPipeline implements VisionPipeline {
 	 * @param maskSize the size of the mask.
 	 * @param output The image in which to store the output.
 	 */
-	private void findContours(Mat input, boolean externalOnly,
+	void findContours(Mat input, boolean externalOnly,
+		List<MatOfPoint> contours) {
+		findContours(input, externalOnly, ORIGIN, contours);
+	}
+
+	/**
+	 * Finds contours in a region of a larger frame.
+	 * @param input the binary image of the region.
+	 * @param externalOnly true to only keep outermost contours.
+	 * @param offset the position of the region in the frame, added to every point.
+	 * @param contours the list to fill with the contours found. Any contours still in it
+	 *     are freed first.
+	 */
+	void findContours(Mat input, boolean externalOnly, Point offset,
 		List<MatOfPoint> contours) {
-		Mat hierarchy = new Mat();
-		contours.clear();
+		final long start = stats.start();
+		NativeMemory.release(contours);
+		final Mat hierarchy = mats.acquire();
 		int mode;
 		if (externalOnly) {
 			mode = Imgproc.RETR_EXTERNAL;
@@ -134,55 +590,123 @@ public class GripPipeline implements VisionPipeline {
 			mode = Imgproc.RETR_LIST;
 		}
 		int method = Imgproc.CHAIN_APPROX_SIMPLE;
-		Imgproc.findContours(input, contours, hierarchy, mode, method);
+		Imgproc.findContours(input, contours, hierarchy, mode, method, offset);
+		mats.release(hierarchy);
+		NativeMemory.adopt(contours);
+		contoursNanos += stats.elapsed(start);
 	}
 
-		/**
-	 * Code used for CV_flip. 
-	 * Per OpenCV spec 0 -> flip on X axis.
-	 * >0 -> flip on Y axis.
-	 * <0 -> flip on both axes.
-	 */
-	public enum FlipCode {
-		X_AXIS(0),
-		Y_AXIS(1),
-		BOTH_AXES(-1);
-		public final int value;
-		FlipCode(int value) {
-			this.value = value;
-		}
-	}	
-		/**
-	 * Flips an image along X, Y or both axes.
-	 * @param src Image to flip.
-	 * @param flipcode FlipCode of which direction to flip.
-	 * @param dst flipped version of the Image.
+	/**
+	 * Finds the connected components of a mask, timed as the contour step.
+	 * @param input the binary image of a region.
+	 * @param offsetX the x of the region in the frame.
+	 * @param offsetY the y of the region in the frame.
+	 * @param found where the components are appended.
 	 */
-	private void cvFlip(Mat src, FlipCode flipcode, Mat dst) {
-		Core.flip(src, dst, flipcode.value);
+	void findComponents(Mat input, int offsetX, int offsetY, ComponentFinder found) {
+		final long start = stats.start();
+		found.find(input, offsetX, offsetY);
+		contoursNanos += stats.elapsed(start);
 	}
+
 	/**
-	 * Computes the transpose of a Mat.
-	 * @param src the source Mat.
-	 * @param dst the transpose of src.
+	 * Filter_Contours for the components engine: the same box, ratio and area limits,
+	 * applied to the components found this frame.
 	 */
-	private void cvTranspose(Mat src, Mat dst) {
-		Core.transpose(src, dst);
+	private void filterComponents(PipelineParameters parameters) {
+		final double minArea = parameters.minArea();
+		final double minWidth = parameters.minWidth();
+		final double maxWidth = parameters.maxWidth();
+		final double minHeight = parameters.minHeight();
+		final double maxHeight = parameters.maxHeight();
+		final double minRatio = parameters.minRatio();
+		final double maxRatio = parameters.maxRatio();
+		int boundsMinX = Integer.MAX_VALUE;
+		int boundsMinY = Integer.MAX_VALUE;
+		int boundsMaxX = Integer.MIN_VALUE;
+		int boundsMaxY = Integer.MIN_VALUE;
+		filterContoursOutput.clear();
+		filterContoursBlobs.clear();
+		final ComponentFinder found = componentFinder;
+		for (int i = 0; i < found.size(); i++) {
+			final int minX = found.minX(i);
+			final int minY = found.minY(i);
+			final int maxX = found.maxX(i);
+			final int maxY = found.maxY(i);
+			final int bbWidth = maxX - minX + 1;
+			final int bbHeight = maxY - minY + 1;
+			if (bbWidth < minWidth || bbWidth > maxWidth) continue;
+			if (bbHeight < minHeight || bbHeight > maxHeight) continue;
+			final double ratio = bbWidth / (double)bbHeight;
+			if (ratio < minRatio || ratio > maxRatio) continue;
+			if (found.area(i) < minArea) continue;
+			filterContoursBlobs.add(minX, minY, maxX, maxY, found.area(i));
+			boundsMinX = Math.min(boundsMinX, minX);
+			boundsMinY = Math.min(boundsMinY, minY);
+			boundsMaxX = Math.max(boundsMaxX, maxX);
+			boundsMaxY = Math.max(boundsMaxY, maxY);
+		}
+		setFilterBounds(filterContoursBlobs.size() > 0, boundsMinX, boundsMinY, boundsMaxX, boundsMaxY);
 	}
-		/**
-	 * This method is a generated getter for the output of a CV_transpose.
-	 * @return Mat output from CV_transpose.
+
+	private void setFilterBounds(boolean any, int minX, int minY, int maxX, int maxY) {
+		if (!any) {
+			filterContoursBounds.x = 0;
+			filterContoursBounds.y = 0;
+			filterContoursBounds.width = 0;
+			filterContoursBounds.height = 0;
+		}
+		else {
+			filterContoursBounds.x = minX;
+			filterContoursBounds.y = minY;
+			filterContoursBounds.width = maxX - minX + 1;
+			filterContoursBounds.height = maxY - minY + 1;
+		}
+	}
+
+	/**
+	 * Sets how the frame is turned for display. Detection is unaffected.
+	 * @param orientation the output orientation.
 	 */
-	public Mat cvTransposeOutput() {
-		return cvTransposeOutput;
+	public void setOrientation(Orientation orientation) {
+		this.orientation = orientation;
+		orientationOutputValid = false;
 	}
 
 	/**
-	 * This method is a generated getter for the output of a CV_flip.
-	 * @return Mat output from CV_flip.
+	 * @return the output orientation.
 	 */
-	public Mat cvFlipOutput() {
-		return cvFlipOutput;
+	public Orientation orientation() {
+		return orientation;
+	}
+
+	/**
+	 * Returns the last processed frame in output orientation. The remap is done at most
+	 * once per frame, on the first call; with no orientation the source frame itself is
+	 * returned.
+	 * @return Mat holding the oriented frame.
+	 */
+	public Mat orientedOutput() {
+		if (orientation == Orientation.NONE) {
+			return lastSource;
+		}
+		if (!orientationOutputValid) {
+			orientation.apply(lastSource, orientationOutput);
+			orientationOutputValid = true;
+		}
+		return orientationOutput;
+	}
+
+	/**
+	 * Frees the native memory of every Mat and contour the pipeline holds, instead of
+	 * leaving it for finalization. The pipeline must not be used afterwards.
+	 */
+	public void release() {
+		filterContoursOutput.clear();
+		NativeMemory.release(findContoursOutput);
+		NativeMemory.release(coarseContours);
+		filterHull.release();
+		mats.close();
 	}
 
 
@@ -202,35 +726,118 @@ public class GripPipeline implements VisionPipeline {
 	 * @param minRatio minimum ratio of width to height
 	 * @param maxRatio maximum ratio of width to height
 	 */
-	private void filterContours(List<MatOfPoint> inputContours, double minArea,
+	void filterContours(List<MatOfPoint> inputContours, double minArea,
 		double minPerimeter, double minWidth, double maxWidth, double minHeight, double
 		maxHeight, double[] solidity, double maxVertexCount, double minVertexCount, double
 		minRatio, double maxRatio, List<MatOfPoint> output) {
-		final MatOfInt hull = new MatOfInt();
+		final boolean checkPerimeter = minPerimeter > 0;
+		final boolean checkSolidity = solidity[0] > 0 || solidity[1] < 100;
+		int boundsMinX = Integer.MAX_VALUE;
+		int boundsMinY = Integer.MAX_VALUE;
+		int boundsMaxX = Integer.MIN_VALUE;
+		int boundsMaxY = Integer.MIN_VALUE;
 		output.clear();
+		filterContoursBlobs.clear();
 		//operation
 		for (int i = 0; i < inputContours.size(); i++) {
 			final MatOfPoint contour = inputContours.get(i);
-			final Rect bb = Imgproc.boundingRect(contour);
-			if (bb.width < minWidth || bb.width > maxWidth) continue;
-			if (bb.height < minHeight || bb.height > maxHeight) continue;
-			final double area = Imgproc.contourArea(contour);
-			if (area < minArea) continue;
-			if (Imgproc.arcLength(new MatOfPoint2f(contour.toArray()), true) < minPerimeter) continue;
-			Imgproc.convexHull(contour, hull);
-			MatOfPoint mopHull = new MatOfPoint();
-			mopHull.create((int) hull.size().height, 1, CvType.CV_32SC2);
-			for (int j = 0; j < hull.size().height; j++) {
-				int index = (int)hull.get(j, 0)[0];
-				double[] point = new double[] { contour.get(index, 0)[0], contour.get(index, 0)[1]};
-				mopHull.put(j, 0, point);
+			final int vertices = contour.rows();
+			if (vertices == 0) continue;
+			if (vertices < minVertexCount || vertices > maxVertexCount) continue;
+
+			// One bulk read of the interleaved x,y pairs; everything below works on it.
+			final int[] points = contourPoints(contour, vertices);
+			int minX = points[0];
+			int maxX = points[0];
+			int minY = points[1];
+			int maxY = points[1];
+			for (int j = 2; j < vertices * 2; j += 2) {
+				final int x = points[j];
+				final int y = points[j + 1];
+				if (x < minX) minX = x;
+				if (x > maxX) maxX = x;
+				if (y < minY) minY = y;
+				if (y > maxY) maxY = y;
 			}
-			final double solid = 100 * area / Imgproc.contourArea(mopHull);
-			if (solid < solidity[0] || solid > solidity[1]) continue;
-			if (contour.rows() < minVertexCount || contour.rows() > maxVertexCount)	continue;
-			final double ratio = bb.width / (double)bb.height;
+			final int bbWidth = maxX - minX + 1;
+			final int bbHeight = maxY - minY + 1;
+			if (bbWidth < minWidth || bbWidth > maxWidth) continue;
+			if (bbHeight < minHeight || bbHeight > maxHeight) continue;
+			final double ratio = bbWidth / (double)bbHeight;
 			if (ratio < minRatio || ratio > maxRatio) continue;
+			final double area = polygonArea(points, null, vertices);
+			if (area < minArea) continue;
+			if (checkPerimeter && closedPerimeter(points, vertices) < minPerimeter) continue;
+			if (checkSolidity) {
+				Imgproc.convexHull(contour, filterHull);
+				final int hullSize = filterHull.rows();
+				if (filterHullIndices.length < hullSize) {
+					filterHullIndices = new int[Math.max(hullSize, filterHullIndices.length * 2)];
+				}
+				filterHull.get(0, 0, filterHullIndices);
+				final double solid = 100 * area / polygonArea(points, filterHullIndices, hullSize);
+				if (solid < solidity[0] || solid > solidity[1]) continue;
+			}
 			output.add(contour);
+			filterContoursBlobs.add(minX, minY, maxX, maxY, area);
+			boundsMinX = Math.min(boundsMinX, minX);
+			boundsMinY = Math.min(boundsMinY, minY);
+			boundsMaxX = Math.max(boundsMaxX, maxX);
+			boundsMaxY = Math.max(boundsMaxY, maxY);
+		}
+		setFilterBounds(!output.isEmpty(), boundsMinX, boundsMinY, boundsMaxX, boundsMaxY);
+	}
+
+	/**
+	 * Copies the vertices of a contour into the reusable point buffer.
+	 * @param contour the contour to read.
+	 * @param vertices the number of vertices in the contour.
+	 * @return the buffer, holding x0, y0, x1, y1, ... for the first vertices points.
+	 */
+	private int[] contourPoints(MatOfPoint contour, int vertices) {
+		if (filterPoints.length < vertices * 2) {
+			filterPoints = new int[Math.max(vertices * 2, filterPoints.length * 2)];
+		}
+		contour.get(0, 0, filterPoints);
+		return filterPoints;
+	}
+
+	/**
+	 * Shoelace area of a polygon, matching Imgproc.contourArea.
+	 * @param points interleaved x,y vertex buffer.
+	 * @param indices the vertex indices making up the polygon, or null for points in order.
+	 * @param count the number of vertices in the polygon.
+	 * @return the unsigned area.
+	 */
+	private static double polygonArea(int[] points, int[] indices, int count) {
+		if (count < 3) {
+			return 0;
+		}
+		long twiceArea = 0;
+		int prev = (indices == null ? count - 1 : indices[count - 1]) * 2;
+		for (int j = 0; j < count; j++) {
+			final int cur = (indices == null ? j : indices[j]) * 2;
+			twiceArea += (long)points[prev] * points[cur + 1] - (long)points[cur] * points[prev + 1];
+			prev = cur;
+		}
+		return Math.abs(twiceArea) * 0.5;
+	}
+
+	/**
+	 * Perimeter of a closed polygon, matching Imgproc.arcLength(contour, true).
+	 * @param points interleaved x,y vertex buffer.
+	 * @param count the number of vertices.
+	 * @return the perimeter length.
+	 */
+	private static double closedPerimeter(int[] points, int count) {
+		double perimeter = 0;
+		int prev = (count - 1) * 2;
+		for (int j = 0; j < count * 2; j += 2) {
+			final double dx = points[j] - points[prev];
+			final double dy = points[j + 1] - points[prev + 1];
+			perimeter += Math.sqrt(dx * dx + dy * dy);
+			prev = j;
 		}
+		return perimeter;
 	}
 }
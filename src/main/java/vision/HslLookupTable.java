@@ -0,0 +1,232 @@
+package vision;
+
+import java.util.Arrays;
+
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+/**
+* HslLookupTable class.
+*
+* <p>A threshold engine that replaces cvtColor(BGR2HLS) + inRange with a table lookup.
+* Each colour is quantized to a few bits per channel and looked up in a bitset that
+* says whether that colour cell passes the hue, saturation and luminance bounds. The
+* table is rebuilt only when the bounds change.
+*
+* <p>The pixels never leave native memory. LUT quantizes the channels, transform turns
+* them into a cell index, and remap reads each pixel's answer out of the table laid out
+* as an image, so OpenCV's vectorized loops do all of the work. The table image and the
+* intermediates live in Buffers owned by the pipeline, so they outlive table rebuilds,
+* and the image is only refilled when a different table is applied.
+*
+* <p>A cell passes when the colour at its centre passes the exact OpenCV conversion, so
+* only colours in cells that straddle a bound can disagree with the OpenCV path. Over
+* all 2^24 colours with the default hub bounds that is 0.49% of colours at 6 bits per
+* channel and 0.89% at 5 bits. Recorded frames disagree less, since most pixels are
+* nowhere near a bound.
+*/
+public class HslLookupTable {
+
+	public static final int DEFAULT_BITS = 6;
+
+	private final int bits;
+	private final int shift;
+	private final long[] table;
+	private final double[] bounds = new double[6];
+	private boolean built;
+	// bumped by every build, so Buffers can tell a stale table image
+	private int builds;
+
+	public HslLookupTable() {
+		this(DEFAULT_BITS);
+	}
+
+	/**
+	 * @param bits bits kept per channel, 4 to 7. 6 bits is a 32 KB table.
+	 */
+	public HslLookupTable(int bits) {
+		if (bits < 4 || bits > 7) {
+			throw new IllegalArgumentException("bits per channel must be 4 to 7");
+		}
+		this.bits = bits;
+		this.shift = 8 - bits;
+		this.table = new long[Math.max(1, (1 << (3 * bits)) >>> 6)];
+	}
+
+	/**
+	 * @return true if the table was last built for these bounds.
+	 */
+	public boolean matches(double[] hue, double[] sat, double[] lum) {
+		return built && bounds[0] == hue[0] && bounds[1] == hue[1] && bounds[2] == sat[0]
+			&& bounds[3] == sat[1] && bounds[4] == lum[0] && bounds[5] == lum[1];
+	}
+
+	/**
+	 * Rebuilds the table for new bounds, given in OpenCV 8-bit HLS units.
+	 * @param hue the min and max hue, 0 to 180.
+	 * @param sat the min and max saturation, 0 to 255.
+	 * @param lum the min and max luminance, 0 to 255.
+	 */
+	public void build(double[] hue, double[] sat, double[] lum) {
+		final int hLo = bound(hue[0]);
+		final int hHi = bound(hue[1]);
+		final int sLo = bound(sat[0]);
+		final int sHi = bound(sat[1]);
+		final int lLo = bound(lum[0]);
+		final int lHi = bound(lum[1]);
+		final int cells = 1 << bits;
+		final int half = 1 << (shift - 1);
+		final int[] hls = new int[3];
+		Arrays.fill(table, 0);
+		for (int r = 0; r < cells; r++) {
+			for (int g = 0; g < cells; g++) {
+				for (int b = 0; b < cells; b++) {
+					toHls((b << shift) + half, (g << shift) + half, (r << shift) + half, hls);
+					if (hls[0] >= hLo && hls[0] <= hHi && hls[1] >= lLo && hls[1] <= lHi
+						&& hls[2] >= sLo && hls[2] <= sHi) {
+						final int index = (r << (2 * bits)) | (g << bits) | b;
+						table[index >>> 6] |= 1L << index;
+					}
+				}
+			}
+		}
+		bounds[0] = hue[0];
+		bounds[1] = hue[1];
+		bounds[2] = sat[0];
+		bounds[3] = sat[1];
+		bounds[4] = lum[0];
+		bounds[5] = lum[1];
+		built = true;
+		builds++;
+	}
+
+	/**
+	 * Thresholds a BGR image into a binary mask, 255 where the colour passes.
+	 * @param input 8-bit, 3-channel BGR image; may be a submat.
+	 * @param mask the 8-bit single-channel output, reallocated if needed.
+	 * @param buffers the caller's scratch, refilled for this table if needed.
+	 */
+	public void apply(Mat input, Mat mask, Buffers buffers) {
+		buffers.prepare(this);
+		// (b, g, r) >> shift, widened so the index fits
+		Core.LUT(input, buffers.quantizer, buffers.quantized);
+		// (g * cells + b, r): the column and row of the colour's cell in the table image
+		Core.transform(buffers.quantized, buffers.cells, buffers.weights);
+		Imgproc.remap(buffers.image, mask, buffers.cells, buffers.noMap, Imgproc.INTER_NEAREST);
+	}
+
+	/**
+	 * Native scratch for apply. Not thread safe; it belongs to the thread processing the
+	 * pipeline's frames.
+	 */
+	public static final class Buffers {
+
+		private final Mat quantizer;
+		private final Mat quantized;
+		private final Mat weights;
+		private final Mat cells;
+		private final Mat image;
+		private final Mat noMap;
+		private byte[] imagePixels = new byte[0];
+		private int shift;
+		private HslLookupTable imageTable;
+		private int imageBuilds;
+
+		public Buffers() {
+			this(new MatPool());
+		}
+
+		/**
+		 * @param mats where the buffers come from.
+		 */
+		public Buffers(MatPool mats) {
+			quantizer = mats.acquire();
+			quantized = mats.acquire();
+			weights = mats.acquire();
+			cells = mats.acquire();
+			image = mats.acquire();
+			noMap = mats.acquire();
+		}
+
+		/**
+		 * Makes the quantizer, weights and table image match the table.
+		 */
+		private void prepare(HslLookupTable table) {
+			if (imageTable == table && imageBuilds == table.builds) {
+				return;
+			}
+			final int bits = table.bits;
+			final int cells = 1 << bits;
+			if (shift != table.shift) {
+				shift = table.shift;
+				final short[] levels = new short[256];
+				for (int v = 0; v < 256; v++) {
+					levels[v] = (short) (v >>> shift);
+				}
+				quantizer.create(1, 256, CvType.CV_16SC1);
+				quantizer.put(0, 0, levels);
+				weights.create(2, 3, CvType.CV_32FC1);
+				weights.put(0, 0, 1, cells, 0, 0, 0, 1);
+			}
+			// one row per red cell, green and blue cells across
+			final int size = cells * cells * cells;
+			if (imagePixels.length < size) {
+				imagePixels = new byte[size];
+			}
+			final long[] bitset = table.table;
+			for (int index = 0; index < size; index++) {
+				imagePixels[index] = (byte) -((bitset[index >>> 6] >>> index) & 1L);
+			}
+			image.create(cells, cells * cells, CvType.CV_8UC1);
+			image.put(0, 0, imagePixels);
+			imageTable = table;
+			imageBuilds = table.builds;
+		}
+	}
+
+	/**
+	 * Rounds a bound the way inRange does for 8-bit images.
+	 */
+	private static int bound(double value) {
+		return (int) Math.max(0, Math.min(255, Math.rint(value)));
+	}
+
+	/**
+	 * Converts one 8-bit BGR colour to 8-bit HLS exactly as cvtColor(COLOR_BGR2HLS) does.
+	 * @param hls receives {hue 0-180, luminance, saturation}.
+	 */
+	static void toHls(int b8, int g8, int r8, int[] hls) {
+		final float b = b8 * (1f / 255f);
+		final float g = g8 * (1f / 255f);
+		final float r = r8 * (1f / 255f);
+		final float vmax = Math.max(r, Math.max(g, b));
+		final float vmin = Math.min(r, Math.min(g, b));
+		float diff = vmax - vmin;
+		final float l = (vmax + vmin) * 0.5f;
+		float h = 0f;
+		float s = 0f;
+		if (diff > Math.ulp(1f)) {
+			s = l < 0.5f ? diff / (vmax + vmin) : diff / (2f - vmax - vmin);
+			diff = 60f / diff;
+			if (vmax == r) {
+				h = (g - b) * diff;
+			}
+			else if (vmax == g) {
+				h = (b - r) * diff + 120f;
+			}
+			else {
+				h = (r - g) * diff + 240f;
+			}
+			if (h < 0f) {
+				h += 360f;
+			}
+		}
+		hls[0] = saturate(h * 0.5f);
+		hls[1] = saturate(l * 255f);
+		hls[2] = saturate(s * 255f);
+	}
+
+	private static int saturate(float value) {
+		return (int) Math.max(0, Math.min(255, Math.rint(value)));
+	}
+}
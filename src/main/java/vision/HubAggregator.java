@@ -0,0 +1,349 @@
+package vision;
+
+import java.util.Arrays;
+
+import org.opencv.core.Rect;
+
+/**
+* HubAggregator class.
+*
+* <p>Reduces the contours that survive Filter_Contours into the per-shape extents,
+* the overall hub bounding box and the distance that are published to the "Hub" table.
+* Contours are found in the frame as captured; every published coordinate is mapped
+* into the output orientation.
+*
+* <p>A HubSelector first clusters the contours and picks the cluster most like the hub;
+* only its contours are reported as shapes and go into the box, averages, aim point
+* and distance, so a light elsewhere in the frame is left out. How many clusters there
+* were and how the runner-up scored are reported alongside.
+*
+* <p>The aim point is the apex of a HubFit curve through the contour centers, which
+* ignores stray reflections, so the deviation from a single frame is stable enough to
+* publish without averaging. The distance fit was calibrated against the mean height of
+* the strip centers, which the apex sits above, so distance comes from the mean Y of
+* the curve's inliers instead. With fewer than three contours, or no curve through
+* three of them, the mean of the centers is used for both.
+*
+* <p>The per-shape outputs live in arrays that grow to the most shapes seen and never
+* shrink, so aggregating a frame does not allocate once they are big enough. Only the
+* first shapeCount() entries of each are valid.
+*/
+public class HubAggregator {
+
+	private final HubFit fit = new HubFit();
+	private final HubSelector selector = new HubSelector();
+	private final Orientation orientation;
+	private final int frameWidth;
+	private final int frameHeight;
+	private final double[] box = new double[4];
+
+	//Outputs
+	private double[] shapesMinX = new double[16];
+	private double[] shapesMinY = new double[16];
+	private double[] shapesMaxX = new double[16];
+	private double[] shapesMaxY = new double[16];
+	private double[] shapesAreas = new double[16];
+	private double[] centersX = new double[16];
+	private double[] centersY = new double[16];
+	private double[] shapesWidths = new double[16];
+	private double[] shapesHeights = new double[16];
+	private int shapeCount;
+	private double hubMinX;
+	private double hubMinY;
+	private double hubMaxX;
+	private double hubMaxY;
+	private double averageX;
+	private double averageY;
+	private double hubX;
+	private double hubY;
+	private double distance;
+
+	/**
+	 * @param orientation the orientation results are reported in.
+	 * @param frameWidth the width of the frame as captured.
+	 * @param frameHeight the height of the frame as captured.
+	 */
+	public HubAggregator(Orientation orientation, int frameWidth, int frameHeight) {
+		this.orientation = orientation;
+		this.frameWidth = frameWidth;
+		this.frameHeight = frameHeight;
+	}
+
+	/**
+	 * Aggregates one frame worth of filtered contours and updates the outputs.
+	 * @param blobs the boxes and areas of the contours kept by Filter_Contours.
+	 */
+	public void aggregate(BlobList blobs) {
+		final int size = blobs.size();
+		if (shapesAreas.length < size) {
+			final int capacity = Math.max(size, shapesAreas.length * 2);
+			shapesMinX = Arrays.copyOf(shapesMinX, capacity);
+			shapesMinY = Arrays.copyOf(shapesMinY, capacity);
+			shapesMaxX = Arrays.copyOf(shapesMaxX, capacity);
+			shapesMaxY = Arrays.copyOf(shapesMaxY, capacity);
+			shapesAreas = Arrays.copyOf(shapesAreas, capacity);
+			centersX = Arrays.copyOf(centersX, capacity);
+			centersY = Arrays.copyOf(centersY, capacity);
+			shapesWidths = Arrays.copyOf(shapesWidths, capacity);
+			shapesHeights = Arrays.copyOf(shapesHeights, capacity);
+		}
+		for (int i = 0; i < size; i++) {
+			double shape_min_x = blobs.minX(i);
+			double shape_min_y = blobs.minY(i);
+			double shape_max_x = blobs.maxX(i);
+			double shape_max_y = blobs.maxY(i);
+			if (orientation != Orientation.NONE) {
+				toOutput(shape_min_x, shape_min_y, shape_max_x, shape_max_y);
+				shape_min_x = box[0];
+				shape_min_y = box[1];
+				shape_max_x = box[2];
+				shape_max_y = box[3];
+			}
+			shapesMinX[i] = shape_min_x;
+			shapesMinY[i] = shape_min_y;
+			shapesMaxX[i] = shape_max_x;
+			shapesMaxY[i] = shape_max_y;
+			shapesWidths[i] = shape_max_x - shape_min_x;
+			shapesHeights[i] = shape_max_y - shape_min_y;
+			centersX[i] = shape_min_x + shapesWidths[i] / 2;
+			centersY[i] = shape_min_y + shapesHeights[i] / 2;
+		}
+		selector.select(centersX, centersY, shapesWidths, shapesHeights, size);
+
+		// keep only the selected shapes, moved down to the front in order
+		double minx = 99999;
+		double miny = 99999;
+		double maxx = 0;
+		double maxy = 0;
+		double xAve = 0;
+		double yAve = 0;
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			if (!selector.selected(i)) {
+				continue;
+			}
+			shapesMinX[count] = shapesMinX[i];
+			shapesMinY[count] = shapesMinY[i];
+			shapesMaxX[count] = shapesMaxX[i];
+			shapesMaxY[count] = shapesMaxY[i];
+			shapesAreas[count] = blobs.area(i);
+			centersX[count] = centersX[i];
+			centersY[count] = centersY[i];
+			minx = Math.min(minx, shapesMinX[count]);
+			miny = Math.min(miny, shapesMinY[count]);
+			maxx = Math.max(maxx, shapesMaxX[count]);
+			maxy = Math.max(maxy, shapesMaxY[count]);
+			xAve += centersX[count];
+			yAve += centersY[count];
+			count++;
+		}
+
+		double x = Double.NaN;
+		double y = Double.NaN;
+		double distanceY = Double.NaN;
+		if (count > 0) {
+			xAve /= count;
+			yAve /= count;
+			if (fit.fit(centersX, centersY, count)) {
+				x = fit.apexX();
+				y = fit.apexY();
+				distanceY = fit.inlierMeanY();
+			}
+			else {
+				x = xAve;
+				y = yAve;
+				distanceY = yAve;
+			}
+		}
+		else {
+			xAve = Double.NaN;
+			yAve = Double.NaN;
+			fit.fit(centersX, centersY, 0);
+		}
+
+		shapeCount = count;
+		hubMinX = minx;
+		hubMinY = miny;
+		hubMaxX = maxx;
+		hubMaxY = maxy;
+		averageX = xAve;
+		averageY = yAve;
+		hubX = x;
+		hubY = y;
+		distance = -1.2033 * distanceY + 23.176;
+	}
+
+	/**
+	 * Maps a box given in capture space into output space, leaving it in box as
+	 * {minX, minY, maxX, maxY}.
+	 */
+	private void toOutput(double minX, double minY, double maxX, double maxY) {
+		final double ax = orientation.mapX(minX, minY, frameWidth, frameHeight);
+		final double ay = orientation.mapY(minX, minY, frameWidth, frameHeight);
+		final double bx = orientation.mapX(maxX, maxY, frameWidth, frameHeight);
+		final double by = orientation.mapY(maxX, maxY, frameWidth, frameHeight);
+		box[0] = Math.min(ax, bx);
+		box[1] = Math.min(ay, by);
+		box[2] = Math.max(ax, bx);
+		box[3] = Math.max(ay, by);
+	}
+
+	/**
+	 * @return the number of filtered contours selected as the hub in the last frame.
+	 */
+	public int shapeCount() {
+		return shapeCount;
+	}
+
+	/**
+	 * @return the left edge of selected contour i.
+	 */
+	public double shapeMinX(int i) {
+		return shapesMinX[i];
+	}
+
+	/**
+	 * @return the top edge of selected contour i.
+	 */
+	public double shapeMinY(int i) {
+		return shapesMinY[i];
+	}
+
+	/**
+	 * @return the right edge of selected contour i.
+	 */
+	public double shapeMaxX(int i) {
+		return shapesMaxX[i];
+	}
+
+	/**
+	 * @return the bottom edge of selected contour i.
+	 */
+	public double shapeMaxY(int i) {
+		return shapesMaxY[i];
+	}
+
+	/**
+	 * @return the area of selected contour i.
+	 */
+	public double shapeArea(int i) {
+		return shapesAreas[i];
+	}
+
+	/**
+	 * @return the left edge of the box enclosing the selected contours.
+	 */
+	public double hubMinX() {
+		return hubMinX;
+	}
+
+	/**
+	 * @return the top edge of the box enclosing the selected contours.
+	 */
+	public double hubMinY() {
+		return hubMinY;
+	}
+
+	/**
+	 * @return the right edge of the box enclosing the selected contours.
+	 */
+	public double hubMaxX() {
+		return hubMaxX;
+	}
+
+	/**
+	 * @return the bottom edge of the box enclosing the selected contours.
+	 */
+	public double hubMaxY() {
+		return hubMaxY;
+	}
+
+	/**
+	 * @return the mean X of the selected contour centers, or NaN if there were none.
+	 */
+	public double averageX() {
+		return averageX;
+	}
+
+	/**
+	 * @return the mean Y of the selected contour centers, or NaN if there were none.
+	 */
+	public double averageY() {
+		return averageY;
+	}
+
+	/**
+	 * @return the X of the aim point, or NaN if there were no contours.
+	 */
+	public double hubX() {
+		return hubX;
+	}
+
+	/**
+	 * @return the Y of the aim point, or NaN if there were no contours.
+	 */
+	public double hubY() {
+		return hubY;
+	}
+
+	/**
+	 * Finds the box enclosing the selected contours in the frame as captured, where
+	 * hubMinX and the rest are in the output orientation.
+	 * @param blobs the blobs last aggregated.
+	 * @param bounds receives the box; left as it was if nothing was selected.
+	 * @return the number of contours selected.
+	 */
+	public int captureBounds(BlobList blobs, Rect bounds) {
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		int maxY = Integer.MIN_VALUE;
+		int count = 0;
+		for (int i = 0; i < blobs.size(); i++) {
+			if (selector.selected(i)) {
+				minX = Math.min(minX, blobs.minX(i));
+				minY = Math.min(minY, blobs.minY(i));
+				maxX = Math.max(maxX, blobs.maxX(i));
+				maxY = Math.max(maxY, blobs.maxY(i));
+				count++;
+			}
+		}
+		if (count > 0) {
+			bounds.x = minX;
+			bounds.y = minY;
+			bounds.width = maxX - minX + 1;
+			bounds.height = maxY - minY + 1;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the selector that picked the last frame's hub, with the cluster count and
+	 *     the best and runner-up scores.
+	 */
+	public HubSelector selector() {
+		return selector;
+	}
+
+	/**
+	 * @return the fit of the last frame's contour centers, in output coordinates.
+	 */
+	public HubFit fit() {
+		return fit;
+	}
+
+	/**
+	 * @return the aim point's X relative to the middle of the output frame.
+	 */
+	public double deviationFromCenter() {
+		return hubX - orientation.outputWidth(frameWidth, frameHeight) / 2.0;
+	}
+
+	/**
+	 * @return the distance to the hub in feet from the mean height of the strips, or
+	 *     NaN if there were no contours.
+	 */
+	public double distance() {
+		return distance;
+	}
+}
@@ -0,0 +1,319 @@
+package vision;
+
+/**
+* HubFit class.
+*
+* <p>Fits the curve y = a*x^2 + b*x + c through the centers of the hub's tape strips with
+* RANSAC, so one stray reflection cannot pull the result the way it pulls a mean. Each
+* try fits the curve exactly through three centers and counts the centers within the
+* inlier distance of it; the try with the most inliers wins, and the curve is then
+* refit to its inliers by least squares. The strips sit on a ring, so the apex of the
+* curve is the point of the ring nearest the camera, which is what the robot aims at.
+*
+* <p>The number of tries is fixed, and when there are few enough centers every triple
+* is tried instead, so a fit takes bounded time and the same centers always give the
+* same curve. Nothing is allocated.
+*/
+public class HubFit {
+
+	public static final int DEFAULT_ITERATIONS = 32;
+	public static final double DEFAULT_INLIER_PIXELS = 4.0;
+	public static final int MIN_POINTS = 3;
+
+	// centers closer together in x than this cannot define a curve
+	private static final double MIN_SPREAD = 1.0;
+	private static final long SEED = 0x2228L;
+
+	private final int iterations;
+	private final double inlierPixels;
+	private long seed;
+	private boolean valid;
+	private double a = Double.NaN;
+	private double b = Double.NaN;
+	private double c = Double.NaN;
+	private int inliers;
+	private double inlierMinX;
+	private double inlierMaxX;
+	private double inlierMeanX;
+	private double inlierMeanY;
+	// the last try's coefficients
+	private double ta;
+	private double tb;
+	private double tc;
+
+	public HubFit() {
+		this(DEFAULT_ITERATIONS, DEFAULT_INLIER_PIXELS);
+	}
+
+	/**
+	 * @param iterations the most triples tried per fit.
+	 * @param inlierPixels how far in y a center may be from the curve and still count.
+	 */
+	public HubFit(int iterations, double inlierPixels) {
+		if (iterations < 1 || inlierPixels <= 0) {
+			throw new IllegalArgumentException("iterations and inlier distance must be positive");
+		}
+		this.iterations = iterations;
+		this.inlierPixels = inlierPixels;
+	}
+
+	/**
+	 * Fits the curve through the first count points.
+	 * @return true if a curve was found through at least MIN_POINTS of them.
+	 */
+	public boolean fit(double[] x, double[] y, int count) {
+		valid = false;
+		a = Double.NaN;
+		b = Double.NaN;
+		c = Double.NaN;
+		inliers = 0;
+		if (count < MIN_POINTS) {
+			return false;
+		}
+
+		seed = SEED;
+		int bestInliers = 0;
+		double bestError = Double.POSITIVE_INFINITY;
+		double ba = 0;
+		double bb = 0;
+		double bc = 0;
+		final long triples = (long) count * (count - 1) * (count - 2) / 6;
+		if (triples <= iterations) {
+			for (int i = 0; i < count - 2; i++) {
+				for (int j = i + 1; j < count - 1; j++) {
+					for (int k = j + 1; k < count; k++) {
+						if (through(x, y, i, j, k)) {
+							final double error = score(x, y, count);
+							final int found = inliers;
+							if (found > bestInliers || (found == bestInliers && error < bestError)) {
+								bestInliers = found;
+								bestError = error;
+								ba = ta;
+								bb = tb;
+								bc = tc;
+							}
+						}
+					}
+				}
+			}
+		}
+		else {
+			for (int n = 0; n < iterations; n++) {
+				final int i = next(count);
+				int j = next(count - 1);
+				if (j >= i) {
+					j++;
+				}
+				int k = next(count - 2);
+				if (k >= Math.min(i, j)) {
+					k++;
+				}
+				if (k >= Math.max(i, j)) {
+					k++;
+				}
+				if (through(x, y, i, j, k)) {
+					final double error = score(x, y, count);
+					final int found = inliers;
+					if (found > bestInliers || (found == bestInliers && error < bestError)) {
+						bestInliers = found;
+						bestError = error;
+						ba = ta;
+						bb = tb;
+						bc = tc;
+					}
+				}
+			}
+		}
+		if (bestInliers < MIN_POINTS) {
+			inliers = 0;
+			return false;
+		}
+		refit(x, y, count, ba, bb, bc);
+		return valid;
+	}
+
+	/**
+	 * Fits the try's curve exactly through three points.
+	 * @return false if two of them are too close together in x.
+	 */
+	private boolean through(double[] x, double[] y, int i, int j, int k) {
+		final double x0 = x[i];
+		final double x1 = x[j];
+		final double x2 = x[k];
+		final double d01 = x0 - x1;
+		final double d02 = x0 - x2;
+		final double d12 = x1 - x2;
+		if (Math.abs(d01) < MIN_SPREAD || Math.abs(d02) < MIN_SPREAD || Math.abs(d12) < MIN_SPREAD) {
+			return false;
+		}
+		// Lagrange form of the curve through the three points
+		final double l0 = y[i] / (d01 * d02);
+		final double l1 = -y[j] / (d01 * d12);
+		final double l2 = y[k] / (d02 * d12);
+		ta = l0 + l1 + l2;
+		tb = -(l0 * (x1 + x2) + l1 * (x0 + x2) + l2 * (x0 + x1));
+		tc = l0 * x1 * x2 + l1 * x0 * x2 + l2 * x0 * x1;
+		return true;
+	}
+
+	/**
+	 * Counts the points within the inlier distance of the try's curve into inliers.
+	 * @return the sum of their squared residuals.
+	 */
+	private double score(double[] x, double[] y, int count) {
+		int found = 0;
+		double error = 0;
+		for (int i = 0; i < count; i++) {
+			final double residual = y[i] - ((ta * x[i] + tb) * x[i] + tc);
+			if (Math.abs(residual) <= inlierPixels) {
+				found++;
+				error += residual * residual;
+			}
+		}
+		inliers = found;
+		return error;
+	}
+
+	/**
+	 * Least-squares fit to the inliers of the best try. x is taken relative to the
+	 * inliers' mean to keep the normal equations well conditioned.
+	 */
+	private void refit(double[] x, double[] y, int count, double ba, double bb, double bc) {
+		double sumX = 0;
+		int n = 0;
+		double minX = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < count; i++) {
+			if (Math.abs(y[i] - ((ba * x[i] + bb) * x[i] + bc)) <= inlierPixels) {
+				sumX += x[i];
+				minX = Math.min(minX, x[i]);
+				maxX = Math.max(maxX, x[i]);
+				n++;
+			}
+		}
+		final double mean = sumX / n;
+		double s1 = 0;
+		double s2 = 0;
+		double s3 = 0;
+		double s4 = 0;
+		double sy = 0;
+		double sxy = 0;
+		double sxxy = 0;
+		for (int i = 0; i < count; i++) {
+			if (Math.abs(y[i] - ((ba * x[i] + bb) * x[i] + bc)) <= inlierPixels) {
+				final double u = x[i] - mean;
+				final double u2 = u * u;
+				s1 += u;
+				s2 += u2;
+				s3 += u2 * u;
+				s4 += u2 * u2;
+				sy += y[i];
+				sxy += u * y[i];
+				sxxy += u2 * y[i];
+			}
+		}
+		// Solve [s4 s3 s2; s3 s2 s1; s2 s1 n] [a b c] = [sxxy sxy sy] by Cramer's rule
+		final double det = s4 * (s2 * n - s1 * s1) - s3 * (s3 * n - s1 * s2) + s2 * (s3 * s1 - s2 * s2);
+		double ua = ba;
+		double ub;
+		double uc;
+		if (Math.abs(det) > 1e-9) {
+			ua = (sxxy * (s2 * n - s1 * s1) - s3 * (sxy * n - s1 * sy) + s2 * (sxy * s1 - s2 * sy)) / det;
+			ub = (s4 * (sxy * n - sy * s1) - sxxy * (s3 * n - s1 * s2) + s2 * (s3 * sy - sxy * s2)) / det;
+			uc = (s4 * (s2 * sy - s1 * sxy) - s3 * (s3 * sy - s2 * sxy) + sxxy * (s3 * s1 - s2 * s2)) / det;
+		}
+		else {
+			// the inliers cannot pin down a better curve; keep the try's, shifted to u
+			ub = 2 * ba * mean + bb;
+			uc = (ba * mean + bb) * mean + bc;
+		}
+		// back from u = x - mean to x
+		a = ua;
+		b = ub - 2 * ua * mean;
+		c = (ua * mean - ub) * mean + uc;
+		inliers = n;
+		inlierMinX = minX;
+		inlierMaxX = maxX;
+		inlierMeanX = mean;
+		inlierMeanY = sy / n;
+		valid = true;
+	}
+
+	/**
+	 * @return a uniformly distributed int in [0, bound), from a xorshift generator with
+	 *     a fixed seed so fits are repeatable.
+	 */
+	private int next(int bound) {
+		seed ^= seed << 13;
+		seed ^= seed >>> 7;
+		seed ^= seed << 17;
+		return (int) Math.floorMod(seed, (long) bound);
+	}
+
+	/**
+	 * @return true if the last fit found a curve.
+	 */
+	public boolean valid() {
+		return valid;
+	}
+
+	/**
+	 * @return the x^2 coefficient, or NaN without a fit.
+	 */
+	public double a() {
+		return a;
+	}
+
+	/**
+	 * @return the x coefficient, or NaN without a fit.
+	 */
+	public double b() {
+		return b;
+	}
+
+	/**
+	 * @return the constant, or NaN without a fit.
+	 */
+	public double c() {
+		return c;
+	}
+
+	/**
+	 * @return the number of points the last fit kept.
+	 */
+	public int inliers() {
+		return inliers;
+	}
+
+	/**
+	 * @return the mean y of the points the last fit kept, or NaN without a fit.
+	 */
+	public double inlierMeanY() {
+		return valid ? inlierMeanY : Double.NaN;
+	}
+
+	/**
+	 * @return the x of the curve's apex, or the mean x of the inliers if the apex is
+	 *     outside them, as it is when the curve is nearly straight; NaN without a fit.
+	 */
+	public double apexX() {
+		if (!valid) {
+			return Double.NaN;
+		}
+		if (a != 0) {
+			final double apex = -b / (2 * a);
+			if (apex >= inlierMinX && apex <= inlierMaxX) {
+				return apex;
+			}
+		}
+		return inlierMeanX;
+	}
+
+	/**
+	 * @return the curve's y at apexX, or NaN without a fit.
+	 */
+	public double apexY() {
+		final double x = apexX();
+		return (a * x + b) * x + c;
+	}
+}
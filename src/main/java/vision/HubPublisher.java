@@ -0,0 +1,370 @@
+package vision;
+
+import java.nio.ByteBuffer;
+
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+import edu.wpi.first.networktables.NetworkTableInstance;
+
+/**
+* HubPublisher class.
+*
+* <p>The publish stage for the hub: aggregates a processed frame with a HubAggregator
+* and writes the results to the "Hub" table. Shared by the live camera and replay so
+* both produce exactly the same outputs.
+*
+* <p>Each frame's results are written as one raw "hubResult" entry and flushed
+* together, so the robot never reads values from two different frames. The record is
+* big-endian:
+*
+* <pre>
+* offset  size  field
+*      0     1  version (4)
+*      1     1  reserved (0)
+*      2     2  shape count N
+*      4     4  frame sequence number (low 32 bits)
+*      8     8  capture time in microseconds (WPIUtil clock)
+*     16     4  hubMinX (float)
+*     20     4  hubMinY
+*     24     4  hubMaxX
+*     28     4  hubMaxY
+*     32     4  averageX
+*     36     4  averageY
+*     40     4  deviationFromCenter
+*     44     4  distance in feet
+*     48     4  tracked deviationFromCenter
+*     52     4  tracked deviation rate in pixels per second
+*     56     4  tracked distance in feet
+*     60     4  tracked distance rate in feet per second
+*     64     4  track confidence, 0 to 1
+*     68     4  aim point X (apex of the fit)
+*     72     4  aim point Y
+*     76     4  fit a, of y = a*x^2 + b*x + c through the shape centers
+*     80     4  fit b
+*     84     4  fit c
+*     88     2  cluster count
+*     90     2  runner-up cluster's shape count
+*     92     4  selected cluster's score
+*     96     4  runner-up cluster's score
+*    100     4  runner-up X (mean of its shape centers)
+*    104     4  runner-up Y
+*    108  N*12  per shape: minX, minY, maxX, maxY as shorts, then area as a float
+* </pre>
+*
+* <p>The shapes, and every value taken from them, are those of the cluster the
+* aggregator's HubSelector picked as the hub. The runner-up is the next best cluster,
+* so the robot can tell how clear the choice was; its values are NaN and its shape
+* count 0 when there was only one cluster.
+*
+* <p>The tracked values come from a HubTracker fed every frame, whether or not the
+* frame is published. Values that are not known, such as the averages when no contour
+* was found or the fit with fewer than three, are NaN.
+*
+* <p>A frame whose results are all within the delta thresholds of the last record
+* sent is not published, except that a record always goes out at least every
+* keep-alive interval. The older per-field entries can still be written alongside the
+* record for robot code that has not moved to it.
+*/
+public class HubPublisher {
+
+	public static final int RECORD_VERSION = 4;
+	public static final int HEADER_BYTES = 108;
+	public static final int SHAPE_BYTES = 12;
+	public static final double DEFAULT_POSITION_DELTA = 1.0;
+	public static final double DEFAULT_DISTANCE_DELTA = 0.1;
+	public static final long DEFAULT_KEEP_ALIVE_MICROS = 100000;
+
+	private static final double CONFIDENCE_DELTA = 0.05;
+
+	private final HubAggregator aggregator;
+	private final HubTracker tracker;
+	private final VisionStats stats;
+	private final NetworkTableInstance instance;
+	private final NetworkTableEntry hubResult;
+	private ByteBuffer record = ByteBuffer.allocateDirect(HEADER_BYTES + 16 * SHAPE_BYTES);
+	private boolean legacyEntries = true;
+	private double positionDelta = DEFAULT_POSITION_DELTA;
+	private double distanceDelta = DEFAULT_DISTANCE_DELTA;
+	private long keepAliveMicros = DEFAULT_KEEP_ALIVE_MICROS;
+	private boolean sentAny;
+	private long lastSentMicros;
+	private final double[] lastSent = new double[11];
+	private int lastShapeCount;
+	// {minX, minY, maxX, maxY, areas}, sized to the shape count for the per-field entries
+	private double[][] legacyShapes = new double[5][0];
+	private final double[] legacyFit = new double[3];
+	private final NetworkTableEntry hubTopLeftX;
+	private final NetworkTableEntry hubTopLeftY;
+	private final NetworkTableEntry hubBottomRightX;
+	private final NetworkTableEntry hubBottomRightY;
+	private final NetworkTableEntry shapesMinX;
+	private final NetworkTableEntry shapesMinY;
+	private final NetworkTableEntry shapesMaxX;
+	private final NetworkTableEntry shapesMaxY;
+	private final NetworkTableEntry shapesAreas;
+	private final NetworkTableEntry boundsX;
+	private final NetworkTableEntry boundsY;
+	private final NetworkTableEntry width;
+	private final NetworkTableEntry averageHeight;
+	private final NetworkTableEntry deviationFromCenter;
+	private final NetworkTableEntry trackedDeviation;
+	private final NetworkTableEntry trackedDeviationRate;
+	private final NetworkTableEntry trackedDistance;
+	private final NetworkTableEntry trackedDistanceRate;
+	private final NetworkTableEntry trackConfidence;
+	private final NetworkTableEntry quadraticABC;
+
+	/**
+	 * @param table the table to publish to.
+	 * @param aggregator reduces each frame's blobs to the published values.
+	 * @param stats where aggregation and publishing times are recorded.
+	 */
+	public HubPublisher(NetworkTable table, HubAggregator aggregator, VisionStats stats) {
+		this(table, aggregator, new HubTracker(), stats);
+	}
+
+	/**
+	 * @param table the table to publish to.
+	 * @param aggregator reduces each frame's blobs to the published values.
+	 * @param tracker filters the hub's deviation and distance over time.
+	 * @param stats where aggregation and publishing times are recorded.
+	 */
+	public HubPublisher(NetworkTable table, HubAggregator aggregator, HubTracker tracker, VisionStats stats) {
+		this.aggregator = aggregator;
+		this.tracker = tracker;
+		this.stats = stats;
+		instance = table.getInstance();
+		hubResult = table.getEntry("hubResult");
+		hubTopLeftX = table.getEntry("hubTopLeftX");
+		hubTopLeftY = table.getEntry("hubTopLeftY");
+		hubBottomRightX = table.getEntry("hubBottomRightX");
+		hubBottomRightY = table.getEntry("hubBottomRightY");
+		shapesMinX = table.getEntry("shapesMinX");
+		shapesMinY = table.getEntry("shapesMinY");
+		shapesMaxX = table.getEntry("shapesMaxX");
+		shapesMaxY = table.getEntry("shapesMaxY");
+		shapesAreas = table.getEntry("shapesAreas");
+		boundsX = table.getEntry("totalWidth");
+		boundsY = table.getEntry("totalHeight");
+		width = table.getEntry("width");
+		averageHeight = table.getEntry("averageHeight");
+		deviationFromCenter = table.getEntry("deviationFromCenter");
+		trackedDeviation = table.getEntry("trackedDeviation");
+		trackedDeviationRate = table.getEntry("trackedDeviationRate");
+		trackedDistance = table.getEntry("trackedDistance");
+		trackedDistanceRate = table.getEntry("trackedDistanceRate");
+		trackConfidence = table.getEntry("trackConfidence");
+		quadraticABC = table.getEntry("quadraticABC");
+	}
+
+	/**
+	 * @param legacyEntries true to also write every value as its own entry, as was done
+	 *     before the hubResult record.
+	 */
+	public void setLegacyEntries(boolean legacyEntries) {
+		this.legacyEntries = legacyEntries;
+	}
+
+	/**
+	 * Sets how far results must move before a frame is published.
+	 * @param positionDelta pixels, for the hub box, averages, deviation and shape boxes.
+	 * @param distanceDelta feet, for the distance.
+	 * @param keepAliveMicros the longest time between records even when nothing changes.
+	 */
+	public void setDeltas(double positionDelta, double distanceDelta, long keepAliveMicros) {
+		this.positionDelta = positionDelta;
+		this.distanceDelta = distanceDelta;
+		this.keepAliveMicros = keepAliveMicros;
+	}
+
+	/**
+	 * @return the aggregator holding the last published frame's results.
+	 */
+	public HubAggregator aggregator() {
+		return aggregator;
+	}
+
+	/**
+	 * @return the tracker holding the last frame's filtered values.
+	 */
+	public HubTracker tracker() {
+		return tracker;
+	}
+
+	/**
+	 * Aggregates and publishes one frame.
+	 * @param frame a frame processed by the pipeline.
+	 */
+	public void publish(Frame frame) {
+		final long aggregateStart = stats.start();
+		aggregator.aggregate(frame.blobs);
+		frame.deviationFromCenter = aggregator.deviationFromCenter();
+		tracker.update(frame.captureMicros, aggregator.shapeCount() > 0, frame.deviationFromCenter,
+			aggregator.distance());
+		stats.stop(VisionStats.Stage.AGGREGATE, aggregateStart);
+
+		final long publishStart = stats.start();
+		if (!changed(frame.captureMicros)) {
+			stats.stop(VisionStats.Stage.PUBLISH, publishStart);
+			return;
+		}
+		writeRecord(frame);
+		hubResult.setRaw(record, record.position());
+		if (legacyEntries) {
+			fillLegacyShapes();
+			shapesMinX.setDoubleArray(legacyShapes[0]);
+			shapesMinY.setDoubleArray(legacyShapes[1]);
+			shapesMaxX.setDoubleArray(legacyShapes[2]);
+			shapesMaxY.setDoubleArray(legacyShapes[3]);
+			shapesAreas.setDoubleArray(legacyShapes[4]);
+			boundsX.setDouble(aggregator.averageX());
+			boundsY.setDouble(aggregator.averageY());
+			width.setDouble(aggregator.distance());
+			averageHeight.setDouble(aggregator.averageY());
+			hubTopLeftX.setNumber(aggregator.hubMinX());
+			hubTopLeftY.setNumber(aggregator.hubMinY());
+			hubBottomRightX.setNumber(aggregator.hubMaxX());
+			hubBottomRightY.setNumber(aggregator.hubMaxY());
+			deviationFromCenter.setNumber(frame.deviationFromCenter);
+			trackedDeviation.setDouble(tracker.deviation());
+			trackedDeviationRate.setDouble(tracker.deviationRate());
+			trackedDistance.setDouble(tracker.distance());
+			trackedDistanceRate.setDouble(tracker.distanceRate());
+			trackConfidence.setDouble(tracker.confidence());
+			legacyFit[0] = aggregator.fit().a();
+			legacyFit[1] = aggregator.fit().b();
+			legacyFit[2] = aggregator.fit().c();
+			quadraticABC.setDoubleArray(legacyFit);
+		}
+		instance.flush();
+		stats.stop(VisionStats.Stage.PUBLISH, publishStart);
+	}
+
+	/**
+	 * Compares this frame's results against the last record sent and remembers them
+	 * if they are to be published.
+	 * @return true if the frame should be published.
+	 */
+	private boolean changed(long captureMicros) {
+		final int shapes = aggregator.shapeCount();
+		boolean changed = !sentAny || shapes != lastShapeCount
+			|| captureMicros - lastSentMicros >= keepAliveMicros
+			|| moved(0, aggregator.hubMinX(), positionDelta)
+			|| moved(1, aggregator.hubMinY(), positionDelta)
+			|| moved(2, aggregator.hubMaxX(), positionDelta)
+			|| moved(3, aggregator.hubMaxY(), positionDelta)
+			|| moved(4, aggregator.averageX(), positionDelta)
+			|| moved(5, aggregator.averageY(), positionDelta)
+			|| moved(6, aggregator.deviationFromCenter(), positionDelta)
+			|| moved(7, aggregator.distance(), distanceDelta)
+			|| moved(8, tracker.deviation(), positionDelta)
+			|| moved(9, tracker.distance(), distanceDelta)
+			|| moved(10, tracker.confidence(), CONFIDENCE_DELTA);
+		if (!changed) {
+			// the shape boxes are only compared against the last record, which is in the buffer
+			for (int i = 0, offset = HEADER_BYTES; i < shapes && !changed; i++, offset += SHAPE_BYTES) {
+				changed = Math.abs(aggregator.shapeMinX(i) - record.getShort(offset)) > positionDelta
+					|| Math.abs(aggregator.shapeMinY(i) - record.getShort(offset + 2)) > positionDelta
+					|| Math.abs(aggregator.shapeMaxX(i) - record.getShort(offset + 4)) > positionDelta
+					|| Math.abs(aggregator.shapeMaxY(i) - record.getShort(offset + 6)) > positionDelta;
+			}
+		}
+		if (changed) {
+			sentAny = true;
+			lastShapeCount = shapes;
+			lastSentMicros = captureMicros;
+			lastSent[0] = aggregator.hubMinX();
+			lastSent[1] = aggregator.hubMinY();
+			lastSent[2] = aggregator.hubMaxX();
+			lastSent[3] = aggregator.hubMaxY();
+			lastSent[4] = aggregator.averageX();
+			lastSent[5] = aggregator.averageY();
+			lastSent[6] = aggregator.deviationFromCenter();
+			lastSent[7] = aggregator.distance();
+			lastSent[8] = tracker.deviation();
+			lastSent[9] = tracker.distance();
+			lastSent[10] = tracker.confidence();
+		}
+		return changed;
+	}
+
+	/**
+	 * @return true if value has moved more than delta from the last one sent. NaN, as
+	 *     published when no contours are found, only matches NaN.
+	 */
+	private boolean moved(int index, double value, double delta) {
+		final double last = lastSent[index];
+		if (Double.isNaN(value) || Double.isNaN(last)) {
+			return Double.isNaN(value) != Double.isNaN(last);
+		}
+		return Math.abs(value - last) > delta;
+	}
+
+	/**
+	 * Writes the record for the aggregator's current results into the record buffer,
+	 * leaving its position at the end of the record.
+	 */
+	private void writeRecord(Frame frame) {
+		final int shapes = Math.min(aggregator.shapeCount(), 0xffff);
+		final int size = HEADER_BYTES + shapes * SHAPE_BYTES;
+		if (record.capacity() < size) {
+			record = ByteBuffer.allocateDirect(Math.max(size, record.capacity() * 2));
+		}
+		record.clear();
+		record.put((byte) RECORD_VERSION);
+		record.put((byte) 0);
+		record.putShort((short) shapes);
+		record.putInt((int) frame.sequence);
+		record.putLong(frame.captureMicros);
+		record.putFloat((float) aggregator.hubMinX());
+		record.putFloat((float) aggregator.hubMinY());
+		record.putFloat((float) aggregator.hubMaxX());
+		record.putFloat((float) aggregator.hubMaxY());
+		record.putFloat((float) aggregator.averageX());
+		record.putFloat((float) aggregator.averageY());
+		record.putFloat((float) frame.deviationFromCenter);
+		record.putFloat((float) aggregator.distance());
+		record.putFloat((float) tracker.deviation());
+		record.putFloat((float) tracker.deviationRate());
+		record.putFloat((float) tracker.distance());
+		record.putFloat((float) tracker.distanceRate());
+		record.putFloat((float) tracker.confidence());
+		record.putFloat((float) aggregator.hubX());
+		record.putFloat((float) aggregator.hubY());
+		record.putFloat((float) aggregator.fit().a());
+		record.putFloat((float) aggregator.fit().b());
+		record.putFloat((float) aggregator.fit().c());
+		final HubSelector selector = aggregator.selector();
+		record.putShort((short) Math.min(selector.clusterCount(), 0xffff));
+		record.putShort((short) Math.min(selector.runnerUpSize(), 0xffff));
+		record.putFloat((float) selector.bestScore());
+		record.putFloat((float) selector.runnerUpScore());
+		record.putFloat((float) selector.runnerUpX());
+		record.putFloat((float) selector.runnerUpY());
+		for (int i = 0; i < shapes; i++) {
+			record.putShort((short) aggregator.shapeMinX(i));
+			record.putShort((short) aggregator.shapeMinY(i));
+			record.putShort((short) aggregator.shapeMaxX(i));
+			record.putShort((short) aggregator.shapeMaxY(i));
+			record.putFloat((float) aggregator.shapeArea(i));
+		}
+	}
+
+	/**
+	 * Copies the per-shape outputs into arrays of exactly the shape count, as the
+	 * per-field entries need. They are only reallocated when the count changes.
+	 */
+	private void fillLegacyShapes() {
+		final int shapes = aggregator.shapeCount();
+		if (legacyShapes[0].length != shapes) {
+			legacyShapes = new double[5][shapes];
+		}
+		for (int i = 0; i < shapes; i++) {
+			legacyShapes[0][i] = aggregator.shapeMinX(i);
+			legacyShapes[1][i] = aggregator.shapeMinY(i);
+			legacyShapes[2][i] = aggregator.shapeMaxX(i);
+			legacyShapes[3][i] = aggregator.shapeMaxY(i);
+			legacyShapes[4][i] = aggregator.shapeArea(i);
+		}
+	}
+}
@@ -0,0 +1,382 @@
+package vision;
+
+import java.util.Arrays;
+
+/**
+* HubSelector class.
+*
+* <p>Picks out which of a frame's blobs are the hub, so a light or reflection elsewhere
+* in the frame does not pull the aim point or distance off it. Blob centers are grouped
+* by single-linkage clustering: two blobs are linked when their centers are within the
+* link distance of each other and they are of similar height, as the strips of one hub
+* are. The link distance is LINK_WIDTHS times the median blob width in the frame, so it
+* scales with how far away the hub is.
+*
+* <p>Linking uses a grid of cells as wide as the link distance. The blobs are sorted by
+* cell, and each blob is only compared with those in its own and the eight neighbouring
+* cells, found by binary search, so a frame takes O(n log n) in the number of blobs;
+* blobs do not overlap, so only a few fit in any one cell. Linked blobs are joined with
+* a union-find.
+*
+* <p>Each cluster is scored by how much it looks like the hub: how many strips it has,
+* up to the most that can be seen at once, how evenly they are spaced across, how well
+* a HubFit arc goes through them and how alike their heights are. A cluster near where
+* the hub was picked in the last frame scores higher, so the selection holds on the hub
+* rather than flickering to clutter that scores about the same. The best cluster is
+* selected; the runner-up's score and center are kept so the robot can tell how clear
+* the choice was.
+*
+* <p>Scratch arrays grow to the most blobs seen and never shrink, so selecting does not
+* allocate once they are big enough. Coordinates must not be negative.
+*/
+public class HubSelector {
+
+	// link distance in median blob widths; the strips are about two widths apart
+	public static final double LINK_WIDTHS = 3.0;
+	// the most tape strips seen at once
+	public static final int MAX_STRIPS = 5;
+	// frames without a selection before the last hub position is forgotten
+	public static final int MEMORY_FRAMES = 15;
+
+	// heights of linked blobs are within this ratio of each other
+	private static final double HEIGHT_RATIO = 2.0;
+	// score multiplier for the cluster nearest the last selection
+	private static final double CONTINUITY_BONUS = 1.5;
+	// how far from the last selection, in link distances, the bonus applies
+	private static final double CONTINUITY_LINKS = 2.0;
+	// spacing and height coefficients of variation that halve the score
+	private static final double SPACING_SPREAD = 0.35;
+	private static final double HEIGHT_SPREAD = 0.3;
+	// a lone pair is expected this many mean widths apart
+	private static final double PAIR_SPACING_WIDTHS = 2.1;
+	private static final double SINGLE_SCORE = 0.5;
+	// cell coordinates and blob indices are packed into 20 bits each of the sort keys
+	private static final int FIELD_BITS = 20;
+	private static final long FIELD_MASK = (1L << FIELD_BITS) - 1;
+	private static final int MAX_BLOBS = 1 << FIELD_BITS;
+
+	private final HubFit fit = new HubFit();
+	private long[] keys = new long[16];
+	private int[] parent = new int[16];
+	private int[] cluster = new int[16];
+	private double[] scratch = new double[16];
+	private double[] arcX = new double[16];
+	private double[] arcY = new double[16];
+	private double[] clusterScores = new double[16];
+	private int[] clusterSizes = new int[16];
+	private double[] clusterX = new double[16];
+	private double[] clusterY = new double[16];
+
+	private boolean remembered;
+	private int missed;
+	private double lastX;
+	private double lastY;
+
+	//Outputs
+	private int clusterCount;
+	private int best = -1;
+	private int runnerUp = -1;
+
+	/**
+	 * Clusters the first count blobs and selects the one most like the hub.
+	 * @param centerX the X of each blob's center.
+	 * @param centerY the Y of each blob's center.
+	 * @param width the width of each blob.
+	 * @param height the height of each blob.
+	 * @param count the number of blobs.
+	 */
+	public void select(double[] centerX, double[] centerY, double[] width, double[] height, int count) {
+		if (count > MAX_BLOBS) {
+			throw new IllegalArgumentException("too many blobs: " + count);
+		}
+		ensureCapacity(count);
+		clusterCount = 0;
+		best = -1;
+		runnerUp = -1;
+		if (count == 0) {
+			forget();
+			return;
+		}
+
+		System.arraycopy(width, 0, scratch, 0, count);
+		Arrays.sort(scratch, 0, count);
+		final double link = Math.max(1.0, LINK_WIDTHS * scratch[count / 2]);
+
+		// sort by cell, row by row
+		for (int i = 0; i < count; i++) {
+			keys[i] = cellKey(cell(centerX[i], link), cell(centerY[i], link)) << FIELD_BITS | i;
+			parent[i] = i;
+		}
+		Arrays.sort(keys, 0, count);
+
+		final double linkSquared = link * link;
+		for (int i = 0; i < count; i++) {
+			final long cx = cell(centerX[i], link);
+			final long cy = cell(centerY[i], link);
+			for (long ny = Math.max(0, cy - 1); ny <= cy + 1; ny++) {
+				for (long nx = Math.max(0, cx - 1); nx <= cx + 1; nx++) {
+					final long key = cellKey(nx, ny);
+					for (int k = firstInCell(key, count); k < count && keys[k] >>> FIELD_BITS == key; k++) {
+						final int j = (int) (keys[k] & FIELD_MASK);
+						if (j > i && linked(centerX, centerY, height, i, j, linkSquared)) {
+							union(i, j);
+						}
+					}
+				}
+			}
+		}
+
+		// number the clusters, then sort by cluster and x so each is a run from left to right
+		for (int i = 0; i < count; i++) {
+			cluster[i] = -1;
+		}
+		for (int i = 0; i < count; i++) {
+			final int root = find(i);
+			if (cluster[root] < 0) {
+				cluster[root] = clusterCount++;
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			final long x = Math.max(0, Math.min((long) centerX[i], FIELD_MASK));
+			keys[i] = ((long) cluster[find(i)] << FIELD_BITS | x) << FIELD_BITS | i;
+		}
+		Arrays.sort(keys, 0, count);
+		for (int i = 0; i < count; i++) {
+			final int index = (int) (keys[i] & FIELD_MASK);
+			cluster[index] = (int) (keys[i] >>> (2 * FIELD_BITS));
+		}
+
+		double bestScore = -1;
+		double runnerUpScore = -1;
+		for (int start = 0; start < count;) {
+			final int id = (int) (keys[start] >>> (2 * FIELD_BITS));
+			int end = start + 1;
+			while (end < count && (int) (keys[end] >>> (2 * FIELD_BITS)) == id) {
+				end++;
+			}
+			final double score = score(id, start, end, centerX, centerY, width, height, link);
+			if (score > bestScore) {
+				runnerUp = best;
+				runnerUpScore = bestScore;
+				best = id;
+				bestScore = score;
+			}
+			else if (score > runnerUpScore) {
+				runnerUp = id;
+				runnerUpScore = score;
+			}
+			start = end;
+		}
+
+		remembered = true;
+		missed = 0;
+		lastX = clusterX[best];
+		lastY = clusterY[best];
+	}
+
+	/**
+	 * Notes a frame with nothing to select, forgetting the last hub position once there
+	 * have been MEMORY_FRAMES of them in a row.
+	 */
+	private void forget() {
+		if (remembered && ++missed >= MEMORY_FRAMES) {
+			remembered = false;
+		}
+	}
+
+	/**
+	 * Scores the cluster whose blobs are at keys[start] to keys[end - 1], sorted by x,
+	 * and records its size, center and score.
+	 */
+	private double score(int id, int start, int end, double[] centerX, double[] centerY, double[] width,
+			double[] height, double link) {
+		final int n = end - start;
+		double sumX = 0;
+		double sumY = 0;
+		double sumWidth = 0;
+		double sumHeight = 0;
+		double sumHeightSquared = 0;
+		for (int k = start; k < end; k++) {
+			final int i = (int) (keys[k] & FIELD_MASK);
+			arcX[k - start] = centerX[i];
+			arcY[k - start] = centerY[i];
+			sumX += centerX[i];
+			sumY += centerY[i];
+			sumWidth += width[i];
+			sumHeight += height[i];
+			sumHeightSquared += height[i] * height[i];
+		}
+		final double meanX = sumX / n;
+		final double meanY = sumY / n;
+		final double meanWidth = sumWidth / n;
+		final double meanHeight = sumHeight / n;
+
+		double score = Math.min(n, MAX_STRIPS) / (double) MAX_STRIPS;
+		if (n == 1) {
+			score *= SINGLE_SCORE;
+		}
+		else if (n == 2) {
+			final double gap = (arcX[1] - arcX[0]) / Math.max(1.0, meanWidth) - PAIR_SPACING_WIDTHS;
+			final double rise = (arcY[1] - arcY[0]) / Math.max(1.0, meanHeight);
+			score *= falloff(gap, 1.0) * falloff(rise, 1.0);
+		}
+		else {
+			double sumGap = 0;
+			double sumGapSquared = 0;
+			for (int k = 1; k < n; k++) {
+				final double gap = arcX[k] - arcX[k - 1];
+				sumGap += gap;
+				sumGapSquared += gap * gap;
+			}
+			final double meanGap = sumGap / (n - 1);
+			final double gapSpread = Math.sqrt(Math.max(0, sumGapSquared / (n - 1) - meanGap * meanGap));
+			score *= falloff(gapSpread / Math.max(1.0, meanGap), SPACING_SPREAD);
+			score *= fit.fit(arcX, arcY, n) ? fit.inliers() / (double) n : 1.0 / n;
+		}
+		if (n > 1) {
+			final double heightSpread = Math.sqrt(Math.max(0, sumHeightSquared / n - meanHeight * meanHeight));
+			score *= falloff(heightSpread / Math.max(1.0, meanHeight), HEIGHT_SPREAD);
+		}
+		if (remembered) {
+			final double dx = meanX - lastX;
+			final double dy = meanY - lastY;
+			final double reach = CONTINUITY_LINKS * link;
+			if (dx * dx + dy * dy <= reach * reach) {
+				score *= CONTINUITY_BONUS;
+			}
+		}
+
+		clusterScores[id] = score;
+		clusterSizes[id] = n;
+		clusterX[id] = meanX;
+		clusterY[id] = meanY;
+		return score;
+	}
+
+	/**
+	 * @return 1 at zero, falling to one half at scale.
+	 */
+	private static double falloff(double value, double scale) {
+		final double ratio = value / scale;
+		return 1 / (1 + ratio * ratio);
+	}
+
+	private static long cell(double coordinate, double link) {
+		return Math.max(0, Math.min((long) (coordinate / link), FIELD_MASK - 1));
+	}
+
+	private static long cellKey(long cx, long cy) {
+		return cy << FIELD_BITS | cx;
+	}
+
+	/**
+	 * @return the index in keys of the first blob in the cell, or where it would be.
+	 */
+	private int firstInCell(long key, int count) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (keys[mid] >>> FIELD_BITS < key) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private static boolean linked(double[] centerX, double[] centerY, double[] height, int i, int j,
+			double linkSquared) {
+		final double dx = centerX[i] - centerX[j];
+		final double dy = centerY[i] - centerY[j];
+		if (dx * dx + dy * dy > linkSquared) {
+			return false;
+		}
+		final double taller = Math.max(height[i], height[j]);
+		final double shorter = Math.max(1.0, Math.min(height[i], height[j]));
+		return taller <= HEIGHT_RATIO * shorter;
+	}
+
+	private int find(int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private void union(int i, int j) {
+		final int a = find(i);
+		final int b = find(j);
+		if (a != b) {
+			parent[Math.max(a, b)] = Math.min(a, b);
+		}
+	}
+
+	private void ensureCapacity(int count) {
+		if (keys.length < count) {
+			final int capacity = Math.max(count, keys.length * 2);
+			keys = Arrays.copyOf(keys, capacity);
+			parent = Arrays.copyOf(parent, capacity);
+			cluster = Arrays.copyOf(cluster, capacity);
+			scratch = Arrays.copyOf(scratch, capacity);
+			arcX = Arrays.copyOf(arcX, capacity);
+			arcY = Arrays.copyOf(arcY, capacity);
+			clusterScores = Arrays.copyOf(clusterScores, capacity);
+			clusterSizes = Arrays.copyOf(clusterSizes, capacity);
+			clusterX = Arrays.copyOf(clusterX, capacity);
+			clusterY = Arrays.copyOf(clusterY, capacity);
+		}
+	}
+
+	/**
+	 * @return true if blob i is in the selected cluster.
+	 */
+	public boolean selected(int i) {
+		return best >= 0 && cluster[i] == best;
+	}
+
+	/**
+	 * @return the number of clusters in the last frame.
+	 */
+	public int clusterCount() {
+		return clusterCount;
+	}
+
+	/**
+	 * @return the selected cluster's score, or NaN if there were no blobs.
+	 */
+	public double bestScore() {
+		return best >= 0 ? clusterScores[best] : Double.NaN;
+	}
+
+	/**
+	 * @return the runner-up cluster's score, or NaN if there was only one cluster.
+	 */
+	public double runnerUpScore() {
+		return runnerUp >= 0 ? clusterScores[runnerUp] : Double.NaN;
+	}
+
+	/**
+	 * @return the number of blobs in the runner-up cluster, or 0 if there was none.
+	 */
+	public int runnerUpSize() {
+		return runnerUp >= 0 ? clusterSizes[runnerUp] : 0;
+	}
+
+	/**
+	 * @return the mean X of the runner-up cluster's centers, or NaN if there was none.
+	 */
+	public double runnerUpX() {
+		return runnerUp >= 0 ? clusterX[runnerUp] : Double.NaN;
+	}
+
+	/**
+	 * @return the mean Y of the runner-up cluster's centers, or NaN if there was none.
+	 */
+	public double runnerUpY() {
+		return runnerUp >= 0 ? clusterY[runnerUp] : Double.NaN;
+	}
+}
@@ -0,0 +1,149 @@
+package vision;
+
+/**
+* HubTracker class.
+*
+* <p>A constant-velocity alpha-beta filter on the hub's deviation from center and its
+* distance. Each frame the state is predicted forward by the time since the last
+* frame, then corrected toward the measurement if the hub was seen. The filtered
+* values, their rates of change and a confidence score let the robot aim at where the
+* hub will be rather than waiting for a moving average to settle.
+*
+* <p>Confidence rises toward 1 with each frame the hub is seen and decays on each
+* miss. After too many misses in a row the track is dropped; the outputs are NaN and
+* confidence is 0 until the hub is seen again.
+*/
+public class HubTracker {
+
+	public static final double DEFAULT_ALPHA = 0.5;
+	public static final double DEFAULT_BETA = 0.1;
+	public static final int DEFAULT_MAX_MISSES = 15;
+
+	// how far one frame moves the confidence toward seen (1) or missed (0)
+	private static final double CONFIDENCE_STEP = 0.25;
+	// frames closer together than this are treated as this far apart
+	private static final double MIN_DT_SECONDS = 1e-3;
+
+	private final double alpha;
+	private final double beta;
+	private final int maxMisses;
+	private boolean tracking;
+	private long lastMicros;
+	private int misses;
+	private double deviation = Double.NaN;
+	private double deviationRate = Double.NaN;
+	private double distance = Double.NaN;
+	private double distanceRate = Double.NaN;
+	private double confidence;
+
+	public HubTracker() {
+		this(DEFAULT_ALPHA, DEFAULT_BETA, DEFAULT_MAX_MISSES);
+	}
+
+	/**
+	 * @param alpha how much of the position residual is applied each frame, 0 to 1.
+	 * @param beta how much of the residual divided by the frame time is applied to the rate.
+	 * @param maxMisses how many frames in a row without the hub before the track is dropped.
+	 */
+	public HubTracker(double alpha, double beta, int maxMisses) {
+		if (alpha <= 0 || alpha > 1 || beta < 0 || beta > 2) {
+			throw new IllegalArgumentException("alpha must be in (0, 1] and beta in [0, 2]");
+		}
+		this.alpha = alpha;
+		this.beta = beta;
+		this.maxMisses = maxMisses;
+	}
+
+	/**
+	 * Advances the track to a new frame.
+	 * @param timeMicros when the frame was captured.
+	 * @param found whether the hub was seen in the frame.
+	 * @param measuredDeviation the hub's deviation from center, if found.
+	 * @param measuredDistance the hub's distance, if found.
+	 */
+	public void update(long timeMicros, boolean found, double measuredDeviation, double measuredDistance) {
+		if (!tracking) {
+			if (found) {
+				tracking = true;
+				misses = 0;
+				lastMicros = timeMicros;
+				deviation = measuredDeviation;
+				distance = measuredDistance;
+				deviationRate = 0;
+				distanceRate = 0;
+				confidence = CONFIDENCE_STEP;
+			}
+			return;
+		}
+
+		final double dt = Math.max(MIN_DT_SECONDS, (timeMicros - lastMicros) / 1e6);
+		lastMicros = timeMicros;
+		deviation += deviationRate * dt;
+		distance += distanceRate * dt;
+
+		if (found) {
+			misses = 0;
+			final double deviationResidual = measuredDeviation - deviation;
+			deviation += alpha * deviationResidual;
+			deviationRate += beta * deviationResidual / dt;
+			final double distanceResidual = measuredDistance - distance;
+			distance += alpha * distanceResidual;
+			distanceRate += beta * distanceResidual / dt;
+			confidence += (1 - confidence) * CONFIDENCE_STEP;
+		}
+		else if (++misses > maxMisses) {
+			reset();
+		}
+		else {
+			confidence *= 1 - CONFIDENCE_STEP;
+		}
+	}
+
+	/**
+	 * Drops the track.
+	 */
+	public void reset() {
+		tracking = false;
+		misses = 0;
+		deviation = Double.NaN;
+		deviationRate = Double.NaN;
+		distance = Double.NaN;
+		distanceRate = Double.NaN;
+		confidence = 0;
+	}
+
+	/**
+	 * @return the filtered deviation from center in output pixels, or NaN with no track.
+	 */
+	public double deviation() {
+		return deviation;
+	}
+
+	/**
+	 * @return the rate of change of the deviation in pixels per second, or NaN with no track.
+	 */
+	public double deviationRate() {
+		return deviationRate;
+	}
+
+	/**
+	 * @return the filtered distance in feet, or NaN with no track.
+	 */
+	public double distance() {
+		return distance;
+	}
+
+	/**
+	 * @return the rate of change of the distance in feet per second, or NaN with no track.
+	 */
+	public double distanceRate() {
+		return distanceRate;
+	}
+
+	/**
+	 * @return 0 with no track, rising toward 1 the more consistently the hub is seen.
+	 */
+	public double confidence() {
+		return confidence;
+	}
+}
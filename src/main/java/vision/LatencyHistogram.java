@@ -0,0 +1,95 @@
+package vision;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+* LatencyHistogram class.
+*
+* <p>A fixed-size, allocation-free histogram of durations. Values are kept in
+* microseconds: exactly below 16 us, then in eight buckets per power of two up to
+* about 67 seconds, so any quantile read back is within about 6% of the true value.
+* Longer durations share one overflow bucket after the last of those.
+* One thread records while another periodically drains the counts.
+*/
+public class LatencyHistogram {
+
+	private static final int LINEAR = 16;
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 26;
+
+	// the first exponent past the linear buckets: 2^4 = LINEAR
+	private static final int MIN_EXPONENT = 4;
+	private static final int OVERFLOW = LINEAR + (MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS;
+
+	/** Number of buckets; the size of the snapshot arrays passed to drainTo. */
+	public static final int BUCKETS = OVERFLOW + 1;
+
+	private final AtomicIntegerArray counts = new AtomicIntegerArray(BUCKETS);
+
+	/**
+	 * Records one duration.
+	 * @param nanos the duration in nanoseconds.
+	 */
+	public void record(long nanos) {
+		counts.incrementAndGet(bucket(Math.max(0, nanos / 1000)));
+	}
+
+	/**
+	 * Copies the counts into snapshot and resets them.
+	 * @param snapshot an array of BUCKETS counts.
+	 * @return the number of values drained.
+	 */
+	public int drainTo(int[] snapshot) {
+		int total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.getAndSet(i, 0);
+			total += snapshot[i];
+		}
+		return total;
+	}
+
+	/**
+	 * Reads a quantile from a drained snapshot.
+	 * @param snapshot counts filled by drainTo.
+	 * @param total the value returned by drainTo.
+	 * @param quantile between 0 and 1.
+	 * @return the quantile in milliseconds, or 0 if the snapshot is empty.
+	 */
+	public static double quantileMillis(int[] snapshot, int total, double quantile) {
+		if (total == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return midpointMicros(i) / 1000.0;
+			}
+		}
+		return midpointMicros(BUCKETS - 1) / 1000.0;
+	}
+
+	private static int bucket(long micros) {
+		if (micros < LINEAR) {
+			return (int) micros;
+		}
+		final int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(micros));
+		if (exponent == MAX_EXPONENT) {
+			return OVERFLOW;
+		}
+		final int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR + (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub;
+	}
+
+	private static double midpointMicros(int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		final int exponent = MIN_EXPONENT + (bucket - LINEAR) / SUB_BUCKETS;
+		final int sub = (bucket - LINEAR) % SUB_BUCKETS;
+		final long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + sub * width + width / 2.0;
+	}
+}
@@ -0,0 +1,92 @@
+package vision;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+* LatestSlot class.
+*
+* <p>A single-slot, latest-wins hand-off between two threads. Offering a new item
+* replaces any item the consumer has not taken yet, and the replaced item is returned
+* to the producer so it can be recycled. Nothing ever queues, so a slow stage always
+* works on the newest frame. Only one thread may take from a slot and only one may put
+* to it.
+*/
+public class LatestSlot<T> {
+
+	private final AtomicReference<T> item = new AtomicReference<T>();
+	private volatile Thread consumer;
+	private volatile Thread producer;
+
+	/**
+	 * Puts an item in the slot and wakes the consumer.
+	 * @param value the new item.
+	 * @return the stale item it replaced, or null.
+	 */
+	public T offer(T value) {
+		final T stale = item.getAndSet(value);
+		final Thread waiting = consumer;
+		if (waiting != null) {
+			LockSupport.unpark(waiting);
+		}
+		return stale;
+	}
+
+	/**
+	 * Waits until the slot is empty, then puts an item in it. Used instead of offer
+	 * when every item must be seen, such as when replaying a recording.
+	 * @param value the new item.
+	 * @throws InterruptedException if the producer thread is interrupted while waiting.
+	 */
+	public void put(T value) throws InterruptedException {
+		producer = Thread.currentThread();
+		while (!item.compareAndSet(null, value)) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			LockSupport.park(this);
+		}
+		final Thread waiting = consumer;
+		if (waiting != null) {
+			LockSupport.unpark(waiting);
+		}
+	}
+
+	/**
+	 * Waits for an item and removes it from the slot.
+	 * @return the newest item.
+	 * @throws InterruptedException if the consumer thread is interrupted while waiting.
+	 */
+	public T take() throws InterruptedException {
+		consumer = Thread.currentThread();
+		for (;;) {
+			final T value = item.getAndSet(null);
+			if (value != null) {
+				final Thread waiting = producer;
+				if (waiting != null) {
+					LockSupport.unpark(waiting);
+				}
+				return value;
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			LockSupport.park(this);
+		}
+	}
+
+	/**
+	 * Removes the item from the slot without waiting.
+	 * @return the item, or null if the slot was empty.
+	 */
+	public T poll() {
+		final T value = item.getAndSet(null);
+		if (value != null) {
+			final Thread waiting = producer;
+			if (waiting != null) {
+				LockSupport.unpark(waiting);
+			}
+		}
+		return value;
+	}
+}
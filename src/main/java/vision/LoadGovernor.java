@@ -0,0 +1,211 @@
+package vision;
+
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+
+/**
+* LoadGovernor class.
+*
+* <p>Watches how long each frame takes to process against a latency budget and steps
+* a StagedVisionRunner down through cheaper levels when the budget is exceeded:
+* skipping most overlay frames, then searching the full frame one pyramid level
+* coarser. When frames comfortably fit the budget again it steps back up one level at
+* a time.
+*
+* <p>Processing fewer frames does not make any one frame quicker, so the rate levels,
+* every second and then every fourth frame, are instead driven by the duty cycle: the
+* share of the time processing is busy. Only once the search is already coarser, frames
+* are still over budget and processing is busy more than MAX_DUTY of the time does the
+* rate drop. It is raised again once the duty cycle at the faster rate would comfortably
+* fit.
+*
+* <p>Decisions are made on the mean processing time and the duty cycle over a window of
+* frames, and the window starts over after every change, so the effect of one step is
+* measured before the next is taken.
+*/
+public class LoadGovernor {
+
+	/**
+	 * Processing levels, from full quality to cheapest.
+	 */
+	public enum Level {
+		/** Everything as configured. */
+		FULL,
+		/** Only every OVERLAY_EVERY'th frame is drawn and streamed. */
+		SKIP_OVERLAY,
+		/** Also search the full frame one pyramid level coarser. */
+		REDUCED_RESOLUTION,
+		/** Also process at most every second camera frame. */
+		HALF_RATE,
+		/** Also process at most every fourth camera frame. */
+		QUARTER_RATE
+	}
+
+	public static final int DEFAULT_WINDOW = 30;
+	public static final int OVERLAY_EVERY = 4;
+
+	// processing busy more than this share of the time is saturated
+	public static final double MAX_DUTY = 0.8;
+
+	// step back up once frames take less than this fraction of the budget or duty limit
+	private static final double HEADROOM = 0.6;
+	private static final Level[] LEVELS = Level.values();
+
+	private final long budgetNanos;
+	private final long framePeriodNanos;
+	private final int window;
+	private long windowNanos;
+	private long windowStartNanos;
+	private int windowFrames;
+	private volatile Level level = Level.FULL;
+	private volatile long levelChanges;
+	private NetworkTableEntry levelEntry;
+	private NetworkTableEntry levelNameEntry;
+	private NetworkTableEntry frameMsEntry;
+	private NetworkTableEntry dutyEntry;
+	private NetworkTableEntry changesEntry;
+
+	/**
+	 * @param budgetMillis the most a frame should take to process, in milliseconds.
+	 * @param cameraFps the camera's frame rate, which the decimation levels divide.
+	 */
+	public LoadGovernor(double budgetMillis, double cameraFps) {
+		this(budgetMillis, cameraFps, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * @param budgetMillis the most a frame should take to process, in milliseconds.
+	 * @param cameraFps the camera's frame rate, which the decimation levels divide.
+	 * @param window how many frames are averaged before each decision.
+	 */
+	public LoadGovernor(double budgetMillis, double cameraFps, int window) {
+		if (budgetMillis <= 0 || cameraFps <= 0 || window < 1) {
+			throw new IllegalArgumentException("budget, frame rate and window must be positive");
+		}
+		this.budgetNanos = (long) (budgetMillis * 1e6);
+		this.framePeriodNanos = (long) (1e9 / cameraFps);
+		this.window = window;
+	}
+
+	/**
+	 * Publishes the level to "loadLevel" (the ordinal), "loadLevelName", the mean frame
+	 * time and duty cycle that caused the last change to "loadFrameMs" and "loadDuty",
+	 * and how many times it has changed to "loadLevelChanges", whenever it changes.
+	 * @param table the table to publish to.
+	 */
+	public void publishTo(NetworkTable table) {
+		levelEntry = table.getEntry("loadLevel");
+		levelNameEntry = table.getEntry("loadLevelName");
+		frameMsEntry = table.getEntry("loadFrameMs");
+		dutyEntry = table.getEntry("loadDuty");
+		changesEntry = table.getEntry("loadLevelChanges");
+		publish(0, 0);
+	}
+
+	/**
+	 * Records how long a frame took to process. Called by one thread at a time, just
+	 * after the frame is processed.
+	 * @param nanos the processing time.
+	 */
+	public void frameProcessed(long nanos) {
+		final long now = System.nanoTime();
+		if (windowFrames == 0) {
+			windowStartNanos = now - nanos;
+		}
+		windowNanos += nanos;
+		if (++windowFrames < window) {
+			return;
+		}
+		final long mean = windowNanos / windowFrames;
+		final double duty = (double) windowNanos / Math.max(1, now - windowStartNanos);
+		windowNanos = 0;
+		windowFrames = 0;
+		final Level next = next(mean, duty);
+		if (next != level) {
+			level = next;
+			levelChanges++;
+			publish(mean, duty);
+		}
+	}
+
+	/**
+	 * @param mean the mean processing time over the window.
+	 * @param duty the share of the window's time spent processing.
+	 * @return the level to run at next.
+	 */
+	private Level next(long mean, double duty) {
+		switch (level) {
+			case QUARTER_RATE:
+				// each rate level halves the rate, so the duty doubles going up one
+				return 2 * duty < MAX_DUTY * HEADROOM ? Level.HALF_RATE : level;
+			case HALF_RATE:
+				if (duty > MAX_DUTY) {
+					return Level.QUARTER_RATE;
+				}
+				return 2 * duty < MAX_DUTY * HEADROOM ? Level.REDUCED_RESOLUTION : level;
+			case REDUCED_RESOLUTION:
+				if (mean > budgetNanos) {
+					return duty > MAX_DUTY ? Level.HALF_RATE : level;
+				}
+				return mean < budgetNanos * HEADROOM ? Level.SKIP_OVERLAY : level;
+			default:
+				if (mean > budgetNanos) {
+					return LEVELS[level.ordinal() + 1];
+				}
+				return mean < budgetNanos * HEADROOM && level != Level.FULL ? Level.FULL : level;
+		}
+	}
+
+	private void publish(long meanNanos, double duty) {
+		if (levelEntry != null) {
+			levelEntry.setNumber(level.ordinal());
+			levelNameEntry.setString(level.name());
+			frameMsEntry.setDouble(meanNanos / 1e6);
+			dutyEntry.setDouble(duty);
+			changesEntry.setNumber(levelChanges);
+		}
+	}
+
+	/**
+	 * @return the current level.
+	 */
+	public Level level() {
+		return level;
+	}
+
+	/**
+	 * @return how many times the level has changed.
+	 */
+	public long levelChanges() {
+		return levelChanges;
+	}
+
+	/**
+	 * @param sequence the frame's sequence number.
+	 * @return true if the frame's overlay should not be drawn.
+	 */
+	public boolean skipOverlay(long sequence) {
+		return level.compareTo(Level.SKIP_OVERLAY) >= 0 && sequence % OVERLAY_EVERY != 0;
+	}
+
+	/**
+	 * @return how many pyramid levels to add to the configured one.
+	 */
+	public int pyramidBoost() {
+		return level.compareTo(Level.REDUCED_RESOLUTION) >= 0 ? 1 : 0;
+	}
+
+	/**
+	 * @return the least time between processed frames at this level, or 0 for no limit.
+	 */
+	public long minFrameNanos() {
+		switch (level) {
+			case HALF_RATE:
+				return 2 * framePeriodNanos;
+			case QUARTER_RATE:
+				return 4 * framePeriodNanos;
+			default:
+				return 0;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package vision;
+
+import java.util.Arrays;
+
+import org.opencv.core.*;
+
+/**
+* MatPool class.
+*
+* <p>Scratch Mats for one pipeline. acquire hands out a Mat, reusing one given back with
+* release, so a step that needs a Mat for the length of one call reuses the same native
+* buffer every frame instead of allocating one that is only freed when finalization
+* gets around to it. Mats that live as long as the pipeline are acquired once and never
+* given back. close frees all of their data at once.
+*
+* <p>Every Mat a pool makes is counted in NativeMemory until the pool is closed, and
+* account updates the bytes counted to what its Mats hold now. A pool is not thread
+* safe; it belongs to the thread processing the pipeline's frames.
+*/
+public class MatPool implements AutoCloseable {
+
+	private Mat[] mats = new Mat[8];
+	private long[] countedBytes = new long[8];
+	private boolean[] inUse = new boolean[8];
+	private int size;
+
+	/**
+	 * @return a Mat not in use, made if there is none. Its size and type are whatever it
+	 *     was last used for.
+	 */
+	public Mat acquire() {
+		for (int i = 0; i < size; i++) {
+			if (!inUse[i]) {
+				inUse[i] = true;
+				return mats[i];
+			}
+		}
+		if (size == mats.length) {
+			mats = Arrays.copyOf(mats, size * 2);
+			countedBytes = Arrays.copyOf(countedBytes, size * 2);
+			inUse = Arrays.copyOf(inUse, size * 2);
+		}
+		final Mat mat = new Mat();
+		mats[size] = mat;
+		countedBytes[size] = 0;
+		inUse[size] = true;
+		size++;
+		NativeMemory.allocated(1, 0);
+		return mat;
+	}
+
+	/**
+	 * Gives a Mat back, keeping its data for the next acquire.
+	 * @param mat a Mat from acquire.
+	 */
+	public void release(Mat mat) {
+		for (int i = 0; i < size; i++) {
+			if (mats[i] == mat) {
+				inUse[i] = false;
+				return;
+			}
+		}
+		throw new IllegalArgumentException("Mat is not from this pool");
+	}
+
+	/**
+	 * Updates the bytes counted in NativeMemory to what the pool's Mats hold now.
+	 */
+	public void account() {
+		long change = 0;
+		for (int i = 0; i < size; i++) {
+			final long bytes = mats[i].total() * mats[i].elemSize();
+			change += bytes - countedBytes[i];
+			countedBytes[i] = bytes;
+		}
+		if (change != 0) {
+			NativeMemory.resized(change);
+		}
+	}
+
+	/**
+	 * @return the number of Mats the pool has made.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Frees the data of every Mat the pool made, in use or not. None of them may be used
+	 * afterwards, but the pool may.
+	 */
+	@Override
+	public void close() {
+		long bytes = 0;
+		for (int i = 0; i < size; i++) {
+			mats[i].release();
+			bytes += countedBytes[i];
+			mats[i] = null;
+		}
+		NativeMemory.freed(size, bytes);
+		size = 0;
+	}
+}
@@ -0,0 +1,436 @@
+package vision;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.wpi.first.networktables.NetworkTableInstance;
+
+/**
+* MetricsServer class.
+*
+* <p>Serves the Pi's health over HTTP with the JDK's built-in server, so it can be
+* watched without SSH. /metrics is in the Prometheus text format: each camera's fps,
+* stage latency quantiles, frame totals, blobs kept and time since its last frame, plus
+* watchdog recoveries, garbage collection, native Mat counts and the NetworkTables
+* connection. /health is a JSON summary for the pit laptop, answered with 503 while any
+* camera is stale.
+*
+* <p>A scrape never touches the vision threads. Latencies and rates are the summary
+* VisionStats keeps from its last publishing period, and everything else is a volatile
+* or atomic read. Requests are handled one at a time on a single low-priority thread,
+* which reuses one buffer, so a scrape allocates little.
+*/
+public class MetricsServer {
+
+	public static final int DEFAULT_PORT = 5800;
+
+	private static final String TEXT_FORMAT = "text/plain; version=0.0.4; charset=utf-8";
+	private static final String JSON = "application/json; charset=utf-8";
+
+	/**
+	 * A camera reported on.
+	 */
+	private static final class Camera {
+		final String name;
+		final VisionStats stats;
+		final VisionWatchdog.Watched watched;
+
+		Camera(String name, VisionStats stats, VisionWatchdog.Watched watched) {
+			this.name = name;
+			this.stats = stats;
+			this.watched = watched;
+		}
+	}
+
+	/**
+	 * An extra metric, read when scraped.
+	 */
+	private static final class Gauge {
+		final String name;
+		final String help;
+		final String type;
+		final String camera;
+		final DoubleSupplier value;
+
+		Gauge(String name, String help, String type, String camera, DoubleSupplier value) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.camera = camera;
+			this.value = value;
+		}
+	}
+
+	private final int port;
+	private final long staleNanos;
+	private final CopyOnWriteArrayList<Camera> cameras = new CopyOnWriteArrayList<Camera>();
+	private final CopyOnWriteArrayList<Gauge> gauges = new CopyOnWriteArrayList<Gauge>();
+	private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+	private final double[] quantiles = VisionStats.quantiles();
+	// only used on the request thread
+	private final StringBuilder text = new StringBuilder(8192);
+	private volatile NetworkTableInstance ntinst;
+	private volatile VisionWatchdog watchdog;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	/**
+	 * @param port the TCP port to listen on.
+	 * @param staleMillis how long without a published frame makes a camera stale.
+	 */
+	public MetricsServer(int port, long staleMillis) {
+		this.port = port;
+		this.staleNanos = TimeUnit.MILLISECONDS.toNanos(staleMillis);
+	}
+
+	/**
+	 * Reports on a camera.
+	 * @param name the camera's name, used as the camera label.
+	 * @param stats its stats; VisionStats.DISABLED leaves out its rates and latencies.
+	 * @param watched where its last frame times come from.
+	 */
+	public void addCamera(String name, VisionStats stats, VisionWatchdog.Watched watched) {
+		cameras.add(new Camera(name, stats, watched));
+	}
+
+	/**
+	 * Adds a gauge read on every scrape, which must be quick and thread safe.
+	 * @param name the metric name.
+	 * @param help its description.
+	 * @param value reads its value.
+	 */
+	public void addGauge(String name, String help, DoubleSupplier value) {
+		gauges.add(new Gauge(name, help, "gauge", null, value));
+	}
+
+	/**
+	 * Adds one camera's value of a metric read on every scrape, which must be quick and
+	 * thread safe. Every camera's value of a metric is reported under one header.
+	 * @param name the metric name.
+	 * @param help its description.
+	 * @param type "gauge" or "counter".
+	 * @param camera the camera label.
+	 * @param value reads its value.
+	 */
+	public void addCameraMetric(String name, String help, String type, String camera, DoubleSupplier value) {
+		gauges.add(new Gauge(name, help, type, camera, value));
+	}
+
+	/**
+	 * @param ntinst the instance whose connection state is reported.
+	 */
+	public void setNetworkTables(NetworkTableInstance ntinst) {
+		this.ntinst = ntinst;
+	}
+
+	/**
+	 * @param watchdog the watchdog whose recoveries are reported, or null.
+	 */
+	public void setWatchdog(VisionWatchdog watchdog) {
+		this.watchdog = watchdog;
+	}
+
+	/**
+	 * Starts listening.
+	 * @throws IOException if the port cannot be bound.
+	 */
+	public synchronized void start() throws IOException {
+		if (server != null) {
+			return;
+		}
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", exchange -> {
+			if (isGet(exchange)) {
+				respond(exchange, 200, TEXT_FORMAT, metrics());
+			}
+		});
+		server.createContext("/health", exchange -> {
+			if (isGet(exchange)) {
+				final JsonObject health = health();
+				respond(exchange, "ok".equals(health.get("status").getAsString()) ? 200 : 503, JSON,
+					new GsonBuilder().setPrettyPrinting().create().toJson(health));
+			}
+		});
+		executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metrics-http");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Stops listening.
+	 */
+	public synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+			server = null;
+		}
+	}
+
+	private static boolean isGet(HttpExchange exchange) throws IOException {
+		if ("GET".equals(exchange.getRequestMethod()) || "HEAD".equals(exchange.getRequestMethod())) {
+			return true;
+		}
+		exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+		exchange.sendResponseHeaders(405, -1);
+		exchange.close();
+		return false;
+	}
+
+	private static void respond(HttpExchange exchange, int status, String contentType, String body)
+		throws IOException {
+		final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		if ("HEAD".equals(exchange.getRequestMethod())) {
+			exchange.sendResponseHeaders(status, -1);
+			exchange.close();
+			return;
+		}
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * @return every metric in the Prometheus text format.
+	 */
+	String metrics() {
+		final StringBuilder out = text;
+		out.setLength(0);
+		final long now = System.nanoTime();
+
+		header("vision_fps", "Frames published per second over the last stats period.", "gauge");
+		for (Camera camera : cameras) {
+			final VisionStats.Summary summary = camera.stats.summary();
+			if (summary != null) {
+				sample("vision_fps", camera.name, summary.fps);
+			}
+		}
+		header("vision_stage_latency_seconds", "Stage time quantiles over the last stats period.", "gauge");
+		for (Camera camera : cameras) {
+			final VisionStats.Summary summary = camera.stats.summary();
+			if (summary == null) {
+				continue;
+			}
+			for (VisionStats.Stage stage : VisionStats.Stage.values()) {
+				for (int q = 0; q < quantiles.length; q++) {
+					out.append("vision_stage_latency_seconds{camera=\"");
+					escape(camera.name);
+					out.append("\",stage=\"").append(stage.key).append("\",quantile=\"").append(quantiles[q])
+						.append("\"} ");
+					value(summary.quantileMillis(stage, q) / 1000);
+				}
+			}
+		}
+		header("vision_frames_published_total", "Frames whose results were published.", "counter");
+		for (Camera camera : cameras) {
+			final VisionStats.Summary summary = camera.stats.summary();
+			if (summary != null) {
+				sample("vision_frames_published_total", camera.name, summary.framesPublishedTotal);
+			}
+		}
+		header("vision_frames_dropped_total", "Frames replaced by a newer one before a stage took them.",
+			"counter");
+		for (Camera camera : cameras) {
+			final VisionStats.Summary summary = camera.stats.summary();
+			if (summary != null) {
+				sample("vision_frames_dropped_total", camera.name, summary.framesDroppedTotal);
+			}
+		}
+		header("vision_blobs", "Blobs kept by the filter in the last frame published.", "gauge");
+		for (Camera camera : cameras) {
+			if (camera.stats.isEnabled()) {
+				sample("vision_blobs", camera.name, camera.stats.lastBlobs());
+			}
+		}
+		header("vision_seconds_since_processed", "Time since the last frame was processed.", "gauge");
+		for (Camera camera : cameras) {
+			sample("vision_seconds_since_processed", camera.name,
+				(now - camera.watched.lastProcessedNanos()) / 1e9);
+		}
+		header("vision_seconds_since_published", "Time since the last frame was published.", "gauge");
+		for (Camera camera : cameras) {
+			sample("vision_seconds_since_published", camera.name,
+				(now - camera.watched.lastPublishedNanos()) / 1e9);
+		}
+		final VisionWatchdog currentWatchdog = watchdog;
+		if (currentWatchdog != null) {
+			header("vision_watchdog_recoveries_total", "Times a stalled camera was rebuilt.", "counter");
+			for (Camera camera : cameras) {
+				sample("vision_watchdog_recoveries_total", camera.name, currentWatchdog.restarts(camera.watched));
+			}
+		}
+
+		header("jvm_gc_collection_seconds_total", "Time spent in garbage collection.", "counter");
+		for (GarbageCollectorMXBean collector : collectors) {
+			out.append("jvm_gc_collection_seconds_total{gc=\"");
+			escape(collector.getName());
+			out.append("\"} ");
+			value(Math.max(0, collector.getCollectionTime()) / 1000.0);
+		}
+		header("jvm_gc_collections_total", "Garbage collections.", "counter");
+		for (GarbageCollectorMXBean collector : collectors) {
+			out.append("jvm_gc_collections_total{gc=\"");
+			escape(collector.getName());
+			out.append("\"} ");
+			value(Math.max(0, collector.getCollectionCount()));
+		}
+		header("vision_native_mats", "Pooled and contour Mats not yet released.", "gauge");
+		sample("vision_native_mats", null, NativeMemory.liveMats());
+		header("vision_native_bytes", "Image data in those Mats.", "gauge");
+		sample("vision_native_bytes", null, NativeMemory.liveBytes());
+		header("process_resident_memory_bytes", "Resident set size.", "gauge");
+		sample("process_resident_memory_bytes", null, NativeMemory.residentBytes());
+		header("process_uptime_seconds", "Time since the JVM started.", "gauge");
+		sample("process_uptime_seconds", null, ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+
+		final NetworkTableInstance nt = ntinst;
+		if (nt != null) {
+			header("vision_nt_connected", "1 while connected to NetworkTables.", "gauge");
+			sample("vision_nt_connected", null, nt.isConnected() ? 1 : 0);
+			header("vision_nt_connections", "Open NetworkTables connections.", "gauge");
+			sample("vision_nt_connections", null, nt.getConnections().length);
+		}
+		// by index rather than iterator so a scrape allocates nothing; metrics are only added
+		for (int i = 0; i < gauges.size(); i++) {
+			final Gauge gauge = gauges.get(i);
+			if (firstOfName(i)) {
+				header(gauge.name, gauge.help, gauge.type);
+				for (int j = i; j < gauges.size(); j++) {
+					final Gauge same = gauges.get(j);
+					if (same.name.equals(gauge.name)) {
+						sample(same.name, same.camera, same.value.getAsDouble());
+					}
+				}
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @return true if no extra metric before index i has its name.
+	 */
+	private boolean firstOfName(int i) {
+		final String name = gauges.get(i).name;
+		for (int j = 0; j < i; j++) {
+			if (gauges.get(j).name.equals(name)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void header(String name, String help, String type) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private void sample(String name, String camera, double value) {
+		text.append(name);
+		if (camera != null) {
+			text.append("{camera=\"");
+			escape(camera);
+			text.append("\"}");
+		}
+		text.append(' ');
+		value(value);
+	}
+
+	private void value(double value) {
+		if (Double.isNaN(value)) {
+			text.append("NaN");
+		}
+		else if (Double.isInfinite(value)) {
+			text.append(value > 0 ? "+Inf" : "-Inf");
+		}
+		else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			text.append((long) value);
+		}
+		else {
+			text.append(value);
+		}
+		text.append('\n');
+	}
+
+	private void escape(String label) {
+		for (int i = 0; i < label.length(); i++) {
+			final char c = label.charAt(i);
+			if (c == '\\' || c == '"') {
+				text.append('\\').append(c);
+			}
+			else if (c == '\n') {
+				text.append("\\n");
+			}
+			else {
+				text.append(c);
+			}
+		}
+	}
+
+	/**
+	 * @return the health summary; its status is "ok" only when every camera has
+	 *     published a frame within the stale time.
+	 */
+	JsonObject health() {
+		final long now = System.nanoTime();
+		final JsonObject health = new JsonObject();
+		final JsonArray cameraList = new JsonArray();
+		boolean healthy = !cameras.isEmpty();
+		final VisionWatchdog currentWatchdog = watchdog;
+		for (Camera camera : cameras) {
+			final JsonObject entry = new JsonObject();
+			final long sincePublished = now - camera.watched.lastPublishedNanos();
+			final boolean stale = sincePublished > staleNanos;
+			healthy &= !stale;
+			entry.addProperty("name", camera.name);
+			entry.addProperty("stale", stale);
+			entry.addProperty("msSinceProcessed", (now - camera.watched.lastProcessedNanos()) / 1000000);
+			entry.addProperty("msSincePublished", sincePublished / 1000000);
+			final VisionStats.Summary summary = camera.stats.summary();
+			if (summary != null) {
+				entry.addProperty("fps", Math.round(summary.fps * 10) / 10.0);
+				entry.addProperty("droppedFrames", summary.droppedFrames);
+			}
+			if (camera.stats.isEnabled()) {
+				entry.addProperty("blobs", camera.stats.lastBlobs());
+			}
+			if (currentWatchdog != null) {
+				entry.addProperty("recoveries", currentWatchdog.restarts(camera.watched));
+			}
+			cameraList.add(entry);
+		}
+		health.addProperty("status", healthy ? "ok" : cameras.isEmpty() ? "no cameras" : "stale");
+		health.addProperty("uptimeSeconds", ManagementFactory.getRuntimeMXBean().getUptime() / 1000);
+		final NetworkTableInstance nt = ntinst;
+		if (nt != null) {
+			health.addProperty("networkTablesConnected", nt.isConnected());
+		}
+		health.add("cameras", cameraList);
+		health.addProperty("nativeMats", NativeMemory.liveMats());
+		health.addProperty("nativeMB", Math.round(NativeMemory.liveBytes() / 1048576.0 * 10) / 10.0);
+		health.addProperty("residentMB", Math.round(NativeMemory.residentBytes() / 1048576.0 * 10) / 10.0);
+		return health;
+	}
+}
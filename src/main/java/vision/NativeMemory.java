@@ -0,0 +1,103 @@
+package vision;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.*;
+
+/**
+* NativeMemory class.
+*
+* <p>Counts the native Mats the vision loop holds and the bytes of image data in them,
+* so it can be watched over a long event day that native memory stays flat. The Mats
+* counted are those made by a MatPool and the contours GripPipeline finds, which are
+* the ones sized by the frame or made per frame. Pooled Mats' bytes are as of the last
+* time their pool was accounted, once per frame for a pipeline. The process's resident
+* set size is read from /proc as well, so a creep anywhere else shows up too.
+*/
+public final class NativeMemory {
+
+	// every contour is CV_32SC2: two ints per point
+	private static final long CONTOUR_POINT_BYTES = 8;
+
+	private static final AtomicLong liveMats = new AtomicLong();
+	private static final AtomicLong liveBytes = new AtomicLong();
+
+	private NativeMemory() {
+	}
+
+	static void allocated(long mats, long bytes) {
+		liveMats.addAndGet(mats);
+		liveBytes.addAndGet(bytes);
+	}
+
+	static void freed(long mats, long bytes) {
+		liveMats.addAndGet(-mats);
+		liveBytes.addAndGet(-bytes);
+	}
+
+	static void resized(long bytes) {
+		liveBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Counts contours just made by Imgproc.findContours.
+	 */
+	static void adopt(List<MatOfPoint> contours) {
+		long bytes = 0;
+		for (int i = 0; i < contours.size(); i++) {
+			bytes += contours.get(i).rows() * CONTOUR_POINT_BYTES;
+		}
+		allocated(contours.size(), bytes);
+	}
+
+	/**
+	 * Frees the points of contours counted by adopt, rather than leaving them for
+	 * finalization, and empties the list.
+	 */
+	static void release(List<MatOfPoint> contours) {
+		long bytes = 0;
+		for (int i = 0; i < contours.size(); i++) {
+			final MatOfPoint contour = contours.get(i);
+			bytes += contour.rows() * CONTOUR_POINT_BYTES;
+			contour.release();
+		}
+		freed(contours.size(), bytes);
+		contours.clear();
+	}
+
+	/**
+	 * @return the number of counted Mats not yet released.
+	 */
+	public static long liveMats() {
+		return liveMats.get();
+	}
+
+	/**
+	 * @return the bytes of data in them.
+	 */
+	public static long liveBytes() {
+		return liveBytes.get();
+	}
+
+	/**
+	 * @return the process's resident set size in bytes, or -1 where /proc is not available.
+	 */
+	public static long residentBytes() {
+		try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("VmRSS:")) {
+					// "VmRSS:    123456 kB"
+					return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+				}
+			}
+		} catch (IOException | NumberFormatException ex) {
+			// not Linux
+		}
+		return -1;
+	}
+}
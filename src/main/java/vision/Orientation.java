@@ -0,0 +1,127 @@
+package vision;
+
+import org.opencv.core.*;
+
+/**
+* Orientation enum.
+*
+* <p>How a camera frame is turned before it is shown. Pixels are remapped in a single
+* OpenCV call, and only for the overlay; detection always runs on the frame as
+* captured and its coordinates are mapped into output space with {@link #mapX} and
+* {@link #mapY}.
+*/
+public enum Orientation {
+	NONE,
+	ROTATE_90_CLOCKWISE,
+	ROTATE_180,
+	ROTATE_90_COUNTERCLOCKWISE,
+	FLIP_HORIZONTAL,
+	FLIP_VERTICAL;
+
+	/**
+	 * Looks up an orientation by name, ignoring case.
+	 * @param name the name as written in the camera configuration.
+	 * @return the orientation, or null if the name is not known.
+	 */
+	public static Orientation fromName(String name) {
+		for (Orientation orientation : values()) {
+			if (orientation.name().equalsIgnoreCase(name)) {
+				return orientation;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if this orientation swaps the width and height of the frame.
+	 */
+	public boolean swapsAxes() {
+		return this == ROTATE_90_CLOCKWISE || this == ROTATE_90_COUNTERCLOCKWISE;
+	}
+
+	/**
+	 * @return the width of the output for a width x height source.
+	 */
+	public int outputWidth(int width, int height) {
+		return swapsAxes() ? height : width;
+	}
+
+	/**
+	 * @return the height of the output for a width x height source.
+	 */
+	public int outputHeight(int width, int height) {
+		return swapsAxes() ? width : height;
+	}
+
+	/**
+	 * Remaps src into dst with a single pass. Does nothing for NONE; callers should
+	 * use the source directly instead.
+	 * @param src the frame as captured.
+	 * @param dst the frame in output orientation.
+	 */
+	public void apply(Mat src, Mat dst) {
+		switch (this) {
+			case ROTATE_90_CLOCKWISE:
+				Core.rotate(src, dst, Core.ROTATE_90_CLOCKWISE);
+				break;
+			case ROTATE_180:
+				Core.rotate(src, dst, Core.ROTATE_180);
+				break;
+			case ROTATE_90_COUNTERCLOCKWISE:
+				Core.rotate(src, dst, Core.ROTATE_90_COUNTERCLOCKWISE);
+				break;
+			case FLIP_HORIZONTAL:
+				Core.flip(src, dst, 1);
+				break;
+			case FLIP_VERTICAL:
+				Core.flip(src, dst, 0);
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Maps a source pixel coordinate to its X in output space.
+	 * @param x source X.
+	 * @param y source Y.
+	 * @param width source frame width.
+	 * @param height source frame height.
+	 * @return output X.
+	 */
+	public double mapX(double x, double y, int width, int height) {
+		switch (this) {
+			case ROTATE_90_CLOCKWISE:
+				return height - 1 - y;
+			case ROTATE_90_COUNTERCLOCKWISE:
+				return y;
+			case ROTATE_180:
+			case FLIP_HORIZONTAL:
+				return width - 1 - x;
+			default:
+				return x;
+		}
+	}
+
+	/**
+	 * Maps a source pixel coordinate to its Y in output space.
+	 * @param x source X.
+	 * @param y source Y.
+	 * @param width source frame width.
+	 * @param height source frame height.
+	 * @return output Y.
+	 */
+	public double mapY(double x, double y, int width, int height) {
+		switch (this) {
+			case ROTATE_90_CLOCKWISE:
+				return x;
+			case ROTATE_90_COUNTERCLOCKWISE:
+				return width - 1 - x;
+			case ROTATE_180:
+			case FLIP_VERTICAL:
+				return height - 1 - y;
+			default:
+				return y;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package vision;
+
+import java.util.function.Consumer;
+
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+import edu.wpi.cscore.CvSource;
+import edu.wpi.cscore.VideoMode;
+
+/**
+* OverlayStream class.
+*
+* <p>The render stage for the driver view: turns a published frame into the output
+* orientation, scales it down, draws the center line and the line through the target,
+* and puts it on a CvSource. Nothing is drawn or encoded while no client is watching
+* the source, and frames are dropped to hold the stream to its own frame rate. All Mats
+* and Points are reused, so a frame that is streamed allocates nothing in Java.
+*/
+public class OverlayStream implements Consumer<Frame> {
+
+	public static final double DEFAULT_FPS = 15;
+	public static final int DEFAULT_WIDTH = 320;
+
+	private static final Scalar GREEN = new Scalar(0.0, 255.0, 0.0);
+	private static final Scalar RED = new Scalar(0.0, 0.0, 255.0);
+
+	private final CvSource source;
+	private final Orientation orientation;
+	private final Size size;
+	private final double scale;
+	private final long framePeriodNanos;
+	private final Mat oriented = new Mat();
+	private final Mat scaled = new Mat();
+	private final Point top = new Point();
+	private final Point bottom = new Point();
+	private long nextFrameNanos;
+
+	/**
+	 * @param name the name of the CvSource to create.
+	 * @param orientation the orientation frames are turned into.
+	 * @param frameWidth the width of the frame as captured.
+	 * @param frameHeight the height of the frame as captured.
+	 * @param width the width of the stream; the height keeps the aspect ratio.
+	 * @param fps the most frames per second to stream.
+	 */
+	public OverlayStream(String name, Orientation orientation, int frameWidth, int frameHeight, int width,
+		double fps) {
+		if (width <= 0 || fps <= 0) {
+			throw new IllegalArgumentException("stream width and fps must be positive");
+		}
+		final int outputWidth = orientation.outputWidth(frameWidth, frameHeight);
+		final int outputHeight = orientation.outputHeight(frameWidth, frameHeight);
+		this.orientation = orientation;
+		this.scale = Math.min(1.0, width / (double) outputWidth);
+		this.size = new Size(Math.round(outputWidth * scale), Math.round(outputHeight * scale));
+		this.framePeriodNanos = (long) (1e9 / fps);
+		this.source = new CvSource(name, VideoMode.PixelFormat.kMJPEG, (int) size.width, (int) size.height,
+			(int) Math.ceil(fps));
+		this.nextFrameNanos = System.nanoTime();
+	}
+
+	/**
+	 * @return the CvSource the overlay is streamed on.
+	 */
+	public CvSource source() {
+		return source;
+	}
+
+	/**
+	 * Draws and streams a frame, unless nobody is watching or it is too soon since the
+	 * last one.
+	 * @param frame a published frame.
+	 */
+	@Override
+	public void accept(Frame frame) {
+		if (!source.isEnabled()) {
+			return;
+		}
+		final long now = System.nanoTime();
+		if (now - nextFrameNanos < 0) {
+			return;
+		}
+		nextFrameNanos = now + framePeriodNanos;
+
+		Mat image = frame.image;
+		if (orientation != Orientation.NONE) {
+			orientation.apply(image, oriented);
+			image = oriented;
+		}
+		if (scale < 1.0) {
+			Imgproc.resize(image, scaled, size, 0, 0, Imgproc.INTER_AREA);
+			image = scaled;
+		}
+
+		final double center = size.width / 2;
+		verticalLine(image, center, GREEN);
+		if (!Double.isNaN(frame.deviationFromCenter)) {
+			verticalLine(image, center + frame.deviationFromCenter * scale, RED);
+		}
+		source.putFrame(image);
+	}
+
+	private void verticalLine(Mat image, double x, Scalar color) {
+		top.x = x;
+		top.y = 0;
+		bottom.x = x;
+		bottom.y = size.height;
+		Imgproc.line(image, bottom, top, color, Math.max(1, (int) Math.round(3 * scale)), 4);
+	}
+}
@@ -0,0 +1,826 @@
+package vision;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.opencv.core.*;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+* ParameterTuner class.
+*
+* <p>Searches the HSL_Threshold bounds and the Filter_Contours box, ratio and area limits
+* for the settings that best find a hand-labeled hub box in a set of frames, so a venue's
+* lighting can be tuned from a few minutes of recording instead of from the dashboard.
+*
+* <p>Each candidate is scored over every frame: the overlap (intersection over union) of
+* the hub box it finds with the labeled one, or for a frame labeled with no hub, 1 if it
+* finds nothing and 0 otherwise. The hub box is that of the cluster HubSelector picks
+* from the kept blobs, as published by the robot, not the box around all of them, so a
+* light that HubSelector would leave out costs nothing. As on the robot, the selection
+* carries over from frame to frame, so each candidate's frames are scored in order with
+* a selector of its own. The mean of that is its accuracy. Its cost is the mean
+* number of blobs the threshold leaves per frame, which is what the contour and filter
+* stages' time grows with; a candidate's objective is its accuracy less the cost weight
+* times its cost, so of two equally accurate settings the tighter one wins. Cost is a
+* count rather than a timing so the same frames always give the same answer.
+*
+* <p>The search has two stages, both run on a fork-join pool, one candidate per task. A
+* global stage scores a fixed set of random candidates spread over the whole space,
+* along with the starting settings. A local stage then takes the best few of those and
+* repeatedly moves one value at a time by a step, up and down, keeping the best move and
+* halving the steps when no move helps. Every frame is converted to HLS once up front,
+* and candidates that only change the filter reuse the blobs found for the threshold
+* they share, so a search over a few hundred frames takes minutes.
+*
+* <p>Blobs are found with connected components, so Min Perimeter, Solidity and Vertices
+* are not searched and the tuned settings let every contour through on them. The
+* starting and tuned settings are finally run through GripPipeline itself with the
+* chosen blob engine, and its accuracy and time per frame are printed before the tuned
+* settings, as a JSON object with the keys and value forms of the "Hub Settings" table.
+*
+* <p>The labels file has one frame per line: the path of an image, or of a FrameRecorder
+* recording followed by @ and the frame's position in it, then the labeled hub box as
+* minX,minY,maxX,maxY in pixels of the frame as captured. A frame without a box is one
+* the hub is not in. Paths are relative to the labels file; blank lines and lines
+* starting with # are skipped. Boxes are in the frame as captured; --orientation only
+* sets the orientation HubSelector sees the blobs in, which should be the camera's.
+*
+* <pre>
+* java -cp cougarTech-all.jar vision.ParameterTuner &lt;labels file&gt; [options]
+*   --start FILE        start from these settings, in the form written by --out
+*   --samples N         random candidates in the global stage (default 4096)
+*   --starts N          best candidates refined by the local stage (default 4)
+*   --cost-weight W     objective penalty per blob per frame (default 0.0005)
+*   --threads N         search threads (default one per core)
+*   --blobs components  blob engine for the final check (default contours)
+*   --orientation NAME  the camera's output orientation (default none)
+*   --out FILE          also write the tuned settings to FILE
+* </pre>
+*/
+public final class ParameterTuner {
+
+	public static final int DEFAULT_SAMPLES = 4096;
+	public static final int DEFAULT_STARTS = 4;
+	public static final double DEFAULT_COST_WEIGHT = 0.0005;
+	/** The overlap at which a found hub box counts as a hit. */
+	public static final double HIT_OVERLAP = 0.5;
+
+	private static final long SEED = 0x2228L;
+	private static final int MAX_ROUNDS = 200;
+	// a move must gain more than this to be taken, so rounding noise cannot loop
+	private static final double MIN_GAIN = 1e-9;
+
+	// The searched values, in this order. Each {min, max} pair is adjacent.
+	private static final int HUE_MIN = 0;
+	private static final int HUE_MAX = 1;
+	private static final int SATURATION_MIN = 2;
+	private static final int SATURATION_MAX = 3;
+	private static final int LUMINANCE_MIN = 4;
+	private static final int LUMINANCE_MAX = 5;
+	private static final int MIN_AREA = 6;
+	private static final int WIDTH_MIN = 7;
+	private static final int WIDTH_MAX = 8;
+	private static final int HEIGHT_MIN = 9;
+	private static final int HEIGHT_MAX = 10;
+	private static final int RATIO_MIN = 11;
+	private static final int RATIO_MAX = 12;
+	private static final int DIMENSIONS = 13;
+	// values below this one only change the threshold
+	private static final int FILTER_START = MIN_AREA;
+	private static final double MAX_AREA = 2000;
+	private static final double MAX_RATIO = 10;
+	private static final double[] INITIAL_STEP = {8, 8, 16, 16, 16, 16, 16, 16, 16, 16, 16, 0.25, 0.25};
+	private static final double[] MIN_STEP = {1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0.01, 0.01};
+
+	private final List<LabeledFrame> frames;
+	private final ForkJoinPool pool;
+	private final double costWeight;
+	private final Orientation orientation;
+	private final double[] upper;
+	private final ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(Workspace::new);
+
+	static {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+	}
+
+	/**
+	 * One labeled frame, kept both as captured and converted to HLS.
+	 */
+	private static final class LabeledFrame {
+		final Mat image;
+		final Mat hls = new Mat();
+		final int width;
+		final int height;
+		// minX, minY, maxX, maxY, or null where the hub is not in the frame
+		final int[] hub;
+
+		LabeledFrame(Mat image, int[] hub) {
+			this.image = image;
+			this.width = image.cols();
+			this.height = image.rows();
+			this.hub = hub;
+			Imgproc.cvtColor(image, hls, Imgproc.COLOR_BGR2HLS);
+		}
+	}
+
+	/**
+	 * The blobs one threshold left in one frame.
+	 */
+	private static final class Blobs {
+		int size;
+		int[] minX = new int[16];
+		int[] minY = new int[16];
+		int[] maxX = new int[16];
+		int[] maxY = new int[16];
+		double[] area = new double[16];
+
+		void copyFrom(ComponentFinder found) {
+			size = found.size();
+			if (minX.length < size) {
+				minX = new int[size];
+				minY = new int[size];
+				maxX = new int[size];
+				maxY = new int[size];
+				area = new double[size];
+			}
+			for (int i = 0; i < size; i++) {
+				minX[i] = found.minX(i);
+				minY[i] = found.minY(i);
+				maxX[i] = found.maxX(i);
+				maxY[i] = found.maxY(i);
+				area[i] = found.area(i);
+			}
+		}
+	}
+
+	/**
+	 * Per-thread scratch space, so scoring a candidate allocates nothing per frame.
+	 */
+	private static final class Workspace {
+		final Mat mask = new Mat();
+		final ComponentFinder finder = new ComponentFinder();
+		final Blobs blobs = new Blobs();
+		final BlobList kept = new BlobList();
+		final Scalar lower = new Scalar(0, 0, 0);
+		final Scalar upper = new Scalar(0, 0, 0);
+	}
+
+	/**
+	 * Scores frames by the box of the hub cluster HubSelector picks from their kept blobs.
+	 * Holds the selection from one frame to the next, so it is used for one candidate's
+	 * frames, in order, on one thread.
+	 */
+	private static final class HubScorer {
+		private final Orientation orientation;
+		private final Rect bounds = new Rect();
+		private HubAggregator aggregator;
+		private int frameWidth;
+		private int frameHeight;
+
+		HubScorer(Orientation orientation) {
+			this.orientation = orientation;
+		}
+
+		/**
+		 * @return the selected cluster's overlap with the labeled hub box, or for a frame
+		 *     without the hub, 1 if nothing was selected.
+		 */
+		double score(BlobList kept, LabeledFrame frame) {
+			if (aggregator == null || frameWidth != frame.width || frameHeight != frame.height) {
+				aggregator = new HubAggregator(orientation, frame.width, frame.height);
+				frameWidth = frame.width;
+				frameHeight = frame.height;
+			}
+			aggregator.aggregate(kept);
+			final boolean found = aggregator.captureBounds(kept, bounds) > 0;
+			if (frame.hub == null) {
+				return found ? 0 : 1;
+			}
+			return found ? overlap(bounds.x, bounds.y, bounds.x + bounds.width - 1, bounds.y + bounds.height - 1,
+				frame.hub) : 0;
+		}
+	}
+
+	/**
+	 * A candidate's values and how it scored.
+	 */
+	private static final class Result {
+		final double[] values;
+		final double accuracy;
+		final int hits;
+		final double blobsPerFrame;
+		final double objective;
+		// only measured by the final check through GripPipeline
+		double millisPerFrame = Double.NaN;
+
+		Result(double[] values, double accuracy, int hits, double blobsPerFrame, double costWeight) {
+			this.values = values;
+			this.accuracy = accuracy;
+			this.hits = hits;
+			this.blobsPerFrame = blobsPerFrame;
+			this.objective = accuracy - costWeight * blobsPerFrame;
+		}
+	}
+
+	/**
+	 * Scores candidates, splitting the list in half until one is left.
+	 */
+	private final class Evaluate extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final double[][] candidates;
+		private final Blobs[] shared;
+		private final Result[] results;
+		private final int from;
+		private final int to;
+
+		Evaluate(double[][] candidates, Blobs[] shared, Result[] results, int from, int to) {
+			this.candidates = candidates;
+			this.shared = shared;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				results[from] = score(candidates[from], shared);
+				return;
+			}
+			final int middle = (from + to) >>> 1;
+			invokeAll(new Evaluate(candidates, shared, results, from, middle),
+				new Evaluate(candidates, shared, results, middle, to));
+		}
+	}
+
+	/**
+	 * Thresholds every frame with one candidate, splitting the frames in half until one
+	 * is left.
+	 */
+	private final class FindBlobs extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final double[] values;
+		private final Blobs[] blobs;
+		private final int from;
+		private final int to;
+
+		FindBlobs(double[] values, Blobs[] blobs, int from, int to) {
+			this.values = values;
+			this.blobs = blobs;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				blobs[from] = new Blobs();
+				blobs[from].copyFrom(find(frames.get(from), values));
+				return;
+			}
+			final int middle = (from + to) >>> 1;
+			invokeAll(new FindBlobs(values, blobs, from, middle), new FindBlobs(values, blobs, middle, to));
+		}
+	}
+
+	/**
+	 * @param frames the labeled frames.
+	 * @param threads how many threads search at once.
+	 * @param costWeight how much accuracy one more blob per frame is worth giving up.
+	 * @param orientation the orientation the robot selects the hub in.
+	 */
+	private ParameterTuner(List<LabeledFrame> frames, int threads, double costWeight, Orientation orientation) {
+		this.frames = frames;
+		this.pool = new ForkJoinPool(threads);
+		this.costWeight = costWeight;
+		this.orientation = orientation;
+		int width = 0;
+		int height = 0;
+		for (LabeledFrame frame : frames) {
+			width = Math.max(width, frame.image.cols());
+			height = Math.max(height, frame.image.rows());
+		}
+		upper = new double[] {180, 180, 255, 255, 255, 255, MAX_AREA, width, width, height, height, MAX_RATIO,
+			MAX_RATIO};
+	}
+
+	public static void main(String... args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("usage: vision.ParameterTuner <labels file> [--start FILE] [--samples N] [--starts N]"
+				+ " [--cost-weight W] [--threads N] [--blobs components] [--orientation NAME] [--out FILE]");
+			System.exit(2);
+		}
+		File labels = new File(args[0]);
+		PipelineParameters start = PipelineParameters.DEFAULTS;
+		int samples = DEFAULT_SAMPLES;
+		int starts = DEFAULT_STARTS;
+		double costWeight = DEFAULT_COST_WEIGHT;
+		int threads = Runtime.getRuntime().availableProcessors();
+		GripPipeline.BlobEngine blobEngine = GripPipeline.BlobEngine.CONTOURS;
+		Orientation orientation = Orientation.NONE;
+		File out = null;
+		for (int i = 1; i < args.length; i++) {
+			switch (args[i]) {
+				case "--start":
+					try (BufferedReader reader = Files.newBufferedReader(new File(args[++i]).toPath())) {
+						start = fromSettings(new JsonParser().parse(reader).getAsJsonObject(), start);
+					}
+					break;
+				case "--samples":
+					samples = Integer.parseInt(args[++i]);
+					break;
+				case "--starts":
+					starts = Integer.parseInt(args[++i]);
+					break;
+				case "--cost-weight":
+					costWeight = Double.parseDouble(args[++i]);
+					break;
+				case "--threads":
+					threads = Integer.parseInt(args[++i]);
+					break;
+				case "--blobs":
+					if ("components".equalsIgnoreCase(args[++i])) {
+						blobEngine = GripPipeline.BlobEngine.COMPONENTS;
+					}
+					break;
+				case "--orientation":
+					orientation = Orientation.fromName(args[++i]);
+					if (orientation == null) {
+						throw new IllegalArgumentException("unknown orientation '" + args[i] + "'");
+					}
+					break;
+				case "--out":
+					out = new File(args[++i]);
+					break;
+				default:
+					throw new IllegalArgumentException("unknown option '" + args[i] + "'");
+			}
+		}
+		if (samples < 0 || starts < 1 || threads < 1 || costWeight < 0) {
+			throw new IllegalArgumentException("samples, starts, threads and cost weight must not be negative");
+		}
+
+		List<LabeledFrame> frames = load(labels);
+		int labeled = 0;
+		for (LabeledFrame frame : frames) {
+			if (frame.hub != null) {
+				labeled++;
+			}
+		}
+		System.out.println(frames.size() + " frames, " + labeled + " with the hub, " + threads + " threads");
+
+		long startNanos = System.nanoTime();
+		ParameterTuner tuner = new ParameterTuner(frames, threads, costWeight, orientation);
+		Result tuned = tuner.search(valuesOf(start), samples, starts);
+		System.out.println(String.format("searched in %.1f s", (System.nanoTime() - startNanos) / 1e9));
+
+		PipelineParameters best = parametersOf(tuned.values, start);
+		print("start", tuner.check(start, blobEngine), frames.size());
+		print("tuned", tuner.check(best, blobEngine), frames.size());
+
+		String json = new GsonBuilder().setPrettyPrinting().create().toJson(toSettings(best));
+		System.out.println(json);
+		if (out != null) {
+			try (Writer writer = Files.newBufferedWriter(out.toPath(), StandardCharsets.UTF_8)) {
+				writer.write(json);
+				writer.write('\n');
+			}
+		}
+		tuner.pool.shutdown();
+	}
+
+	private static void print(String label, Result result, int frames) {
+		System.out.println(String.format("%s: accuracy %.3f, %d/%d hits, %.1f blobs kept/frame, %.2f ms/frame", label,
+			result.accuracy, result.hits, frames, result.blobsPerFrame, result.millisPerFrame));
+	}
+
+	/**
+	 * Runs both stages of the search.
+	 * @param start the values to start from; always among the global stage's candidates.
+	 * @param samples how many random candidates the global stage scores.
+	 * @param starts how many of its best the local stage refines.
+	 * @return the best candidate found.
+	 */
+	private Result search(double[] start, int samples, int starts) {
+		final Random random = new Random(SEED);
+		final double[][] candidates = new double[samples + 1][];
+		candidates[0] = start;
+		for (int i = 1; i <= samples; i++) {
+			candidates[i] = sample(random);
+		}
+		final Result[] results = evaluate(candidates, null);
+		Arrays.sort(results, (a, b) -> Double.compare(b.objective, a.objective));
+		System.out.println(String.format("global: best accuracy %.3f, %.1f blobs/frame of %d candidates",
+			results[0].accuracy, results[0].blobsPerFrame, results.length));
+
+		Result best = results[0];
+		for (int i = 0; i < Math.min(starts, results.length); i++) {
+			final Result refined = refine(results[i]);
+			System.out.println(String.format("local %d: accuracy %.3f -> %.3f, %.1f blobs/frame", i + 1,
+				results[i].accuracy, refined.accuracy, refined.blobsPerFrame));
+			if (refined.objective > best.objective) {
+				best = refined;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Pattern search from one candidate: every value is moved a step each way, the best
+	 * move is kept, and when none helps every step is halved, down to its minimum.
+	 */
+	private Result refine(Result from) {
+		final double[] step = INITIAL_STEP.clone();
+		Result center = from;
+		Blobs[] centerBlobs = null;
+		double[] centerThreshold = null;
+		final List<double[]> thresholdMoves = new ArrayList<double[]>();
+		final List<double[]> filterMoves = new ArrayList<double[]>();
+		for (int round = 0; round < MAX_ROUNDS; round++) {
+			// Filter moves keep the center's threshold, so its blobs are found once.
+			if (centerThreshold == null
+				|| !Arrays.equals(centerThreshold, 0, FILTER_START, center.values, 0, FILTER_START)) {
+				centerBlobs = new Blobs[frames.size()];
+				pool.invoke(new FindBlobs(center.values, centerBlobs, 0, frames.size()));
+				centerThreshold = center.values;
+			}
+			thresholdMoves.clear();
+			filterMoves.clear();
+			for (int d = 0; d < DIMENSIONS; d++) {
+				for (int sign = -1; sign <= 1; sign += 2) {
+					final double[] moved = move(center.values, d, sign * step[d]);
+					if (moved != null) {
+						(d < FILTER_START ? thresholdMoves : filterMoves).add(moved);
+					}
+				}
+			}
+			Result best = center;
+			for (Result result : evaluate(thresholdMoves.toArray(new double[0][]), null)) {
+				if (result.objective > best.objective + MIN_GAIN) {
+					best = result;
+				}
+			}
+			for (Result result : evaluate(filterMoves.toArray(new double[0][]), centerBlobs)) {
+				if (result.objective > best.objective + MIN_GAIN) {
+					best = result;
+				}
+			}
+			if (best != center) {
+				center = best;
+				continue;
+			}
+			boolean halved = false;
+			for (int d = 0; d < DIMENSIONS; d++) {
+				if (step[d] > MIN_STEP[d]) {
+					step[d] = Math.max(MIN_STEP[d], step[d] / 2);
+					halved = true;
+				}
+			}
+			if (!halved) {
+				break;
+			}
+		}
+		return center;
+	}
+
+	/**
+	 * Scores candidates on the pool.
+	 * @param shared the blobs every candidate's threshold leaves, or null to threshold
+	 *     each frame for each candidate.
+	 */
+	private Result[] evaluate(double[][] candidates, Blobs[] shared) {
+		final Result[] results = new Result[candidates.length];
+		if (candidates.length > 0) {
+			pool.invoke(new Evaluate(candidates, shared, results, 0, candidates.length));
+		}
+		return results;
+	}
+
+	private Result score(double[] values, Blobs[] shared) {
+		final HubScorer scorer = new HubScorer(orientation);
+		final BlobList kept = workspaces.get().kept;
+		double overlap = 0;
+		int hits = 0;
+		long blobs = 0;
+		for (int f = 0; f < frames.size(); f++) {
+			final LabeledFrame frame = frames.get(f);
+			final Blobs found;
+			if (shared != null) {
+				found = shared[f];
+			}
+			else {
+				found = workspaces.get().blobs;
+				found.copyFrom(find(frame, values));
+			}
+			blobs += found.size;
+			filter(values, found, kept);
+			final double frameOverlap = scorer.score(kept, frame);
+			overlap += frameOverlap;
+			if (frameOverlap >= HIT_OVERLAP) {
+				hits++;
+			}
+		}
+		return new Result(values, overlap / frames.size(), hits, blobs / (double) frames.size(), costWeight);
+	}
+
+	/**
+	 * Thresholds a frame and finds its blobs, as GripPipeline does with the OpenCV
+	 * threshold and the components engine.
+	 */
+	private ComponentFinder find(LabeledFrame frame, double[] values) {
+		final Workspace workspace = workspaces.get();
+		workspace.lower.set(new double[] {values[HUE_MIN], values[LUMINANCE_MIN], values[SATURATION_MIN]});
+		workspace.upper.set(new double[] {values[HUE_MAX], values[LUMINANCE_MAX], values[SATURATION_MAX]});
+		Core.inRange(frame.hls, workspace.lower, workspace.upper, workspace.mask);
+		workspace.finder.clear();
+		workspace.finder.find(workspace.mask, 0, 0);
+		return workspace.finder;
+	}
+
+	/**
+	 * Applies a candidate's filter the way GripPipeline.filterComponents does.
+	 * @param kept receives the blobs that pass.
+	 */
+	private static void filter(double[] values, Blobs blobs, BlobList kept) {
+		kept.clear();
+		for (int i = 0; i < blobs.size; i++) {
+			final int width = blobs.maxX[i] - blobs.minX[i] + 1;
+			final int height = blobs.maxY[i] - blobs.minY[i] + 1;
+			if (width < values[WIDTH_MIN] || width > values[WIDTH_MAX]) continue;
+			if (height < values[HEIGHT_MIN] || height > values[HEIGHT_MAX]) continue;
+			final double ratio = width / (double) height;
+			if (ratio < values[RATIO_MIN] || ratio > values[RATIO_MAX]) continue;
+			if (blobs.area[i] < values[MIN_AREA]) continue;
+			kept.add(blobs.minX[i], blobs.minY[i], blobs.maxX[i], blobs.maxY[i], blobs.area[i]);
+		}
+	}
+
+	/**
+	 * @return the intersection over union of a box and the labeled hub box, both with
+	 *     inclusive edges.
+	 */
+	private static double overlap(int minX, int minY, int maxX, int maxY, int[] hub) {
+		final long width = Math.min(maxX, hub[2]) - Math.max(minX, hub[0]) + 1;
+		final long height = Math.min(maxY, hub[3]) - Math.max(minY, hub[1]) + 1;
+		if (width <= 0 || height <= 0) {
+			return 0;
+		}
+		final long intersection = width * height;
+		final long found = (long) (maxX - minX + 1) * (maxY - minY + 1);
+		final long labeled = (long) (hub[2] - hub[0] + 1) * (hub[3] - hub[1] + 1);
+		return intersection / (double) (found + labeled - intersection);
+	}
+
+	/**
+	 * Scores settings through GripPipeline itself, on one thread, after one pass to warm
+	 * it up, and times it. The hub is selected from the kept blobs as the robot does,
+	 * through HubAggregator, with the selection carried over from the warm-up pass.
+	 */
+	private Result check(PipelineParameters parameters, GripPipeline.BlobEngine blobEngine) {
+		final GripPipeline pipeline = new GripPipeline(parameters);
+		pipeline.setBlobEngine(blobEngine);
+		pipeline.setOrientation(orientation);
+		final HubScorer scorer = new HubScorer(orientation);
+		for (LabeledFrame frame : frames) {
+			pipeline.process(frame.image);
+			scorer.score(pipeline.filterContoursBlobs(), frame);
+		}
+		double overlap = 0;
+		int hits = 0;
+		long blobs = 0;
+		long nanos = 0;
+		for (LabeledFrame frame : frames) {
+			final long start = System.nanoTime();
+			pipeline.process(frame.image);
+			nanos += System.nanoTime() - start;
+			final BlobList kept = pipeline.filterContoursBlobs();
+			blobs += kept.size();
+			final double frameOverlap = scorer.score(kept, frame);
+			overlap += frameOverlap;
+			if (frameOverlap >= HIT_OVERLAP) {
+				hits++;
+			}
+		}
+		// here blobs are those kept, as the robot sees them
+		final Result result = new Result(valuesOf(parameters), overlap / frames.size(), hits,
+			blobs / (double) frames.size(), costWeight);
+		result.millisPerFrame = nanos / 1e6 / frames.size();
+		return result;
+	}
+
+	/**
+	 * @return a copy of values with one moved and kept in range, or null if it cannot
+	 *     move or would pass the other end of its pair.
+	 */
+	private double[] move(double[] values, int d, double delta) {
+		final double[] moved = values.clone();
+		moved[d] = Math.max(0, Math.min(upper[d], values[d] + delta));
+		if (moved[d] == values[d]) {
+			return null;
+		}
+		if (d != MIN_AREA) {
+			final boolean isMin = ((d - (d > MIN_AREA ? 1 : 0)) & 1) == 0;
+			if (isMin ? moved[d] > moved[d + 1] : moved[d - 1] > moved[d]) {
+				return null;
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * @return random values: each {min, max} pair two uniform values in order, and the
+	 *     minimum area weighted toward small areas.
+	 */
+	private double[] sample(Random random) {
+		final double[] values = new double[DIMENSIONS];
+		for (int d = 0; d < DIMENSIONS; d++) {
+			if (d == MIN_AREA) {
+				final double u = random.nextDouble();
+				values[d] = Math.rint(u * u * upper[d]);
+				continue;
+			}
+			double a = random.nextDouble() * upper[d];
+			double b = random.nextDouble() * upper[d + 1];
+			if (d < RATIO_MIN) {
+				a = Math.rint(a);
+				b = Math.rint(b);
+			}
+			else {
+				a = Math.rint(a * 100) / 100;
+				b = Math.rint(b * 100) / 100;
+			}
+			values[d] = Math.min(a, b);
+			values[d + 1] = Math.max(a, b);
+			d++;
+		}
+		return values;
+	}
+
+	private static double[] valuesOf(PipelineParameters parameters) {
+		final double[] hue = parameters.hueBounds();
+		final double[] saturation = parameters.saturationBounds();
+		final double[] luminance = parameters.luminanceBounds();
+		return new double[] {hue[0], hue[1], saturation[0], saturation[1], luminance[0], luminance[1],
+			parameters.minArea(), parameters.minWidth(), parameters.maxWidth(), parameters.minHeight(),
+			parameters.maxHeight(), parameters.minRatio(), parameters.maxRatio()};
+	}
+
+	/**
+	 * @return the searched values as settings, letting every blob through on the ones
+	 *     that are not searched.
+	 */
+	private static PipelineParameters parametersOf(double[] values, PipelineParameters base) {
+		return base.withHsl(new double[] {values[HUE_MIN], values[HUE_MAX]},
+				new double[] {values[SATURATION_MIN], values[SATURATION_MAX]},
+				new double[] {values[LUMINANCE_MIN], values[LUMINANCE_MAX]})
+			.withFilter(new double[] {values[MIN_AREA], 0, values[WIDTH_MIN], values[WIDTH_MAX], values[HEIGHT_MIN],
+				values[HEIGHT_MAX], 0, 100, 0, 1000000, values[RATIO_MIN], values[RATIO_MAX]});
+	}
+
+	/**
+	 * @return settings in the form the "Hub Settings" table holds them.
+	 */
+	static JsonObject toSettings(PipelineParameters parameters) {
+		final double[] filter = parameters.filter();
+		final JsonObject settings = new JsonObject();
+		settings.add("Hue", pair(parameters.hue()));
+		settings.add("Saturation", pair(parameters.saturation()));
+		settings.add("Luminance", pair(parameters.luminance()));
+		settings.addProperty("Min Area", filter[0]);
+		settings.addProperty("Min Perimeter", filter[1]);
+		settings.add("Width", pair(filter[2], filter[3]));
+		settings.add("Height", pair(filter[4], filter[5]));
+		settings.add("Solidity", pair(filter[6], filter[7]));
+		settings.add("Vertices", pair(filter[8], filter[9]));
+		settings.add("Ratio", pair(filter[10], filter[11]));
+		return settings;
+	}
+
+	private static JsonArray pair(double... values) {
+		final JsonArray array = new JsonArray();
+		array.add(values[0]);
+		array.add(values[1]);
+		return array;
+	}
+
+	/**
+	 * @return settings read from the form toSettings writes; missing keys keep base's values.
+	 */
+	static PipelineParameters fromSettings(JsonObject settings, PipelineParameters base) {
+		final double[] filter = base.filter();
+		return base
+			.withHsl(range(settings, "Hue", base.hue()), range(settings, "Saturation", base.saturation()),
+				range(settings, "Luminance", base.luminance()))
+			.withMinArea(settings.has("Min Area") ? settings.get("Min Area").getAsDouble() : filter[0])
+			.withMinPerimeter(settings.has("Min Perimeter") ? settings.get("Min Perimeter").getAsDouble() : filter[1])
+			.withWidth(range(settings, "Width", new double[] {filter[2], filter[3]}))
+			.withHeight(range(settings, "Height", new double[] {filter[4], filter[5]}))
+			.withSolidity(range(settings, "Solidity", new double[] {filter[6], filter[7]}))
+			.withVertices(range(settings, "Vertices", new double[] {filter[8], filter[9]}))
+			.withRatio(range(settings, "Ratio", new double[] {filter[10], filter[11]}));
+	}
+
+	private static double[] range(JsonObject settings, String key, double[] missing) {
+		if (!settings.has(key)) {
+			return missing;
+		}
+		final JsonArray array = settings.getAsJsonArray(key);
+		final double[] range = new double[array.size()];
+		int i = 0;
+		for (JsonElement element : array) {
+			range[i++] = element.getAsDouble();
+		}
+		return range;
+	}
+
+	/**
+	 * Reads the labels file and every frame it lists.
+	 */
+	private static List<LabeledFrame> load(File labels) throws IOException {
+		final File directory = labels.getAbsoluteFile().getParentFile();
+		final List<LabeledFrame> frames = new ArrayList<LabeledFrame>();
+		final Map<File, RecordingReader> recordings = new HashMap<File, RecordingReader>();
+		try {
+			int lineNumber = 0;
+			for (String line : Files.readAllLines(labels.toPath(), StandardCharsets.UTF_8)) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				final String[] fields = line.split("\\s*,\\s*");
+				int[] hub = null;
+				if (fields.length == 5) {
+					hub = new int[4];
+					for (int i = 0; i < 4; i++) {
+						hub[i] = Integer.parseInt(fields[i + 1]);
+					}
+					if (hub[2] < hub[0] || hub[3] < hub[1]) {
+						throw new IOException(labels + ":" + lineNumber + ": hub box is inside out");
+					}
+				}
+				else if (fields.length != 1) {
+					throw new IOException(labels + ":" + lineNumber + ": expected a path and minX,minY,maxX,maxY");
+				}
+				frames.add(new LabeledFrame(read(directory, fields[0], recordings), hub));
+			}
+		} finally {
+			for (RecordingReader recording : recordings.values()) {
+				recording.close();
+			}
+		}
+		if (frames.isEmpty()) {
+			throw new IOException("no frames in " + labels);
+		}
+		return frames;
+	}
+
+	private static Mat read(File directory, String path, Map<File, RecordingReader> recordings)
+		throws IOException {
+		final int at = path.lastIndexOf('@');
+		if (at > 0 && path.substring(0, at).endsWith(".vrec")) {
+			final File file = resolve(directory, path.substring(0, at));
+			RecordingReader recording = recordings.get(file);
+			if (recording == null) {
+				recording = new RecordingReader(file);
+				recordings.put(file, recording);
+			}
+			final Mat image = new Mat();
+			recording.seek(Long.parseLong(path.substring(at + 1)));
+			if (!recording.next(image)) {
+				throw new IOException("frame " + path + " is cut short");
+			}
+			return image;
+		}
+		final Mat image = Imgcodecs.imread(resolve(directory, path).getPath(), Imgcodecs.IMREAD_COLOR);
+		if (image.empty()) {
+			throw new IOException("could not read image '" + path + "'");
+		}
+		return image;
+	}
+
+	private static File resolve(File directory, String path) {
+		final File file = new File(path);
+		return file.isAbsolute() ? file : new File(directory, path);
+	}
+}
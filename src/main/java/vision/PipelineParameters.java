@@ -0,0 +1,245 @@
+package vision;
+
+import java.util.Arrays;
+
+/**
+* PipelineParameters class.
+*
+* <p>An immutable snapshot of every HSL_Threshold and Filter_Contours setting used by
+* GripPipeline. Changing a setting makes a new snapshot with one of the with methods,
+* which is handed to GripPipeline.setParameters. The pipeline swaps it in between
+* frames, so a frame never sees a mix of old and new settings.
+*/
+public final class PipelineParameters {
+
+	/** The values tuned in GRIP for the hub. */
+	public static final PipelineParameters DEFAULTS = new PipelineParameters(
+		new double[] {44, 91}, new double[] {204, 255.0}, new double[] {28, 193},
+		new double[] {3, 0, 0.0, 1000, 0, 1000, 0, 100, 0, 1000000, 0, 1000.0});
+
+	// Filter_Contours values, in the order they are passed to filterContours
+	private static final int MIN_AREA = 0;
+	private static final int MIN_PERIMETER = 1;
+	private static final int MIN_WIDTH = 2;
+	private static final int MAX_WIDTH = 3;
+	private static final int MIN_HEIGHT = 4;
+	private static final int MAX_HEIGHT = 5;
+	private static final int MIN_SOLIDITY = 6;
+	private static final int MAX_SOLIDITY = 7;
+	private static final int MIN_VERTICES = 8;
+	private static final int MAX_VERTICES = 9;
+	private static final int MIN_RATIO = 10;
+	private static final int MAX_RATIO = 11;
+	// a vertex limit at or above this lets every contour through
+	private static final double UNLIMITED_VERTICES = 1000000;
+
+	private final double[] hue;
+	private final double[] saturation;
+	private final double[] luminance;
+	private final double[] solidity;
+	private final double[] filter;
+
+	private PipelineParameters(double[] hue, double[] saturation, double[] luminance, double[] filter) {
+		this.hue = hue;
+		this.saturation = saturation;
+		this.luminance = luminance;
+		this.filter = filter;
+		this.solidity = new double[] {filter[MIN_SOLIDITY], filter[MAX_SOLIDITY]};
+	}
+
+	/**
+	 * @return a copy with new HSL_Threshold bounds.
+	 */
+	public PipelineParameters withHsl(double[] hue, double[] saturation, double[] luminance) {
+		return new PipelineParameters(range(hue, "hue"), range(saturation, "saturation"),
+			range(luminance, "luminance"), filter);
+	}
+
+	/**
+	 * @return a copy with a new Filter_Contours minimum area.
+	 */
+	public PipelineParameters withMinArea(double minArea) {
+		return withFilter(MIN_AREA, minArea);
+	}
+
+	/**
+	 * @return a copy with a new Filter_Contours minimum perimeter.
+	 */
+	public PipelineParameters withMinPerimeter(double minPerimeter) {
+		return withFilter(MIN_PERIMETER, minPerimeter);
+	}
+
+	/**
+	 * @return a copy with a new Filter_Contours bounding box width range.
+	 */
+	public PipelineParameters withWidth(double[] width) {
+		return withFilter(MIN_WIDTH, range(width, "width"));
+	}
+
+	/**
+	 * @return a copy with a new Filter_Contours bounding box height range.
+	 */
+	public PipelineParameters withHeight(double[] height) {
+		return withFilter(MIN_HEIGHT, range(height, "height"));
+	}
+
+	/**
+	 * @return a copy with a new Filter_Contours solidity range, in percent.
+	 */
+	public PipelineParameters withSolidity(double[] solidity) {
+		return withFilter(MIN_SOLIDITY, range(solidity, "solidity"));
+	}
+
+	/**
+	 * @return a copy with a new Filter_Contours vertex count range.
+	 */
+	public PipelineParameters withVertices(double[] vertices) {
+		return withFilter(MIN_VERTICES, range(vertices, "vertices"));
+	}
+
+	/**
+	 * @return a copy with a new Filter_Contours width to height ratio range.
+	 */
+	public PipelineParameters withRatio(double[] ratio) {
+		return withFilter(MIN_RATIO, range(ratio, "ratio"));
+	}
+
+	/**
+	 * @return a copy with every Filter_Contours value replaced, in filter() order.
+	 */
+	public PipelineParameters withFilter(double[] filter) {
+		if (filter == null || filter.length != this.filter.length) {
+			throw new IllegalArgumentException("filter must have " + this.filter.length + " values, got "
+				+ Arrays.toString(filter));
+		}
+		return new PipelineParameters(hue, saturation, luminance, filter.clone());
+	}
+
+	private PipelineParameters withFilter(int index, double... values) {
+		final double[] copy = filter.clone();
+		System.arraycopy(values, 0, copy, index, values.length);
+		return new PipelineParameters(hue, saturation, luminance, copy);
+	}
+
+	private static double[] range(double[] range, String name) {
+		if (range == null || range.length != 2) {
+			throw new IllegalArgumentException(name + " must be {min, max}, got " + Arrays.toString(range));
+		}
+		return new double[] {range[0], range[1]};
+	}
+
+	/**
+	 * @return a copy of the {min, max} hue bounds.
+	 */
+	public double[] hue() {
+		return hue.clone();
+	}
+
+	/**
+	 * @return a copy of the {min, max} saturation bounds.
+	 */
+	public double[] saturation() {
+		return saturation.clone();
+	}
+
+	/**
+	 * @return a copy of the {min, max} luminance bounds.
+	 */
+	public double[] luminance() {
+		return luminance.clone();
+	}
+
+	/**
+	 * @return a copy of the Filter_Contours values in filterContours argument order:
+	 *     minArea, minPerimeter, minWidth, maxWidth, minHeight, maxHeight, min and max
+	 *     solidity, minVertices, maxVertices, minRatio, maxRatio.
+	 */
+	public double[] filter() {
+		return filter.clone();
+	}
+
+	// The pipeline reads the arrays directly on every frame; nothing may modify them.
+
+	double[] hueBounds() {
+		return hue;
+	}
+
+	double[] saturationBounds() {
+		return saturation;
+	}
+
+	double[] luminanceBounds() {
+		return luminance;
+	}
+
+	double[] solidityBounds() {
+		return solidity;
+	}
+
+	double[] filterValues() {
+		return filter;
+	}
+
+	double minArea() {
+		return filter[MIN_AREA];
+	}
+
+	double minPerimeter() {
+		return filter[MIN_PERIMETER];
+	}
+
+	double minWidth() {
+		return filter[MIN_WIDTH];
+	}
+
+	double maxWidth() {
+		return filter[MAX_WIDTH];
+	}
+
+	double minHeight() {
+		return filter[MIN_HEIGHT];
+	}
+
+	double maxHeight() {
+		return filter[MAX_HEIGHT];
+	}
+
+	double minVertices() {
+		return filter[MIN_VERTICES];
+	}
+
+	double maxVertices() {
+		return filter[MAX_VERTICES];
+	}
+
+	double minRatio() {
+		return filter[MIN_RATIO];
+	}
+
+	double maxRatio() {
+		return filter[MAX_RATIO];
+	}
+
+	/**
+	 * @return true if a Filter_Contours setting needs the contour outline: a minimum
+	 *     perimeter, a solidity range narrower than 0 to 100, or a vertex count limit.
+	 */
+	boolean needsContours() {
+		return filter[MIN_PERIMETER] > 0 || solidity[0] > 0 || solidity[1] < 100 || filter[MIN_VERTICES] > 0
+			|| filter[MAX_VERTICES] < UNLIMITED_VERTICES;
+	}
+
+	/**
+	 * @return true if the HSL_Threshold bounds are the same as another snapshot's.
+	 */
+	boolean sameHsl(PipelineParameters other) {
+		return Arrays.equals(hue, other.hue) && Arrays.equals(saturation, other.saturation)
+			&& Arrays.equals(luminance, other.luminance);
+	}
+
+	@Override
+	public String toString() {
+		return "hue " + Arrays.toString(hue) + ", saturation " + Arrays.toString(saturation) + ", luminance "
+			+ Arrays.toString(luminance) + ", filter " + Arrays.toString(filter);
+	}
+}
@@ -0,0 +1,210 @@
+package vision;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.opencv.core.*;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+* RecordingReader class.
+*
+* <p>Reads back a recording written by FrameRecorder, one frame at a time. After each
+* call to next the frame's image, capture time, the parameters it was processed with and
+* the results the robot got from it are available from the reader. If the recording's
+* index is next to it, seek jumps straight to any frame.
+*/
+public class RecordingReader implements AutoCloseable {
+
+	private final File file;
+	private final File indexFile;
+	private final BlobList blobs = new BlobList();
+	private final double[] hue = new double[2];
+	private final double[] saturation = new double[2];
+	private final double[] luminance = new double[2];
+	private final double[] filter = new double[12];
+	private FileInputStream input;
+	private DataInputStream data;
+	private final Mat jpeg = new Mat();
+	private byte[] jpegBytes = new byte[1 << 16];
+	private long sequence;
+	private long captureMicros;
+	private double deviationFromCenter;
+	private PipelineParameters parameters;
+
+	/**
+	 * @param file a .vrec recording.
+	 */
+	public RecordingReader(File file) throws IOException {
+		this.file = file;
+		final String name = file.getName();
+		final int dot = name.lastIndexOf('.');
+		indexFile = new File(file.getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + ".vidx");
+		open(0);
+	}
+
+	private void open(long offset) throws IOException {
+		if (input != null) {
+			input.close();
+		}
+		input = new FileInputStream(file);
+		input.getChannel().position(offset);
+		data = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+	}
+
+	/**
+	 * Reads the next frame.
+	 * @param image the Mat the frame's image is decoded into.
+	 * @return false at the end of the recording, including a last record cut short.
+	 */
+	public boolean next(Mat image) throws IOException {
+		final int magic;
+		try {
+			magic = data.readInt();
+		} catch (EOFException ex) {
+			return false;
+		}
+		if (magic != FrameRecorder.MAGIC) {
+			throw new IOException("not a recording, or corrupt: '" + file + "'");
+		}
+		try {
+			final int version = data.readShort();
+			if (version != FrameRecorder.VERSION) {
+				throw new IOException("unsupported recording version " + version);
+			}
+			final int flags = data.readShort();
+			sequence = data.readLong();
+			captureMicros = data.readLong();
+			readParameters();
+			deviationFromCenter = data.readDouble();
+			final int count = data.readInt();
+			blobs.clear();
+			for (int i = 0; i < count; i++) {
+				blobs.add(data.readInt(), data.readInt(), data.readInt(), data.readInt(), data.readDouble());
+			}
+			decode(image);
+			if ((flags & FrameRecorder.FLAG_OVERLAY) != 0) {
+				data.skipBytes(data.readInt());
+			}
+			return true;
+		} catch (EOFException ex) {
+			// the recorder was stopped part way through a write
+			return false;
+		}
+	}
+
+	private void readParameters() throws IOException {
+		hue[0] = data.readDouble();
+		hue[1] = data.readDouble();
+		saturation[0] = data.readDouble();
+		saturation[1] = data.readDouble();
+		luminance[0] = data.readDouble();
+		luminance[1] = data.readDouble();
+		for (int i = 0; i < filter.length; i++) {
+			filter[i] = data.readDouble();
+		}
+		// Consecutive frames nearly always share their parameters, so keep the same snapshot.
+		if (parameters == null || !same(parameters)) {
+			parameters = PipelineParameters.DEFAULTS.withHsl(hue, saturation, luminance).withFilter(filter);
+		}
+	}
+
+	private boolean same(PipelineParameters other) {
+		return Arrays.equals(hue, other.hueBounds())
+			&& Arrays.equals(saturation, other.saturationBounds())
+			&& Arrays.equals(luminance, other.luminanceBounds())
+			&& Arrays.equals(filter, other.filterValues());
+	}
+
+	private void decode(Mat image) throws IOException {
+		final int length = data.readInt();
+		if (jpegBytes.length < length) {
+			jpegBytes = new byte[Math.max(length, jpegBytes.length * 2)];
+		}
+		data.readFully(jpegBytes, 0, length);
+		jpeg.create(1, length, CvType.CV_8U);
+		jpeg.put(0, 0, jpegBytes, 0, length);
+		final Mat decoded = Imgcodecs.imdecode(jpeg, Imgcodecs.IMREAD_COLOR);
+		if (decoded.empty()) {
+			throw new IOException("corrupt image in frame " + sequence + " of '" + file + "'");
+		}
+		decoded.copyTo(image);
+		decoded.release();
+	}
+
+	/**
+	 * Goes back to the first frame.
+	 */
+	public void rewind() throws IOException {
+		open(0);
+	}
+
+	/**
+	 * @return the number of frames listed in the index, or -1 with no index.
+	 */
+	public long indexedFrames() {
+		return indexFile.isFile() ? indexFile.length() / FrameRecorder.INDEX_ENTRY_BYTES : -1;
+	}
+
+	/**
+	 * Moves to a frame using the index, so the next call to next reads it.
+	 * @param frame the frame's position in the recording, from 0.
+	 */
+	public void seek(long frame) throws IOException {
+		if (frame < 0 || frame >= indexedFrames()) {
+			throw new IOException("frame " + frame + " is not in the index of '" + file + "'");
+		}
+		try (RandomAccessFile index = new RandomAccessFile(indexFile, "r")) {
+			// skip the sequence number and capture time to the record's offset
+			index.seek(frame * FrameRecorder.INDEX_ENTRY_BYTES + 16);
+			open(index.readLong());
+		}
+	}
+
+	/**
+	 * @return the sequence number the robot gave the last frame read.
+	 */
+	public long sequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return when the last frame read was captured, in microseconds on the robot's clock.
+	 */
+	public long captureMicros() {
+		return captureMicros;
+	}
+
+	/**
+	 * @return the parameters the last frame read was processed with.
+	 */
+	public PipelineParameters parameters() {
+		return parameters;
+	}
+
+	/**
+	 * @return the deviation from center the robot published for the last frame read.
+	 */
+	public double deviationFromCenter() {
+		return deviationFromCenter;
+	}
+
+	/**
+	 * @return the blobs the robot kept in the last frame read.
+	 */
+	public BlobList blobs() {
+		return blobs;
+	}
+
+	@Override
+	public void close() throws IOException {
+		data.close();
+		jpeg.release();
+	}
+}
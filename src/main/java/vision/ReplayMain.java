@@ -0,0 +1,172 @@
+package vision;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.wpi.first.networktables.NetworkTableInstance;
+
+/**
+* ReplayMain class.
+*
+* <p>Runs a recording through the same staged pipeline, aggregation and publishing as the
+* robot, with no camera attached. Results go to a local NetworkTables server so a
+* dashboard can watch them. Every frame's outputs and the overall frames per second are
+* printed, along with the native memory held before and after. A FrameRecorder
+* recording is replayed with the parameters the robot used for each frame.
+*
+* <pre>
+* java -cp cougarTech-all.jar vision.ReplayMain &lt;image dir | video | .vrec&gt; [options]
+*   --fast              process frames as quickly as possible (default: real time)
+*   --fps N             recorded frame rate for real-time pacing
+*   --quiet             only print the summary
+*   --nt-port N         port of the local NetworkTables server (default 1735)
+*   --pyramid N         pyramid level, 0 to 2
+*   --threshold lookup  use the lookup-table threshold
+*   --blobs components  find blobs with connected components
+*   --tracking          enable region-of-interest tracking
+*   --orientation NAME  output orientation
+*   --budget MS         enable the LoadGovernor with this per-frame latency budget
+*   --passes N          play the recording N times, or 0 until stopped (default 1)
+* </pre>
+*/
+public final class ReplayMain {
+
+	private static final int DEFAULT_NT_PORT = 1735;
+
+	private ReplayMain() {
+	}
+
+	public static void main(String... args) throws InterruptedException {
+		if (args.length == 0) {
+			System.err.println("usage: vision.ReplayMain <image dir | video | .vrec> [--fast] [--fps N] [--quiet]"
+				+ " [--nt-port N] [--pyramid N] [--threshold lookup] [--blobs components] [--tracking] [--orientation NAME] [--budget MS]"
+				+ " [--passes N]");
+			System.exit(2);
+		}
+		String path = args[0];
+		ReplaySource.Pacing pacing = ReplaySource.Pacing.REAL_TIME;
+		double fps = 0;
+		boolean quiet = false;
+		int ntPort = DEFAULT_NT_PORT;
+		int pyramidLevel = 0;
+		GripPipeline.ThresholdMode thresholdMode = GripPipeline.ThresholdMode.OPENCV;
+		GripPipeline.BlobEngine blobEngine = GripPipeline.BlobEngine.CONTOURS;
+		boolean tracking = false;
+		Orientation orientation = Orientation.NONE;
+		double budget = 0;
+		int passes = 1;
+		for (int i = 1; i < args.length; i++) {
+			switch (args[i]) {
+				case "--fast":
+					pacing = ReplaySource.Pacing.FAST;
+					break;
+				case "--fps":
+					fps = Double.parseDouble(args[++i]);
+					break;
+				case "--quiet":
+					quiet = true;
+					break;
+				case "--nt-port":
+					ntPort = Integer.parseInt(args[++i]);
+					break;
+				case "--pyramid":
+					pyramidLevel = Integer.parseInt(args[++i]);
+					break;
+				case "--threshold":
+					if ("lookup".equalsIgnoreCase(args[++i])) {
+						thresholdMode = GripPipeline.ThresholdMode.LOOKUP_TABLE;
+					}
+					break;
+				case "--blobs":
+					if ("components".equalsIgnoreCase(args[++i])) {
+						blobEngine = GripPipeline.BlobEngine.COMPONENTS;
+					}
+					break;
+				case "--tracking":
+					tracking = true;
+					break;
+				case "--orientation":
+					orientation = Orientation.fromName(args[++i]);
+					if (orientation == null) {
+						throw new IllegalArgumentException("unknown orientation '" + args[i] + "'");
+					}
+					break;
+				case "--budget":
+					budget = Double.parseDouble(args[++i]);
+					break;
+				case "--passes":
+					passes = Integer.parseInt(args[++i]);
+					break;
+				default:
+					throw new IllegalArgumentException("unknown option '" + args[i] + "'");
+			}
+		}
+
+		final boolean printFrames = !quiet;
+		NetworkTableInstance ntinst = NetworkTableInstance.create();
+		ntinst.startServer("replay-networktables.ini", "", ntPort);
+
+		GripPipeline pipeline = new GripPipeline(PipelineParameters.DEFAULTS);
+		pipeline.setOrientation(orientation);
+		pipeline.setPyramidLevel(pyramidLevel);
+		pipeline.setThresholdMode(thresholdMode);
+		pipeline.setBlobEngine(blobEngine);
+		if (tracking) {
+			pipeline.setTrackingWindow(new TrackingWindow());
+		}
+		VisionStats stats = new VisionStats();
+		stats.startPublishing(ntinst.getTable("Vision Stats"), 1000);
+		ReplaySource source = new ReplaySource(path, pacing, fps);
+		source.setPasses(passes);
+		HubPublisher publisher = new HubPublisher(ntinst.getTable("Hub"),
+			new HubAggregator(orientation, source.width(), source.height()), stats);
+
+		final AtomicLong published = new AtomicLong();
+		final AtomicReference<PipelineParameters> printedParameters = new AtomicReference<PipelineParameters>();
+		StagedVisionRunner runner = new StagedVisionRunner("replay", source, pipeline, frame -> {
+			publisher.publish(frame);
+			published.incrementAndGet();
+			if (printFrames) {
+				if (frame.parameters != printedParameters.getAndSet(frame.parameters)) {
+					System.out.println("parameters " + frame.parameters);
+				}
+				HubAggregator hub = publisher.aggregator();
+				HubTracker track = publisher.tracker();
+				System.out.println(String.format("frame %5d  blobs %3d  selected %3d of %2d clusters"
+					+ "  hub (%.0f,%.0f)-(%.0f,%.0f)  deviation %7.1f  distance %6.2f  tracked %7.1f %6.2f (%.2f)",
+					frame.sequence, frame.blobs.size(), hub.shapeCount(), hub.selector().clusterCount(),
+					hub.hubMinX(), hub.hubMinY(), hub.hubMaxX(), hub.hubMaxY(), frame.deviationFromCenter,
+					hub.distance(), track.deviation(), track.distance(), track.confidence()));
+			}
+			ntinst.flush();
+		}, frame -> { }, stats);
+		runner.setLossless(true);
+		if (budget > 0) {
+			LoadGovernor governor = new LoadGovernor(budget, source.fps());
+			governor.publishTo(ntinst.getTable("Hub"));
+			runner.setGovernor(governor);
+		}
+
+		printNativeMemory("native memory before replay");
+		long start = System.nanoTime();
+		runner.start();
+		runner.awaitFinished();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long frames = published.get();
+		System.out.println(String.format("%d frames in %.2f s: %.1f frames/sec, %d dropped", frames, seconds,
+			frames / seconds, runner.droppedFrames()));
+		printNativeMemory("native memory after replay");
+
+		runner.stop();
+		pipeline.release();
+		printNativeMemory("native memory after release");
+		stats.stopPublishing();
+		ntinst.stopServer();
+	}
+
+	private static void printNativeMemory(String label) {
+		System.out.println(String.format("%s: %d Mats, %.1f MB, resident %.1f MB", label,
+			NativeMemory.liveMats(), NativeMemory.liveBytes() / (1024.0 * 1024.0),
+			NativeMemory.residentBytes() / (1024.0 * 1024.0)));
+	}
+}
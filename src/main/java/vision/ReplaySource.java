@@ -0,0 +1,260 @@
+package vision;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.opencv.core.*;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+import edu.wpi.first.wpiutil.WPIUtilJNI;
+
+/**
+* ReplaySource class.
+*
+* <p>A FrameSource that plays back a directory of still images, in file name order, a
+* video file, or a FrameRecorder recording. In real-time pacing frames are handed out
+* at the recorded frame rate; in fast pacing they are handed out as quickly as the
+* pipeline takes them.
+*
+* <p>A recording also carries the parameters each frame was processed with on the
+* robot. They are handed out with the frame, and the runner processes it with them.
+*
+* <p>The recording can be played several times over, or until the runner is stopped,
+* for soak runs.
+*/
+public class ReplaySource implements FrameSource {
+
+	public enum Pacing {
+		REAL_TIME,
+		FAST
+	}
+
+	private final File[] images;
+	private final VideoCapture video;
+	private final RecordingReader recording;
+	private final Pacing pacing;
+	private final long framePeriodNanos;
+	private final double fps;
+	private final int width;
+	private final int height;
+	private int next;
+	private long delivered;
+	private int passes = 1;
+	private int pass;
+	private long startNanos;
+	private boolean exhausted;
+	private String error = "";
+
+	/**
+	 * @param path a directory of images, a video file or a .vrec recording.
+	 * @param pacing how quickly frames are handed out.
+	 * @param fps the recorded frame rate for real-time pacing; 0 to take it from the video,
+	 *     or 30 for images.
+	 */
+	public ReplaySource(String path, Pacing pacing, double fps) {
+		this.pacing = pacing;
+		File file = new File(path);
+		if (file.isDirectory()) {
+			images = file.listFiles(File::isFile);
+			if (images == null || images.length == 0) {
+				throw new IllegalArgumentException("no images in '" + path + "'");
+			}
+			Arrays.sort(images);
+			video = null;
+			recording = null;
+		}
+		else if (file.getName().endsWith(".vrec")) {
+			images = null;
+			video = null;
+			try {
+				recording = new RecordingReader(file);
+			} catch (IOException ex) {
+				throw new IllegalArgumentException("could not open recording '" + path + "': " + ex);
+			}
+		}
+		else {
+			images = null;
+			recording = null;
+			video = new VideoCapture(path);
+			if (!video.isOpened()) {
+				throw new IllegalArgumentException("could not open video '" + path + "'");
+			}
+			if (fps <= 0) {
+				fps = video.get(Videoio.CAP_PROP_FPS);
+			}
+		}
+		if (fps <= 0) {
+			fps = 30;
+		}
+		this.fps = fps;
+		framePeriodNanos = (long) (1e9 / fps);
+
+		// The frame size is that of the first frame; then start again from it.
+		final Mat first = new Mat();
+		if (!read(first)) {
+			throw new IllegalArgumentException("no frame could be read from '" + path + "'");
+		}
+		width = first.cols();
+		height = first.rows();
+		first.release();
+		if (!seekToStart()) {
+			throw new IllegalArgumentException("could not go back to the start of '" + path + "'");
+		}
+	}
+
+	/**
+	 * @return the frame rate of the recording used for real-time pacing.
+	 */
+	public double fps() {
+		return fps;
+	}
+
+	/**
+	 * @return the width of the recorded frames, taken from the first.
+	 */
+	public int width() {
+		return width;
+	}
+
+	/**
+	 * @return the height of the recorded frames, taken from the first.
+	 */
+	public int height() {
+		return height;
+	}
+
+	/**
+	 * @param passes how many times to play the recording, or 0 to play it until the
+	 *     runner is stopped.
+	 */
+	public void setPasses(int passes) {
+		if (passes < 0) {
+			throw new IllegalArgumentException("passes must not be negative");
+		}
+		this.passes = passes;
+	}
+
+	@Override
+	public long grabFrame(Mat image) {
+		if (exhausted) {
+			return 0;
+		}
+		if (!read(image) && !(rewind() && read(image))) {
+			exhausted = true;
+			if (video != null) {
+				video.release();
+			}
+			if (recording != null) {
+				try {
+					recording.close();
+				} catch (IOException ex) {
+					// nothing more is read
+				}
+			}
+			return 0;
+		}
+		if (pacing == Pacing.REAL_TIME) {
+			if (delivered == 0) {
+				startNanos = System.nanoTime();
+			}
+			final long wait = startNanos + delivered * framePeriodNanos - System.nanoTime();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					error = "interrupted";
+					return 0;
+				}
+			}
+		}
+		delivered++;
+		return WPIUtilJNI.now();
+	}
+
+	/**
+	 * Goes back to the start for another pass, if there is one to play.
+	 * @return false if the last pass has been played, or nothing could be read.
+	 */
+	private boolean rewind() {
+		if ((passes > 0 && pass + 1 >= passes) || delivered == 0) {
+			return false;
+		}
+		pass++;
+		return seekToStart();
+	}
+
+	/**
+	 * Goes back to the first frame.
+	 * @return false if the recording could not be reread.
+	 */
+	private boolean seekToStart() {
+		if (recording != null) {
+			try {
+				recording.rewind();
+			} catch (IOException ex) {
+				error = ex.getMessage();
+				System.err.println(error);
+				return false;
+			}
+		}
+		else if (video != null) {
+			video.set(Videoio.CAP_PROP_POS_FRAMES, 0);
+		}
+		next = 0;
+		return true;
+	}
+
+	/**
+	 * Reads the next frame, skipping unreadable images.
+	 * @return false at the end of the recording.
+	 */
+	private boolean read(Mat image) {
+		if (recording != null) {
+			try {
+				if (!recording.next(image)) {
+					return false;
+				}
+			} catch (IOException ex) {
+				error = ex.getMessage();
+				System.err.println(error);
+				return false;
+			}
+			return true;
+		}
+		if (video != null) {
+			next++;
+			return video.read(image);
+		}
+		while (next < images.length) {
+			final File file = images[next++];
+			final Mat decoded = Imgcodecs.imread(file.getPath());
+			if (!decoded.empty()) {
+				decoded.copyTo(image);
+				decoded.release();
+				return true;
+			}
+			error = "could not read '" + file + "'";
+			System.err.println(error);
+		}
+		return false;
+	}
+
+	@Override
+	public String getError() {
+		return exhausted ? "end of recording" : error;
+	}
+
+	@Override
+	public boolean isExhausted() {
+		return exhausted;
+	}
+
+	@Override
+	public PipelineParameters parameters() {
+		return recording == null ? null : recording.parameters();
+	}
+}
@@ -0,0 +1,435 @@
+package vision;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+* StagedVisionRunner class.
+*
+* <p>Runs capture, the GripPipeline, result publishing and overlay rendering each on
+* their own thread, so a frame can be rendered while the next is being processed and
+* the one after is being captured. Stages hand frames on through LatestSlots. When a
+* stage falls behind, the frame waiting for it is replaced by a newer one and recycled
+* instead of queueing, so throughput follows the camera and result latency stays at
+* one frame of processing. In lossless mode every stage waits for the next one instead,
+* so each frame from a recording is processed exactly once.
+*
+* <p>Given a VisionWorkerPool, the process stage runs on the pool's shared threads
+* instead of a thread of its own. A frame-rate budget caps how often frames are
+* processed; frames arriving in between are replaced by newer ones. A LoadGovernor,
+* if set, may skip overlays, coarsen the search or lower the rate further under load.
+*/
+public class StagedVisionRunner {
+
+	// One frame per stage plus one per slot can be in flight, and one more for capture
+	// to grab into.
+	private static final int POOL_SIZE = 8;
+
+	private final String name;
+	private final FrameSource source;
+	private final GripPipeline pipeline;
+	private final Consumer<Frame> publisher;
+	private final Consumer<Frame> renderer;
+	private final VisionStats stats;
+	private final ArrayBlockingQueue<Frame> free = new ArrayBlockingQueue<Frame>(POOL_SIZE);
+	private final LatestSlot<Frame> processSlot = new LatestSlot<Frame>();
+	private final LatestSlot<Frame> publishSlot = new LatestSlot<Frame>();
+	private final LatestSlot<Frame> renderSlot = new LatestSlot<Frame>();
+	private final AtomicLong droppedFrames = new AtomicLong();
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private final AtomicBoolean processing = new AtomicBoolean();
+	// true once stop has kept the pool's workers off our frames
+	private boolean processingHeld;
+	// frames taken from the free pool and not yet given back
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile boolean sourceDone;
+	private volatile CountDownLatch finished = new CountDownLatch(1);
+	private long sequence;
+	private volatile boolean lossless;
+	private VisionWorkerPool pool;
+	private long minFrameNanos;
+	private volatile long nextDueNanos;
+	private LoadGovernor governor;
+	private int basePyramidLevel;
+	private FrameRecorder recorder;
+	private volatile long lastProcessedNanos;
+	private volatile long lastPublishedNanos;
+
+	/**
+	 * @param name used to name the stage threads.
+	 * @param source where frames are grabbed from.
+	 * @param pipeline the pipeline run on every frame.
+	 * @param publisher publishes the results of a processed frame.
+	 * @param renderer draws and streams the overlay for a published frame.
+	 * @param stats where capture and encode timings, frame age and drops are recorded.
+	 */
+	public StagedVisionRunner(String name, FrameSource source, GripPipeline pipeline, Consumer<Frame> publisher,
+		Consumer<Frame> renderer, VisionStats stats) {
+		this.name = name;
+		this.source = source;
+		this.pipeline = pipeline;
+		this.publisher = publisher;
+		this.renderer = renderer;
+		this.stats = stats;
+		for (int i = 0; i < POOL_SIZE; i++) {
+			free.add(new Frame());
+		}
+	}
+
+	/**
+	 * Makes every stage wait for the next to take its frame rather than replacing it.
+	 * Must be set before start.
+	 * @param lossless true to process every frame the source gives.
+	 */
+	public void setLossless(boolean lossless) {
+		this.lossless = lossless;
+	}
+
+	/**
+	 * Runs the process stage on a shared pool instead of a dedicated thread. Must be set
+	 * before start.
+	 * @param pool the pool, or null for a dedicated thread.
+	 */
+	public void setWorkerPool(VisionWorkerPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Caps how many frames per second are processed. Must be set before start.
+	 * @param maxFps the most frames to process per second, or 0 for no limit.
+	 */
+	public void setMaxFps(double maxFps) {
+		minFrameNanos = maxFps > 0 ? (long) (1e9 / maxFps) : 0;
+	}
+
+	/**
+	 * Lets a governor trade quality for latency when processing falls behind. Must be
+	 * set before start.
+	 * @param governor the governor, or null to always process as configured.
+	 */
+	public void setGovernor(LoadGovernor governor) {
+		this.governor = governor;
+	}
+
+	/**
+	 * Copies every published frame to a recorder, which drops frames rather than slow
+	 * the publish stage. Must be set before start.
+	 * @param recorder the recorder, or null to record nothing.
+	 */
+	public void setRecorder(FrameRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * @return the name the stage threads are named after.
+	 */
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * Starts all stage threads.
+	 */
+	public void start() {
+		sourceDone = false;
+		finished = new CountDownLatch(1);
+		basePyramidLevel = pipeline.pyramidLevel();
+		lastProcessedNanos = System.nanoTime();
+		lastPublishedNanos = lastProcessedNanos;
+		threads.add(new Thread(this::capture, name + "-capture"));
+		if (pool == null) {
+			threads.add(new Thread(this::processLoop, name + "-process"));
+		}
+		threads.add(new Thread(() -> runStage(publishSlot, this::publish, renderSlot), name + "-publish"));
+		threads.add(new Thread(() -> runStage(renderSlot, this::render, null), name + "-render"));
+		for (Thread thread : threads) {
+			thread.setDaemon(true);
+			thread.start();
+		}
+		if (pool != null) {
+			processing.set(false);
+			processingHeld = false;
+			pool.register(this);
+		}
+	}
+
+	/**
+	 * Stops all stage threads and waits for them to exit.
+	 */
+	public void stop() throws InterruptedException {
+		stop(0);
+	}
+
+	/**
+	 * Stops all stage threads, waiting a limited time for them to exit. A thread stuck in
+	 * a native call, such as a grab from a camera that has gone away, is left behind; it
+	 * is a daemon and exits on its own if the call ever returns. Calling stop again waits
+	 * for whatever was left behind.
+	 * @param timeoutMillis the longest to wait for each thread, or 0 to wait for ever.
+	 * @return true if every thread exited and no worker is still processing a frame, so
+	 *     the pipeline may be released.
+	 */
+	public boolean stop(long timeoutMillis) throws InterruptedException {
+		boolean stopped = true;
+		if (pool != null && !processingHeld) {
+			pool.unregister(this);
+			// A worker may be part way through one of our frames; holding the flag keeps
+			// any other from starting one.
+			final long deadline = System.nanoTime() + timeoutMillis * 1000000;
+			while (!processing.compareAndSet(false, true)) {
+				if (timeoutMillis > 0 && System.nanoTime() - deadline > 0) {
+					System.err.println(name + ": a worker did not finish its frame");
+					stopped = false;
+					break;
+				}
+				Thread.sleep(1);
+			}
+			processingHeld = stopped;
+		}
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+		for (Thread thread : threads) {
+			thread.join(timeoutMillis);
+			if (thread.isAlive()) {
+				System.err.println(thread.getName() + " did not stop");
+				stopped = false;
+			}
+		}
+		threads.removeIf(thread -> !thread.isAlive());
+		// nothing more will finish
+		finished.countDown();
+		return stopped;
+	}
+
+	/**
+	 * Waits until the source is exhausted and every frame taken from it has been through
+	 * all stages, or the runner is stopped.
+	 */
+	public void awaitFinished() throws InterruptedException {
+		finished.await();
+	}
+
+	/**
+	 * @return the System.nanoTime at which the last frame was processed, or the runner
+	 *     was started if none has been.
+	 */
+	public long lastProcessedNanos() {
+		return lastProcessedNanos;
+	}
+
+	/**
+	 * @return the System.nanoTime at which the last frame left the publish stage, or the
+	 *     runner was started if none has.
+	 */
+	public long lastPublishedNanos() {
+		return lastPublishedNanos;
+	}
+
+	/**
+	 * @return the number of frames replaced in a slot before the next stage took them.
+	 */
+	public long droppedFrames() {
+		return droppedFrames.get();
+	}
+
+	private void capture() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Frame frame = free.poll();
+				if (frame == null) {
+					frame = free.take();
+				}
+				inFlight.incrementAndGet();
+				final long start = stats.start();
+				final long time = source.grabFrame(frame.image);
+				if (time == 0) {
+					release(frame);
+					if (source.isExhausted()) {
+						sourceDone = true;
+						if (inFlight.get() == 0) {
+							finished.countDown();
+						}
+						return;
+					}
+					System.err.println(name + ": " + source.getError());
+					continue;
+				}
+				stats.stop(VisionStats.Stage.CAPTURE, start);
+				frame.sequence = ++sequence;
+				frame.captureMicros = time;
+				frame.parameters = source.parameters();
+				handOff(frame, processSlot);
+			}
+		} catch (InterruptedException ex) {
+			// stopping
+		}
+	}
+
+	/**
+	 * The dedicated process thread, used when there is no worker pool.
+	 */
+	private void processLoop() {
+		try {
+			for (;;) {
+				if (frameInterval() > 0) {
+					final long wait = nextDueNanos - System.nanoTime();
+					if (wait > 0) {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+				}
+				final Frame frame = processSlot.take();
+				nextDueNanos = System.nanoTime() + frameInterval();
+				runStageOnce(frame, this::process, publishSlot);
+			}
+		} catch (InterruptedException ex) {
+			// stopping
+		}
+	}
+
+	/**
+	 * Called by a pool worker to process this runner's waiting frame, if there is one,
+	 * it is due and no other worker is processing one of ours.
+	 * @param now the current System.nanoTime.
+	 * @return 0 if a frame was processed, the nanoseconds until the next frame is due,
+	 *     or -1 if there is nothing to do.
+	 */
+	long processPooled(long now) throws InterruptedException {
+		final long due = nextDueNanos - now;
+		if (due > 0) {
+			return due;
+		}
+		if (!processing.compareAndSet(false, true)) {
+			return -1;
+		}
+		try {
+			final Frame frame = processSlot.poll();
+			if (frame == null) {
+				return -1;
+			}
+			nextDueNanos = now + frameInterval();
+			runStageOnce(frame, this::process, publishSlot);
+			return 0;
+		} finally {
+			processing.set(false);
+		}
+	}
+
+	/**
+	 * @return the least time between processed frames under the budget and governor.
+	 */
+	private long frameInterval() {
+		return governor == null ? minFrameNanos : Math.max(minFrameNanos, governor.minFrameNanos());
+	}
+
+	private void process(Frame frame) {
+		// Settings carried with a recorded frame apply to exactly that frame.
+		if (frame.parameters != null && frame.parameters != pipeline.parameters()) {
+			pipeline.setParameters(frame.parameters);
+		}
+		if (governor == null) {
+			pipeline.process(frame.image);
+		}
+		else {
+			final int pyramidLevel = Math.min(GripPipeline.MAX_PYRAMID_LEVEL,
+				basePyramidLevel + governor.pyramidBoost());
+			if (pipeline.pyramidLevel() != pyramidLevel) {
+				pipeline.setPyramidLevel(pyramidLevel);
+			}
+			final long start = System.nanoTime();
+			pipeline.process(frame.image);
+			governor.frameProcessed(System.nanoTime() - start);
+		}
+		frame.blobs.copyFrom(pipeline.filterContoursBlobs());
+		frame.parameters = pipeline.processedParameters();
+		lastProcessedNanos = System.nanoTime();
+	}
+
+	private void publish(Frame frame) {
+		publisher.accept(frame);
+		lastPublishedNanos = System.nanoTime();
+		stats.framePublished(frame.captureMicros, frame.blobs.size());
+		// Before the render stage can draw on the image.
+		if (recorder != null) {
+			recorder.record(frame);
+		}
+	}
+
+	private void render(Frame frame) {
+		if (governor != null && governor.skipOverlay(frame.sequence)) {
+			return;
+		}
+		final long start = stats.start();
+		renderer.accept(frame);
+		stats.stop(VisionStats.Stage.ENCODE, start);
+	}
+
+	/**
+	 * Takes frames from one slot, does a stage's work on them and hands them to the
+	 * next slot, or back to the pool after the last stage.
+	 */
+	private void runStage(LatestSlot<Frame> input, Consumer<Frame> work, LatestSlot<Frame> output) {
+		try {
+			for (;;) {
+				runStageOnce(input.take(), work, output);
+			}
+		} catch (InterruptedException ex) {
+			// stopping
+		}
+	}
+
+	private void runStageOnce(Frame frame, Consumer<Frame> work, LatestSlot<Frame> output)
+		throws InterruptedException {
+		try {
+			work.accept(frame);
+		} catch (RuntimeException ex) {
+			System.err.println(Thread.currentThread().getName() + ": " + ex);
+			release(frame);
+			return;
+		}
+		if (output == null) {
+			release(frame);
+		}
+		else {
+			handOff(frame, output);
+		}
+	}
+
+	private void handOff(Frame frame, LatestSlot<Frame> output) throws InterruptedException {
+		if (lossless) {
+			output.put(frame);
+		}
+		else {
+			recycle(output.offer(frame));
+		}
+		if (output == processSlot && pool != null) {
+			pool.signal();
+		}
+	}
+
+	private void recycle(Frame stale) {
+		if (stale != null) {
+			droppedFrames.incrementAndGet();
+			stats.frameDropped();
+			release(stale);
+		}
+	}
+
+	/**
+	 * Gives a frame back to the free pool, and signals awaitFinished once the source is
+	 * exhausted and this was the last frame in flight.
+	 */
+	private void release(Frame frame) {
+		free.add(frame);
+		if (inFlight.decrementAndGet() == 0 && sourceDone) {
+			finished.countDown();
+		}
+	}
+}
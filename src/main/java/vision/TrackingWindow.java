@@ -0,0 +1,121 @@
+package vision;
+
+import org.opencv.core.*;
+
+/**
+* TrackingWindow class.
+*
+* <p>Region-of-interest state for the hub search. Once the hub has been found the next
+* frame is only thresholded and contoured inside a padded window around the previous
+* hub box. Every miss grows the padding, and after too many misses in a row the window
+* is dropped and the pipeline goes back to searching the full frame.
+*
+* <p>The box is that of the cluster HubSelector picks, and a frame only counts as a hit
+* when that cluster has at least MIN_HUB_SHAPES shapes, so a lone reflection can neither
+* hold the lock nor drag the window off the hub. Even while locked, every refreshFrames
+* frames is searched in full, so a hub that left the window is found again.
+*/
+public class TrackingWindow {
+
+	public static final int DEFAULT_PADDING = 32;
+	public static final double DEFAULT_GROWTH = 2.0;
+	public static final int DEFAULT_MAX_MISSES = 5;
+	public static final int DEFAULT_REFRESH_FRAMES = 30;
+	public static final int MIN_HUB_SHAPES = 2;
+
+	private final int padding;
+	private final double growth;
+	private final int maxMisses;
+	private final int refreshFrames;
+	private final Rect window = new Rect();
+	private boolean locked;
+	private int misses;
+	private int lockedFrames;
+	private int hubMinX;
+	private int hubMinY;
+	private int hubMaxX;
+	private int hubMaxY;
+
+	public TrackingWindow() {
+		this(DEFAULT_PADDING, DEFAULT_GROWTH, DEFAULT_MAX_MISSES, DEFAULT_REFRESH_FRAMES);
+	}
+
+	/**
+	 * @param padding pixels added on every side of the last hub box.
+	 * @param growth factor the padding is multiplied by for each consecutive miss.
+	 * @param maxMisses consecutive misses tolerated before searching the full frame.
+	 * @param refreshFrames how often the full frame is searched while locked, in frames.
+	 */
+	public TrackingWindow(int padding, double growth, int maxMisses, int refreshFrames) {
+		if (refreshFrames < 1) {
+			throw new IllegalArgumentException("refreshFrames must be positive");
+		}
+		this.padding = padding;
+		this.growth = growth;
+		this.maxMisses = maxMisses;
+		this.refreshFrames = refreshFrames;
+	}
+
+	/**
+	 * Returns the region to search in the next frame.
+	 * @param frameWidth width of the frame.
+	 * @param frameHeight height of the frame.
+	 * @return the window, or null to search the full frame. The Rect is reused.
+	 */
+	public Rect window(int frameWidth, int frameHeight) {
+		if (!locked || ++lockedFrames % refreshFrames == 0) {
+			return null;
+		}
+		final int pad = (int) Math.min(Math.max(frameWidth, frameHeight), padding * Math.pow(growth, misses));
+		final int x0 = Math.max(0, hubMinX - pad);
+		final int y0 = Math.max(0, hubMinY - pad);
+		final int x1 = Math.min(frameWidth, hubMaxX + 1 + pad);
+		final int y1 = Math.min(frameHeight, hubMaxY + 1 + pad);
+		if (x1 <= x0 || y1 <= y0 || (x0 == 0 && y0 == 0 && x1 == frameWidth && y1 == frameHeight)) {
+			return null;
+		}
+		window.x = x0;
+		window.y = y0;
+		window.width = x1 - x0;
+		window.height = y1 - y0;
+		return window;
+	}
+
+	/**
+	 * Records the outcome of the last frame.
+	 * @param found true if the hub was found with at least MIN_HUB_SHAPES shapes.
+	 * @param minX left edge of the hub box, in full-frame coordinates.
+	 * @param minY top edge of the hub box.
+	 * @param maxX right edge of the hub box.
+	 * @param maxY bottom edge of the hub box.
+	 */
+	public void update(boolean found, int minX, int minY, int maxX, int maxY) {
+		if (found) {
+			locked = true;
+			misses = 0;
+			hubMinX = minX;
+			hubMinY = minY;
+			hubMaxX = maxX;
+			hubMaxY = maxY;
+		}
+		else if (locked && ++misses > maxMisses) {
+			reset();
+		}
+	}
+
+	/**
+	 * Drops the lock so the next frame is searched in full.
+	 */
+	public void reset() {
+		locked = false;
+		misses = 0;
+		lockedFrames = 0;
+	}
+
+	/**
+	 * @return true while searching a window rather than the full frame.
+	 */
+	public boolean isLocked() {
+		return locked;
+	}
+}
@@ -0,0 +1,248 @@
+package vision;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+import edu.wpi.first.wpiutil.WPIUtilJNI;
+
+/**
+* VisionStats class.
+*
+* <p>Per-stage timings and frame age for one camera, kept in LatencyHistograms and
+* published as p50/p95/p99 milliseconds, achieved fps and dropped frames to a
+* NetworkTables table at a slow rate, along with the process-wide NativeMemory counts.
+* Each period's values are also kept as a Summary, along with running frame totals, for
+* the MetricsServer to read without touching the histograms. Recording allocates
+* nothing. DISABLED turns every call into a single branch, including the clock reads.
+*/
+public class VisionStats {
+
+	public enum Stage {
+		CAPTURE("capture"),
+		THRESHOLD("threshold"),
+		CONTOURS("contours"),
+		FILTER("filter"),
+		AGGREGATE("aggregate"),
+		PUBLISH("publish"),
+		ENCODE("encode"),
+		FRAME_AGE("frameAge");
+
+		public final String key;
+
+		Stage(String key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * One publishing period's values. Immutable once made.
+	 */
+	public static final class Summary {
+		private final double[][] quantileMillis;
+		public final double fps;
+		public final int droppedFrames;
+		public final long framesPublishedTotal;
+		public final long framesDroppedTotal;
+
+		Summary(double[][] quantileMillis, double fps, int droppedFrames, long framesPublishedTotal,
+			long framesDroppedTotal) {
+			this.quantileMillis = quantileMillis;
+			this.fps = fps;
+			this.droppedFrames = droppedFrames;
+			this.framesPublishedTotal = framesPublishedTotal;
+			this.framesDroppedTotal = framesDroppedTotal;
+		}
+
+		/**
+		 * @param stage the stage.
+		 * @param q the index of the quantile in quantiles().
+		 * @return the stage's time at that quantile, in milliseconds.
+		 */
+		public double quantileMillis(Stage stage, int q) {
+			return quantileMillis[stage.ordinal()][q];
+		}
+	}
+
+	/** A VisionStats that records nothing. */
+	public static final VisionStats DISABLED = new VisionStats(false);
+
+	private static final double[] QUANTILES = {0.50, 0.95, 0.99};
+	private static final String[] QUANTILE_KEYS = {"P50Ms", "P95Ms", "P99Ms"};
+
+	private final boolean enabled;
+	private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+	private final AtomicInteger framesPublished = new AtomicInteger();
+	private final AtomicInteger framesDropped = new AtomicInteger();
+	private final int[] snapshot = new int[LatencyHistogram.BUCKETS];
+	private volatile int lastBlobs;
+	private volatile Summary summary;
+	private long framesPublishedTotal;
+	private long framesDroppedTotal;
+	private ScheduledExecutorService publisher;
+	private long lastPublishNanos;
+
+	public VisionStats() {
+		this(true);
+	}
+
+	private VisionStats(boolean enabled) {
+		this.enabled = enabled;
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * @return true if this instance records anything.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Reads the clock at the start of a timed section.
+	 * @return the start time to pass to stop, or 0 when disabled.
+	 */
+	public long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * @param start the value returned by start().
+	 * @return nanoseconds since start, or 0 when disabled.
+	 */
+	public long elapsed(long start) {
+		return enabled ? System.nanoTime() - start : 0;
+	}
+
+	/**
+	 * Records the time since start against a stage.
+	 * @param stage the stage timed.
+	 * @param start the value returned by start().
+	 */
+	public void stop(Stage stage, long start) {
+		if (enabled) {
+			histograms[stage.ordinal()].record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Records a duration measured elsewhere.
+	 */
+	public void record(Stage stage, long nanos) {
+		if (enabled) {
+			histograms[stage.ordinal()].record(nanos);
+		}
+	}
+
+	/**
+	 * Records that a frame's results were published.
+	 * @param captureMicros the frame's capture timestamp from CvSink.grabFrame.
+	 * @param blobs how many blobs were kept in the frame.
+	 */
+	public void framePublished(long captureMicros, int blobs) {
+		if (enabled) {
+			histograms[Stage.FRAME_AGE.ordinal()].record((WPIUtilJNI.now() - captureMicros) * 1000);
+			framesPublished.incrementAndGet();
+			lastBlobs = blobs;
+		}
+	}
+
+	/**
+	 * Records that a frame was replaced before the next stage took it.
+	 */
+	public void frameDropped() {
+		if (enabled) {
+			framesDropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Starts publishing to a table from a background thread.
+	 * @param table the table to publish to, normally "Vision Stats".
+	 * @param periodMillis how often to publish.
+	 */
+	public synchronized void startPublishing(NetworkTable table, long periodMillis) {
+		if (!enabled || publisher != null) {
+			return;
+		}
+		final NetworkTableEntry[][] quantileEntries = new NetworkTableEntry[histograms.length][QUANTILES.length];
+		for (Stage stage : Stage.values()) {
+			for (int q = 0; q < QUANTILES.length; q++) {
+				quantileEntries[stage.ordinal()][q] = table.getEntry(stage.key + QUANTILE_KEYS[q]);
+			}
+		}
+		final NetworkTableEntry fps = table.getEntry("fps");
+		final NetworkTableEntry dropped = table.getEntry("droppedFrames");
+		final NetworkTableEntry nativeMats = table.getEntry("nativeMats");
+		final NetworkTableEntry nativeMB = table.getEntry("nativeMB");
+		final NetworkTableEntry residentMB = table.getEntry("residentMB");
+
+		publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "vision-stats");
+			thread.setDaemon(true);
+			return thread;
+		});
+		lastPublishNanos = System.nanoTime();
+		publisher.scheduleAtFixedRate(() -> {
+			final long now = System.nanoTime();
+			final double[][] quantileMillis = new double[histograms.length][QUANTILES.length];
+			for (int i = 0; i < histograms.length; i++) {
+				final int total = histograms[i].drainTo(snapshot);
+				for (int q = 0; q < QUANTILES.length; q++) {
+					quantileMillis[i][q] = LatencyHistogram.quantileMillis(snapshot, total, QUANTILES[q]);
+					quantileEntries[i][q].setDouble(quantileMillis[i][q]);
+				}
+			}
+			final int publishedFrames = framesPublished.getAndSet(0);
+			final int droppedFrames = framesDropped.getAndSet(0);
+			framesPublishedTotal += publishedFrames;
+			framesDroppedTotal += droppedFrames;
+			final double achievedFps = publishedFrames * 1e9 / (now - lastPublishNanos);
+			summary = new Summary(quantileMillis, achievedFps, droppedFrames, framesPublishedTotal,
+				framesDroppedTotal);
+			fps.setDouble(achievedFps);
+			dropped.setDouble(droppedFrames);
+			nativeMats.setDouble(NativeMemory.liveMats());
+			nativeMB.setDouble(NativeMemory.liveBytes() / (1024.0 * 1024.0));
+			residentMB.setDouble(NativeMemory.residentBytes() / (1024.0 * 1024.0));
+			lastPublishNanos = now;
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the quantiles reported for each stage, from 0 to 1.
+	 */
+	public static double[] quantiles() {
+		return QUANTILES.clone();
+	}
+
+	/**
+	 * @return the last publishing period's values, or null before the first period ends
+	 *     or when not publishing.
+	 */
+	public Summary summary() {
+		return summary;
+	}
+
+	/**
+	 * @return how many blobs were kept in the last frame published.
+	 */
+	public int lastBlobs() {
+		return lastBlobs;
+	}
+
+	/**
+	 * Stops the background publisher, if running.
+	 */
+	public synchronized void stopPublishing() {
+		if (publisher != null) {
+			publisher.shutdownNow();
+			publisher = null;
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package vision;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+
+/**
+* VisionWatchdog class.
+*
+* <p>Watches each camera for a stall: no frame processed, or no frame through the
+* publish stage, for longer than the stall time, as when a USB camera drops off the bus
+* and comes back. A stalled camera is marked stale and rebuilt in place, with no restart
+* of the JVM, and rebuilt again every stall time until frames flow. Once a frame has
+* been processed and published after the stall, the camera is marked fresh and the time
+* the recovery took is published.
+*
+* <p>Each camera's table gets "stale" (boolean), "recoveries" (how many rebuilds so
+* far) and "lastRecoveryMs" (from detecting the stall to the first frame published
+* after it).
+*/
+public class VisionWatchdog {
+
+	public static final long DEFAULT_STALL_MILLIS = 1000;
+	public static final long DEFAULT_PERIOD_MILLIS = 100;
+
+	/**
+	 * Something the watchdog can check on and rebuild.
+	 */
+	public interface Watched {
+		/**
+		 * @return the name used in log messages.
+		 */
+		String name();
+
+		/**
+		 * @return the System.nanoTime at which the last frame was processed, or the
+		 *     camera was started if none has been.
+		 */
+		long lastProcessedNanos();
+
+		/**
+		 * @return the System.nanoTime at which the last frame left the publish stage, or
+		 *     the camera was started if none has.
+		 */
+		long lastPublishedNanos();
+
+		/**
+		 * Tears down and rebuilds capture and processing.
+		 */
+		void restart() throws Exception;
+	}
+
+	/**
+	 * A watched camera's recovery state, only changed by the watchdog thread.
+	 */
+	private static final class State {
+		final Watched watched;
+		final NetworkTableEntry stale;
+		final NetworkTableEntry recoveries;
+		final NetworkTableEntry lastRecoveryMs;
+		boolean stalled;
+		long stalledAtNanos;
+		long restartedAtNanos;
+		volatile int restarts;
+
+		State(Watched watched, NetworkTable table) {
+			this.watched = watched;
+			stale = table.getEntry("stale");
+			recoveries = table.getEntry("recoveries");
+			lastRecoveryMs = table.getEntry("lastRecoveryMs");
+			stale.setBoolean(false);
+			recoveries.setNumber(0);
+		}
+	}
+
+	private final CopyOnWriteArrayList<State> watched = new CopyOnWriteArrayList<State>();
+	private final long stallNanos;
+	private final long periodMillis;
+	private Thread thread;
+
+	public VisionWatchdog() {
+		this(DEFAULT_STALL_MILLIS, DEFAULT_PERIOD_MILLIS);
+	}
+
+	/**
+	 * @param stallMillis how long without a processed or published frame counts as a stall.
+	 * @param periodMillis how often every camera is checked.
+	 */
+	public VisionWatchdog(long stallMillis, long periodMillis) {
+		if (stallMillis <= 0 || periodMillis <= 0) {
+			throw new IllegalArgumentException("stall time and check period must be positive");
+		}
+		this.stallNanos = TimeUnit.MILLISECONDS.toNanos(stallMillis);
+		this.periodMillis = periodMillis;
+	}
+
+	/**
+	 * Starts watching a camera. It should already be running.
+	 * @param camera the camera.
+	 * @param table where its stale flag and recovery count are published.
+	 */
+	public void watch(Watched camera, NetworkTable table) {
+		watched.add(new State(camera, table));
+	}
+
+	/**
+	 * @return how many times a camera has been rebuilt, or 0 if it is not watched.
+	 */
+	public int restarts(Watched camera) {
+		for (State state : watched) {
+			if (state.watched == camera) {
+				return state.restarts;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Starts the watchdog thread.
+	 */
+	public synchronized void start() {
+		if (thread == null) {
+			thread = new Thread(this::run, "vision-watchdog");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops the watchdog thread.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (thread != null) {
+			thread.interrupt();
+			thread.join();
+			thread = null;
+		}
+	}
+
+	private void run() {
+		try {
+			for (;;) {
+				Thread.sleep(periodMillis);
+				for (State state : watched) {
+					check(state, System.nanoTime());
+				}
+			}
+		} catch (InterruptedException ex) {
+			// stopping
+		}
+	}
+
+	private void check(State state, long now) {
+		final Watched camera = state.watched;
+		final long processed = camera.lastProcessedNanos();
+		final long published = camera.lastPublishedNanos();
+		if (!state.stalled) {
+			if (now - processed > stallNanos || now - published > stallNanos) {
+				state.stalled = true;
+				state.stalledAtNanos = now;
+				state.stale.setBoolean(true);
+				System.err.println(camera.name() + ": no frame processed for "
+					+ TimeUnit.NANOSECONDS.toMillis(now - processed) + " ms or published for "
+					+ TimeUnit.NANOSECONDS.toMillis(now - published) + " ms, rebuilding");
+				restart(state);
+			}
+		}
+		else if (processed - state.restartedAtNanos > 0 && published - state.restartedAtNanos > 0) {
+			final long recoveryMillis = TimeUnit.NANOSECONDS.toMillis(published - state.stalledAtNanos);
+			state.stalled = false;
+			state.stale.setBoolean(false);
+			state.lastRecoveryMs.setNumber(recoveryMillis);
+			System.out.println(camera.name() + ": recovered in " + recoveryMillis + " ms");
+		}
+		else if (now - state.restartedAtNanos > stallNanos) {
+			System.err.println(camera.name() + ": still stalled, rebuilding again");
+			restart(state);
+		}
+	}
+
+	private void restart(State state) {
+		state.recoveries.setNumber(++state.restarts);
+		try {
+			state.watched.restart();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (Exception ex) {
+			System.err.println(state.watched.name() + ": rebuild failed: " + ex);
+		}
+		// Taken after the rebuild, so only frames from the rebuilt camera count as recovery.
+		state.restartedAtNanos = System.nanoTime();
+	}
+}
@@ -0,0 +1,116 @@
+package vision;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* VisionWorkerPool class.
+*
+* <p>A fixed set of threads that run the process stage for every camera. Each camera's
+* StagedVisionRunner keeps its own capture, publish and render threads but hands its
+* newest frame to the pool instead of a process thread of its own. Workers visit the
+* cameras round-robin, a camera never has more than one frame being processed, and a
+* camera with a frame-rate budget is skipped until its next frame is due. With at
+* least as many workers as busy cameras, adding a camera does not slow the others.
+*/
+public class VisionWorkerPool {
+
+	// The longest a worker sleeps before looking for due frames again.
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final CopyOnWriteArrayList<StagedVisionRunner> runners = new CopyOnWriteArrayList<StagedVisionRunner>();
+	private final Semaphore ready = new Semaphore(0);
+	private final AtomicInteger cursor = new AtomicInteger();
+	private final Thread[] workers;
+
+	/**
+	 * @param size the number of worker threads, normally the number of cores.
+	 */
+	public VisionWorkerPool(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("a worker pool needs at least one thread");
+		}
+		workers = new Thread[size];
+		for (int i = 0; i < size; i++) {
+			workers[i] = new Thread(this::work, "vision-worker-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * @return a pool with one worker per available core.
+	 */
+	public static VisionWorkerPool perCore() {
+		return new VisionWorkerPool(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return the number of worker threads.
+	 */
+	public int size() {
+		return workers.length;
+	}
+
+	void register(StagedVisionRunner runner) {
+		runners.addIfAbsent(runner);
+	}
+
+	void unregister(StagedVisionRunner runner) {
+		runners.remove(runner);
+	}
+
+	/**
+	 * Tells a worker that a runner has a frame waiting.
+	 */
+	void signal() {
+		ready.release();
+	}
+
+	/**
+	 * Stops every worker thread. Runners still registered stop being processed.
+	 */
+	public void shutdown() throws InterruptedException {
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+
+	private void work() {
+		try {
+			for (;;) {
+				long wait = IDLE_NANOS;
+				boolean processed = false;
+				final int count = runners.size();
+				// Start each scan one camera further on so none is always served first.
+				final int first = count == 0 ? 0 : Math.floorMod(cursor.getAndIncrement(), count);
+				for (int i = 0; i < count && !processed; i++) {
+					final StagedVisionRunner runner;
+					try {
+						runner = runners.get((first + i) % count);
+					} catch (IndexOutOfBoundsException ex) {
+						// a runner was unregistered during the scan
+						break;
+					}
+					final long due = runner.processPooled(System.nanoTime());
+					if (due == 0) {
+						processed = true;
+					}
+					else if (due > 0) {
+						wait = Math.min(wait, due);
+					}
+				}
+				if (!processed) {
+					ready.tryAcquire(wait, TimeUnit.NANOSECONDS);
+				}
+			}
+		} catch (InterruptedException ex) {
+			// stopping
+		}
+	}
+}